@@ -81,6 +81,7 @@ public class TVGuideActivity extends Activity implements TvNetworkListener,
 
         channelListView = (GridView) findViewById(R.id.channelList);
         channelListAdapter = new TvChannelListAdapter(this);
+        channelListAdapter.setShowNowNext();
 
         regionListAdapter = new TvRegionListAdapter(this);
 
@@ -113,6 +114,7 @@ public class TVGuideActivity extends Activity implements TvNetworkListener,
             forceMainListRefresh = true;
         }
         TvChannelCache.getInstance().addContext(this, forceMainListRefresh);
+        channelListAdapter.refreshNowNext();
 
         TvBookmarkManager.getInstance().addContext(this);
         TvBookmarkManager.getInstance().addChangedListener(this);
@@ -362,8 +364,8 @@ public class TVGuideActivity extends Activity implements TvNetworkListener,
         }
     }
 
-    public void setCurrentNetworkRequest(TvChannel channel, Calendar date,
-            Calendar primaryDate) {
+    public void setCurrentNetworkRequest(TvChannel channel, TvDayKey date,
+            TvDayKey primaryDate) {
         String message = channel.getName(); // + " " +
                                             // DateFormat.format("E, MMM dd",
                                             // primaryDate);
@@ -385,15 +387,15 @@ public class TVGuideActivity extends Activity implements TvNetworkListener,
         wantCancelable = false;
     }
 
-    public void dataAvailable(TvChannel channel, Calendar date,
-            Calendar primaryDate) {
+    public void dataAvailable(TvChannel channel, TvDayKey date,
+            TvDayKey primaryDate) {
     }
 
-    public void requestFailed(TvChannel channel, Calendar date,
-            Calendar primaryDate) {
+    public void requestFailed(TvChannel channel, TvDayKey date,
+            TvDayKey primaryDate) {
     }
 
-    public void bookmarksChanged() {
+    public void bookmarksChanged(TvBookmarkChange change) {
         channelListAdapter.forceUpdate();
     }
 }
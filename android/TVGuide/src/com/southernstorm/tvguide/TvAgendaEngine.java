@@ -0,0 +1,521 @@
+/*
+ * Copyright (C) 2011,2012  Southern Storm Software, Pty Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.southernstorm.tvguide;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Agenda of the upcoming programmes that the bookmarks catch on all of
+ * the active channels over the next week.
+ *
+ * The agenda is built on a background thread from the cached day data,
+ * one channel and day at a time.  Each pass works in short slices and
+ * yields between them, so that a full pass over a region does not hold
+ * up the other background work, and the progress is reported after
+ * each slice.  Once built, days are re-read as new data arrives, and
+ * only the programmes affected by a bookmark change are re-matched.
+ *
+ * The agenda is saved in the cache so that it is available straight
+ * away the next time the application starts, while the first pass
+ * is still in progress.
+ *
+ * Nothing is read until a caller asks for the agenda with refresh(),
+ * so the engine costs nothing for screens that do not show it.
+ */
+public class TvAgendaEngine implements TvNetworkListener, TvBookmarkChangedListener {
+
+    private static TvAgendaEngine instance = null;
+
+    /** Number of days, starting with today, that are covered by the agenda */
+    public static final int NUM_DAYS = 7;
+
+    // Length of time to work on a pass before yielding, in milliseconds.
+    private static final long SLICE_TIME = 500;
+
+    // Length of time to yield between slices, in milliseconds.
+    private static final long SLICE_DELAY = 100;
+
+    // Number of programmes to match against the bookmarks at once.
+    private static final int BATCH_SIZE = 2048;
+
+    private static final int MAGIC = 0x54564147;    // "TVAG"
+    private static final int VERSION = 1;
+
+    /**
+     * Information about a bookmarked programme in the agenda.
+     */
+    public static class Entry {
+        public final String channelId;
+        public final long start;
+        public final long stop;
+        public final String title;
+        public final TvBookmarkMatch match;
+
+        // The bookmark is null for entries that were loaded from the cache.
+        public final TvBookmark bookmark;
+
+        public Entry(String channelId, long start, long stop, String title,
+                     TvBookmarkMatch match, TvBookmark bookmark) {
+            this.channelId = channelId;
+            this.start = start;
+            this.stop = stop;
+            this.title = title;
+            this.match = match;
+            this.bookmark = bookmark;
+        }
+    }
+
+    // Programmes for a single channel and day.  Cells are only
+    // accessed from the background thread.
+    private static class Cell {
+        public final TvChannel channel;
+        public final TvDayKey date;
+        public List<TvProgramme> programmes;    // null if the day needs to be read
+        public List<Entry> entries;
+        public boolean stale;                   // true if the day needs to be matched
+
+        public Cell(TvChannel channel, TvDayKey date) {
+            this.channel = channel;
+            this.date = date;
+            this.entries = Collections.emptyList();
+            this.stale = true;
+        }
+    }
+
+    private Map<Long, Cell> cells;
+    private List<Entry> savedAgenda;
+    private boolean loaded;
+    private boolean sliceScheduled;
+    private volatile List<Entry> agenda;
+    private volatile int cellsDone;
+    private volatile int cellsTotal;
+    private ExecutorService executor;
+    private Handler handler;
+    private List<TvAgendaListener> listeners;
+    private boolean registered;
+
+    private TvAgendaEngine() {
+        cells = new LinkedHashMap<Long, Cell>();
+        agenda = Collections.emptyList();
+        handler = new Handler(Looper.getMainLooper());
+        listeners = new ArrayList<TvAgendaListener>();
+        executor = Executors.newSingleThreadExecutor(new TvBackgroundThreadFactory("TvAgendaEngine"));
+    }
+
+    /**
+     * Retrieves the global agenda engine.
+     * 
+     * @return the agenda engine
+     */
+    public static TvAgendaEngine getInstance() {
+        if (instance == null)
+            instance = new TvAgendaEngine();
+        return instance;
+    }
+
+    public void addChangedListener(TvAgendaListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeChangedListener(TvAgendaListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Starts a pass over the cached data for a list of channels, from
+     * today onwards.  Days that have already been matched are kept, and
+     * channels and days that are not in the list are dropped.
+     * 
+     * The engine follows downloads and bookmark changes from the first
+     * call onwards, so that the agenda stays up to date.
+     * 
+     * @param channels the channels to cover
+     */
+    public void refresh(List<TvChannel> channels) {
+        if (!registered) {
+            TvChannelCache.getInstance().addNetworkListener(this);
+            TvBookmarkManager.getInstance().addChangedListener(this);
+            registered = true;
+        }
+        final List<TvChannel> toCover = new ArrayList<TvChannel>(channels);
+        final TvDayKey today = TvDayKey.today();
+        executor.execute(new Runnable() {
+            public void run() {
+                if (!loaded) {
+                    savedAgenda = read(TvChannelCache.getInstance().agendaFile());
+                    loaded = true;
+                }
+                Map<Long, Cell> newCells = new LinkedHashMap<Long, Cell>();
+                for (int day = 0; day < NUM_DAYS; ++day) {
+                    TvDayKey date = today.addDays(day);
+                    for (TvChannel channel: toCover) {
+                        Long key = cellKey(channel, date);
+                        Cell cell = cells.get(key);
+                        if (cell == null || cell.channel != channel)
+                            cell = new Cell(channel, date);
+                        newCells.put(key, cell);
+                    }
+                }
+                cells = newCells;
+                publish();
+                scheduleSlice();
+            }
+        });
+    }
+
+    /**
+     * Discards the agenda of the global engine, in response to the cache
+     * being cleared.  Nothing is done if the engine has not been created.
+     */
+    public static void clearInstance() {
+        if (instance != null)
+            instance.clear();
+    }
+
+    /**
+     * Discards the agenda, in response to the cache being cleared.
+     */
+    public void clear() {
+        executor.execute(new Runnable() {
+            public void run() {
+                for (Cell cell: cells.values()) {
+                    cell.programmes = null;
+                    cell.entries = Collections.emptyList();
+                    cell.stale = true;
+                }
+                savedAgenda = null;
+                publish();
+                scheduleSlice();
+            }
+        });
+    }
+
+    /**
+     * Gets the bookmarked programmes that have not finished yet, in order
+     * of start time.  Bookmarks that match on the title only are not
+     * included.
+     * 
+     * @return the agenda entries
+     */
+    public List<Entry> getAgenda() {
+        List<Entry> entries = agenda;
+        long now = System.currentTimeMillis() / 1000;
+        int index = 0;
+        while (index < entries.size() && entries.get(index).stop <= now)
+            ++index;
+        return entries.subList(index, entries.size());
+    }
+
+    /**
+     * Gets the number of channel days that have been matched so far.
+     * 
+     * @return the number of channel days
+     */
+    public int getProgress() {
+        return cellsDone;
+    }
+
+    /**
+     * Gets the number of channel days that are covered by the agenda.
+     * 
+     * @return the number of channel days
+     */
+    public int getProgressMax() {
+        return cellsTotal;
+    }
+
+    /**
+     * Determine if every channel day has been matched.
+     * 
+     * @return true if the agenda is complete, false if a pass is in progress
+     */
+    public boolean isComplete() {
+        return cellsDone == cellsTotal;
+    }
+
+    private static Long cellKey(TvChannel channel, TvDayKey date) {
+        return Long.valueOf(((long)channel.getRegistryId() << 32) | (date.getDayNumber() & 0xFFFFFFFFL));
+    }
+
+    // Queues the next slice of the pass if there is work left to do.
+    private void scheduleSlice() {
+        if (sliceScheduled || cellsDone == cellsTotal)
+            return;
+        sliceScheduled = true;
+        handler.postDelayed(new Runnable() {
+            public void run() {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        sliceScheduled = false;
+                        runSlice();
+                    }
+                });
+            }
+        }, SLICE_DELAY);
+    }
+
+    private void runSlice() {
+        long deadline = System.currentTimeMillis() + SLICE_TIME;
+        TvChannelCache cache = TvChannelCache.getInstance();
+        TvBookmarkManager manager = TvBookmarkManager.getInstance();
+        Iterator<Cell> it = cells.values().iterator();
+        List<Cell> batch = new ArrayList<Cell>();
+        List<TvProgramme> programmes = new ArrayList<TvProgramme>();
+        while (System.currentTimeMillis() < deadline) {
+            // Read days until there are enough programmes to match in one batch.
+            batch.clear();
+            programmes.clear();
+            while (programmes.size() < BATCH_SIZE && it.hasNext()) {
+                Cell cell = it.next();
+                if (!cell.stale)
+                    continue;
+                if (cell.programmes == null) {
+                    cell.programmes = cache.readChannelData(cell.channel, cell.date);
+                    if (cell.programmes == null)
+                        cell.programmes = Collections.emptyList();
+                }
+                batch.add(cell);
+                programmes.addAll(cell.programmes);
+            }
+            if (batch.isEmpty())
+                break;
+            manager.matchProgrammesInParallel(programmes);
+            for (Cell cell: batch) {
+                cell.entries = entriesFor(cell);
+                cell.stale = false;
+            }
+        }
+        publish();
+        if (cellsDone == cellsTotal) {
+            savedAgenda = null;
+            write(TvChannelCache.getInstance().agendaFile(), agenda);
+        } else {
+            scheduleSlice();
+        }
+    }
+
+    private static List<Entry> entriesFor(Cell cell) {
+        List<Entry> entries = null;
+        for (TvProgramme prog: cell.programmes) {
+            TvBookmarkMatch match = prog.getBookmarkMatch();
+            if (match != TvBookmarkMatch.FullMatch && match != TvBookmarkMatch.Overrun &&
+                    match != TvBookmarkMatch.Underrun && match != TvBookmarkMatch.ShouldMatch)
+                continue;
+            if (prog.getStartSeconds() == Utils.NO_TIME || prog.getStopSeconds() == Utils.NO_TIME)
+                continue;
+            if (entries == null)
+                entries = new ArrayList<Entry>();
+            entries.add(new Entry(cell.channel.getId(), prog.getStartSeconds(), prog.getStopSeconds(),
+                                  prog.getTitle(), match, prog.getBookmark()));
+        }
+        if (entries == null)
+            return Collections.emptyList();
+        return entries;
+    }
+
+    private static final Comparator<Entry> entryComparator = new Comparator<Entry>() {
+        public int compare(Entry e1, Entry e2) {
+            if (e1.start != e2.start)
+                return (e1.start < e2.start ? -1 : 1);
+            return e1.channelId.compareTo(e2.channelId);
+        }
+    };
+
+    // Publishes the agenda and progress for the UI thread.  The agenda
+    // that was saved last time is used until the first pass is complete.
+    private void publish() {
+        int done = 0;
+        for (Cell cell: cells.values()) {
+            if (!cell.stale)
+                ++done;
+        }
+        List<Entry> entries = new ArrayList<Entry>();
+        if (savedAgenda != null && done < cells.size()) {
+            Set<String> channelIds = new HashSet<String>();
+            for (Cell cell: cells.values())
+                channelIds.add(cell.channel.getId());
+            for (Entry entry: savedAgenda) {
+                if (channelIds.contains(entry.channelId))
+                    entries.add(entry);
+            }
+        } else {
+            for (Cell cell: cells.values())
+                entries.addAll(cell.entries);
+            Collections.sort(entries, entryComparator);
+
+            // Programmes that cross midnight appear in both day files.
+            Iterator<Entry> it = entries.iterator();
+            Entry prev = null;
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (prev != null && prev.start == entry.start && prev.channelId.equals(entry.channelId))
+                    it.remove();
+                else
+                    prev = entry;
+            }
+        }
+        agenda = Collections.unmodifiableList(entries);
+        cellsTotal = cells.size();
+        cellsDone = done;
+        handler.post(new Runnable() {
+            public void run() {
+                for (TvAgendaListener listener: listeners)
+                    listener.agendaChanged();
+            }
+        });
+    }
+
+    private static List<Entry> read(File file) {
+        if (file == null || !file.exists())
+            return null;
+        try {
+            FileInputStream fileStream = new FileInputStream(file);
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(fileStream, 8192));
+                if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                    return null;
+                int count = in.readInt();
+                TvBookmarkMatch[] matches = TvBookmarkMatch.values();
+                List<Entry> entries = new ArrayList<Entry>(count);
+                for (int index = 0; index < count; ++index) {
+                    String channelId = in.readUTF();
+                    long start = in.readLong();
+                    long stop = in.readLong();
+                    String title = in.readUTF();
+                    int match = in.readByte();
+                    if (match < 0 || match >= matches.length)
+                        return null;
+                    entries.add(new Entry(channelId, start, stop, title, matches[match], null));
+                }
+                return entries;
+            } finally {
+                fileStream.close();
+            }
+        } catch (IOException e) {
+            // Treat a corrupt agenda file as missing.
+            return null;
+        }
+    }
+
+    private static void write(File file, List<Entry> entries) {
+        if (file == null)
+            return;
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            FileOutputStream fileStream = new FileOutputStream(tempFile);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream, 8192));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                for (Entry entry: entries) {
+                    out.writeUTF(entry.channelId);
+                    out.writeLong(entry.start);
+                    out.writeLong(entry.stop);
+                    out.writeUTF(entry.title != null ? entry.title : "");
+                    out.writeByte(entry.match.ordinal());
+                }
+                out.flush();
+            } finally {
+                fileStream.close();
+            }
+        } catch (IOException e) {
+            tempFile.delete();
+            return;
+        }
+        if (!tempFile.renameTo(file))
+            tempFile.delete();
+    }
+
+    public void bookmarksChanged(final TvBookmarkChange change) {
+        executor.execute(new Runnable() {
+            public void run() {
+                if (change.getKind() == TvBookmarkChange.RELOADED) {
+                    for (Cell cell: cells.values())
+                        cell.stale = true;
+                    publish();
+                    scheduleSlice();
+                    return;
+                }
+
+                // Days that are waiting for a pass will be matched from scratch.
+                TvBookmarkManager manager = TvBookmarkManager.getInstance();
+                boolean changed = false;
+                for (Cell cell: cells.values()) {
+                    if (cell.stale)
+                        continue;
+                    if (!manager.matchChangedProgrammes(cell.programmes, change).isEmpty()) {
+                        cell.entries = entriesFor(cell);
+                        changed = true;
+                    }
+                }
+                if (!changed)
+                    return;
+                publish();
+                if (cellsDone == cellsTotal)
+                    write(TvChannelCache.getInstance().agendaFile(), agenda);
+            }
+        });
+    }
+
+    public void setCancelable() {}
+    public void setCurrentNetworkRequest(TvChannel channel, TvDayKey date, TvDayKey primaryDate) {}
+    public void setCurrentNetworkIconRequest(TvChannel channel) {}
+    public void setCurrentNetworkListRequest() {}
+    public void endNetworkRequests() {}
+
+    public void dataAvailable(TvChannel channel, TvDayKey date, TvDayKey primaryDate) {
+        if (channel == null || date == null)
+            return;
+        final Long key = cellKey(channel, date);
+        executor.execute(new Runnable() {
+            public void run() {
+                Cell cell = cells.get(key);
+                if (cell == null)
+                    return;
+                cell.programmes = null;
+                cell.stale = true;
+                publish();
+                scheduleSlice();
+            }
+        });
+    }
+
+    public void requestFailed(TvChannel channel, TvDayKey date, TvDayKey primaryDate) {}
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2011,2012  Southern Storm Software, Pty Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.southernstorm.tvguide;
+
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Process;
+
+/**
+ * Creates the threads for the background executors.  The threads run at
+ * background priority so that they do not compete with the UI thread,
+ * and are daemons so that they never keep the process alive.
+ */
+public class TvBackgroundThreadFactory implements ThreadFactory {
+
+    private String name;
+
+    /**
+     * Constructs a thread factory.
+     *
+     * @param name the name to give the threads
+     */
+    public TvBackgroundThreadFactory(String name) {
+        this.name = name;
+    }
+
+    public Thread newThread(final Runnable runnable) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }
+        }, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -45,8 +45,11 @@ public class TvBookmark implements Comparable<TvBookmark> {
     /** Day of week mask value that matches Saturday and Sunday */
     public static final int SAT_AND_SUN_MASK = 0xC0;
 
+    /** Last value of a season or year range that has no upper bound */
+    public static final int RANGE_INFINITE = 0x7FFFFFFF;
+
     private class Range {
-        public static final int INFINITE = 0x7FFFFFFF;
+        public static final int INFINITE = RANGE_INFINITE;
         public int first;
         public int last;
         
@@ -58,6 +61,7 @@ public class TvBookmark implements Comparable<TvBookmark> {
 
     private String title;
     private String channelId;
+    private int channelRegistryId = TvChannelRegistry.NO_CHANNEL;
     private int dayOfWeekMask;
     private int startTime;
     private int stopTime;
@@ -74,7 +78,7 @@ public class TvBookmark implements Comparable<TvBookmark> {
      */
     public TvBookmark() {
         title = null;
-        channelId = null;
+        setChannelId(null);
         dayOfWeekMask = ANY_DAY_MASK;
         startTime = 18 * 60 * 60;
         stopTime = 23 * 60 * 60;
@@ -124,6 +128,16 @@ public class TvBookmark implements Comparable<TvBookmark> {
      */
     public void setChannelId(String channelId) {
         this.channelId = channelId;
+        this.channelRegistryId = TvChannelRegistry.getInstance().register(channelId);
+    }
+
+    /**
+     * Gets the registry identifier of the channel to match.
+     * 
+     * @return the registry identifier, or TvChannelRegistry.NO_CHANNEL
+     */
+    public int getChannelRegistryId() {
+        return channelRegistryId;
     }
 
     /**
@@ -500,6 +514,37 @@ public class TvBookmark implements Comparable<TvBookmark> {
             this.years = range;
     }
 
+    private static int[] rangeListToArray(List<Range> list) {
+        if (list == null)
+            return null;
+        int[] array = new int [list.size() * 2];
+        for (int index = 0; index < list.size(); ++index) {
+            array[index * 2] = list.get(index).first;
+            array[index * 2 + 1] = list.get(index).last;
+        }
+        return array;
+    }
+
+    /**
+     * Gets the season ranges as pairs of first and last values, with
+     * RANGE_INFINITE as the last value of an open-ended range.
+     *
+     * @return the season ranges, or null if any season should match
+     */
+    int[] getSeasonRanges() {
+        return rangeListToArray(seasons);
+    }
+
+    /**
+     * Gets the year ranges as pairs of first and last values, with
+     * RANGE_INFINITE as the last value of an open-ended range.
+     *
+     * @return the year ranges, or null if any year should match
+     */
+    int[] getYearRanges() {
+        return rangeListToArray(years);
+    }
+
     /**
      * Determine if a string is a valid range string for use with setSeasons() or setYears().
      * 
@@ -537,18 +582,18 @@ public class TvBookmark implements Comparable<TvBookmark> {
         if (title == null)
             return TvBookmarkMatch.NoMatch;
         if (!title.equalsIgnoreCase(programme.getTitle())) {
-            if (channelId != null && !programme.getChannel().isSameChannel(channelId))
+            if (channelId != null && !programme.getChannel().isSameChannel(channelRegistryId))
                 return TvBookmarkMatch.NoMatch;
             should = true;
             result = TvBookmarkMatch.ShouldMatch;
         } else {
-            if (channelId != null && !programme.getChannel().isSameChannel(channelId))
+            if (channelId != null && !programme.getChannel().isSameChannel(channelRegistryId))
                 result = TvBookmarkMatch.TitleMatch;
         }
     
         // Check that start and stop times are within the expected range.
-        int start = getTimeOfDay(programme.getStart());
-        int stop = getTimeOfDay(programme.getStop());
+        int start = programme.getStartTimeOfDay();
+        int stop = programme.getStopTimeOfDay();
         int dayOfWeekMask = this.dayOfWeekMask;
         if (anyTime) {
             // If we are matching at any time of day, then don't show
@@ -588,7 +633,7 @@ public class TvBookmark implements Comparable<TvBookmark> {
         }
     
         // Validate the weekday.
-        int weekday = programme.getStart().get(Calendar.DAY_OF_WEEK);
+        int weekday = programme.getStartDayOfWeek();
         if (weekday == Calendar.SUNDAY)
             weekday = 7;
         else
@@ -676,7 +721,7 @@ public class TvBookmark implements Comparable<TvBookmark> {
      */
     public void loadFromXml(XmlPullParser parser) throws XmlPullParserException, IOException {
         title = null;
-        channelId = null;
+        setChannelId(null);
         dayOfWeekMask = ANY_DAY_MASK;
         startTime = 18 * 60 * 60;
         stopTime = 23 * 60 * 60;
@@ -692,7 +737,7 @@ public class TvBookmark implements Comparable<TvBookmark> {
                 if (name.equals("title")) {
                     title = Utils.getContents(parser, name);
                 } else if (name.equals("channel-id")) {
-                    channelId = Utils.getContents(parser, name);
+                    setChannelId(Utils.getContents(parser, name));
                 } else if (name.equals("days")) {
                     String days = Utils.getContents(parser, name);
                     if (days != null)
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2011,2012  Southern Storm Software, Pty Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.southernstorm.tvguide;
+
+import java.util.Collections;
+
+/**
+ * Details of a change to the bookmarks or ticks, so that listeners can
+ * re-match just the programmes that the change could affect.
+ */
+public class TvBookmarkChange {
+
+    /** A bookmark was added */
+    public static final int BOOKMARK_ADDED = 0;
+
+    /** A bookmark's definition was modified */
+    public static final int BOOKMARK_UPDATED = 1;
+
+    /** A bookmark was removed */
+    public static final int BOOKMARK_REMOVED = 2;
+
+    /** A programme was ticked */
+    public static final int TICK_ADDED = 3;
+
+    /** A programme was unticked */
+    public static final int TICK_REMOVED = 4;
+
+    /** All bookmarks and ticks were reloaded, so every programme is affected */
+    public static final int RELOADED = 5;
+
+    private int kind;
+    private TvBookmark bookmark;
+    private TvTick tick;
+    private TvBookmarkIndex bookmarkIndex;
+
+    /**
+     * Constructs a change event that affects every programme.
+     */
+    public TvBookmarkChange() {
+        this.kind = RELOADED;
+    }
+
+    /**
+     * Constructs a change event for a bookmark.
+     *
+     * @param kind BOOKMARK_ADDED, BOOKMARK_UPDATED, or BOOKMARK_REMOVED
+     * @param bookmark the bookmark that changed
+     */
+    public TvBookmarkChange(int kind, TvBookmark bookmark) {
+        this.kind = kind;
+        this.bookmark = bookmark;
+    }
+
+    /**
+     * Constructs a change event for a tick.
+     *
+     * @param kind TICK_ADDED or TICK_REMOVED
+     * @param tick the tick that changed
+     */
+    public TvBookmarkChange(int kind, TvTick tick) {
+        this.kind = kind;
+        this.tick = tick;
+    }
+
+    public int getKind() {
+        return kind;
+    }
+
+    /**
+     * Gets the bookmark that changed.
+     *
+     * @return the bookmark, or null if the change was not to a bookmark
+     */
+    public TvBookmark getBookmark() {
+        return bookmark;
+    }
+
+    /**
+     * Gets the tick that changed.
+     *
+     * @return the tick, or null if the change was not to a tick
+     */
+    public TvTick getTick() {
+        return tick;
+    }
+
+    /**
+     * Determine if a programme's match could be affected by this change.
+     * Programmes that are not affected keep their current match.
+     *
+     * A bookmark affects the programmes that it currently matches, which
+     * covers its old definition, and the programmes that its new
+     * definition could match.  A bookmark that did not win a programme
+     * before the change cannot alter that programme's match by no longer
+     * matching it.
+     *
+     * @param prog the programme
+     * @return true if the programme needs to be re-matched
+     */
+    public boolean affects(TvProgramme prog) {
+        switch (kind) {
+        case BOOKMARK_ADDED:
+        case BOOKMARK_UPDATED:
+        case BOOKMARK_REMOVED:
+            if (prog.getBookmark() == bookmark)
+                return true;
+            if (kind == BOOKMARK_REMOVED)
+                return false;
+            if (bookmarkIndex == null)
+                bookmarkIndex = new TvBookmarkIndex(Collections.singletonList(bookmark));
+            return !bookmarkIndex.candidates(prog.getMatchKey()).isEmpty();
+        case TICK_ADDED:
+        case TICK_REMOVED:
+            return tick.match(prog);
+        default:
+            return true;
+        }
+    }
+}
@@ -19,5 +19,5 @@ package com.southernstorm.tvguide;
 
 public interface TvBookmarkChangedListener {
 
-    public void bookmarksChanged();
+    public void bookmarksChanged(TvBookmarkChange change);
 }
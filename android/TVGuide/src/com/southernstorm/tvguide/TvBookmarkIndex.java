@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2011,2012  Southern Storm Software, Pty Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.southernstorm.tvguide;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index over a list of bookmarks that finds the bookmarks that could
+ * possibly match a programme, so that only a handful of bookmarks need
+ * to be matched against it rather than all of them.  The bookmarks are
+ * compiled into TvBookmarkMatcher objects when the index is built.
+ *
+ * A bookmark can match a programme in two ways: its title can be the
+ * same as the programme's title, or it can be a "should match" where
+ * the programme occupies the bookmark's channel and time slot.  The
+ * first is found with a map from case-folded titles to bookmarks.
+ * The second is found by dividing each channel's week into half-hour
+ * slots and recording which on-air bookmarks cover each slot.
+ *
+ * Candidates are always returned in the same order as the original
+ * bookmark list, so the caller sees the same precedence as if it had
+ * tried every bookmark in turn.  The index is a snapshot, and must be
+ * rebuilt if the bookmarks change.
+ */
+public class TvBookmarkIndex {
+
+    private static final int SLOT_SECONDS = 30 * 60;
+    private static final int SLOTS_PER_DAY = 24 * 60 * 60 / SLOT_SECONDS;
+    private static final int SLOTS_PER_WEEK = SLOTS_PER_DAY * 7;
+
+    private TvBookmarkMatcher[] matchers;
+    private Map<String, int[]> titles;
+    private int[][] anyChannelSlots;
+    private int[][][] slotsByChannel;
+    private long[] marks;
+    private List<TvBookmarkMatcher> candidates;
+
+    /**
+     * Constructs an index over a list of bookmarks.
+     *
+     * @param list the bookmarks to index, in order of precedence
+     */
+    public TvBookmarkIndex(List<TvBookmark> list) {
+        matchers = new TvBookmarkMatcher [list.size()];
+        marks = new long [(matchers.length + 63) / 64];
+        candidates = new ArrayList<TvBookmarkMatcher>();
+
+        Map<String, List<Integer>> titleLists = new HashMap<String, List<Integer>>();
+        Map<Integer, List<Integer>[]> slotLists = new HashMap<Integer, List<Integer>[]>();
+        for (int index = 0; index < matchers.length; ++index) {
+            TvBookmark bookmark = list.get(index);
+            matchers[index] = new TvBookmarkMatcher(bookmark);
+            String key = matchers[index].getFoldedTitle();
+            if (key == null)
+                continue;   // Never matches anything.
+            List<Integer> titleList = titleLists.get(key);
+            if (titleList == null) {
+                titleList = new ArrayList<Integer>();
+                titleLists.put(key, titleList);
+            }
+            titleList.add(Integer.valueOf(index));
+
+            // Failed matches are never reported for "any time" or off-air bookmarks.
+            if (bookmark.getAnyTime() || !bookmark.isOnAir())
+                continue;
+            Integer channelKey = Integer.valueOf(bookmark.getChannelRegistryId());
+            List<Integer>[] channelSlots = slotLists.get(channelKey);
+            if (channelSlots == null) {
+                @SuppressWarnings("unchecked")
+                List<Integer>[] newSlots = (List<Integer>[])new List<?> [SLOTS_PER_WEEK];
+                channelSlots = newSlots;
+                slotLists.put(channelKey, channelSlots);
+            }
+            addSlots(channelSlots, bookmark, index);
+        }
+
+        titles = new HashMap<String, int[]>();
+        for (Map.Entry<String, List<Integer>> entry: titleLists.entrySet())
+            titles.put(entry.getKey(), toArray(entry.getValue()));
+
+        // Slots are looked up by the channel's registry identifier.
+        int maxChannel = TvChannelRegistry.NO_CHANNEL;
+        for (Integer channel: slotLists.keySet())
+            maxChannel = Math.max(maxChannel, channel.intValue());
+        slotsByChannel = new int [maxChannel + 1][][];
+        for (Map.Entry<Integer, List<Integer>[]> entry: slotLists.entrySet()) {
+            List<Integer>[] lists = entry.getValue();
+            int[][] slots = new int [SLOTS_PER_WEEK][];
+            for (int slot = 0; slot < SLOTS_PER_WEEK; ++slot) {
+                if (lists[slot] != null)
+                    slots[slot] = toArray(lists[slot]);
+            }
+            int channel = entry.getKey().intValue();
+            if (channel == TvChannelRegistry.NO_CHANNEL)
+                anyChannelSlots = slots;
+            else
+                slotsByChannel[channel] = slots;
+        }
+    }
+
+    private TvBookmarkIndex(TvBookmarkIndex other) {
+        matchers = other.matchers;
+        titles = other.titles;
+        anyChannelSlots = other.anyChannelSlots;
+        slotsByChannel = other.slotsByChannel;
+        marks = new long [other.marks.length];
+        candidates = new ArrayList<TvBookmarkMatcher>();
+    }
+
+    /**
+     * Gets a copy of this index that shares its tables but has its own
+     * working state, so that it can be used on another thread.
+     *
+     * @return the copy of the index
+     */
+    public TvBookmarkIndex copyForThread() {
+        return new TvBookmarkIndex(this);
+    }
+
+    /**
+     * Folds a title so that two titles fold to the same string exactly
+     * when String.equalsIgnoreCase() considers them equal.
+     *
+     * @param title the title to fold
+     * @return the folded title
+     */
+    public static String foldTitle(String title) {
+        int length = title.length();
+        char[] folded = null;
+        for (int index = 0; index < length; ++index) {
+            char ch = title.charAt(index);
+            char fold = Character.toLowerCase(Character.toUpperCase(ch));
+            if (fold != ch) {
+                if (folded == null)
+                    folded = title.toCharArray();
+                folded[index] = fold;
+            }
+        }
+        return (folded != null ? new String(folded) : title);
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int [list.size()];
+        for (int index = 0; index < array.length; ++index)
+            array[index] = list.get(index).intValue();
+        return array;
+    }
+
+    private static int slotForTime(int time) {
+        int slot = time / SLOT_SECONDS;
+        if (slot < 0)
+            return 0;
+        else if (slot >= SLOTS_PER_DAY)
+            return SLOTS_PER_DAY - 1;
+        return slot;
+    }
+
+    private static void addSlotRange(List<Integer>[] channelSlots, int day, int first, int last, int index) {
+        // Days are numbered 1 (Monday) to 7 (Sunday), as in the day of week mask.
+        int base = (day - 1) * SLOTS_PER_DAY;
+        for (int slot = first; slot <= last; ++slot) {
+            List<Integer> list = channelSlots[base + slot];
+            if (list == null) {
+                list = new ArrayList<Integer>();
+                channelSlots[base + slot] = list;
+            }
+            list.add(Integer.valueOf(index));
+        }
+    }
+
+    /**
+     * Records the slots that a bookmark covers on each day of its mask.
+     * Bookmarks that run past midnight cover the start of the next day.
+     */
+    private static void addSlots(List<Integer>[] channelSlots, TvBookmark bookmark, int index) {
+        int mask = bookmark.getDayOfWeekMask();
+        int startTime = bookmark.getStartTime();
+        int stopTime = bookmark.getStopTime();
+        for (int day = 1; day <= 7; ++day) {
+            if ((mask & (1 << day)) == 0)
+                continue;
+            if (startTime < stopTime) {
+                addSlotRange(channelSlots, day, slotForTime(startTime), slotForTime(stopTime - 1), index);
+            } else {
+                addSlotRange(channelSlots, day, slotForTime(startTime), SLOTS_PER_DAY - 1, index);
+                if (stopTime > 0)
+                    addSlotRange(channelSlots, (day % 7) + 1, 0, slotForTime(stopTime - 1), index);
+            }
+        }
+    }
+
+    private void mark(int[] indexes) {
+        if (indexes == null)
+            return;
+        for (int index = 0; index < indexes.length; ++index)
+            marks[indexes[index] >> 6] |= 1L << (indexes[index] & 63);
+    }
+
+    private void markSlots(int[][] slots, int base, int first, int last) {
+        if (slots == null)
+            return;
+        for (int slot = first; slot <= last; ++slot)
+            mark(slots[base + slot]);
+    }
+
+    /**
+     * Finds the bookmarks that could match a programme.  Bookmarks that
+     * are not returned are guaranteed to give TvBookmarkMatch.NoMatch.
+     *
+     * The returned list is reused by the next call, so the index must
+     * only be used by one thread at a time.
+     *
+     * @param key the match key for the programme
+     * @return the matchers for the candidate bookmarks, in the original list order
+     */
+    public List<TvBookmarkMatcher> candidates(TvProgrammeMatchKey key) {
+        candidates.clear();
+        if (matchers.length == 0)
+            return candidates;
+        for (int index = 0; index < marks.length; ++index)
+            marks[index] = 0;
+
+        if (key.title != null)
+            mark(titles.get(key.title));
+
+        // Look for bookmarks covering the slots between the programme's
+        // start and stop, or to midnight if it runs into the next day.
+        // A bookmark that starts part-way through the programme can
+        // still be a failed match as an underrun.
+        int start = key.start;
+        int stop = key.stop;
+        int first = slotForTime(start);
+        int last = (stop > start ? slotForTime(stop) : SLOTS_PER_DAY - 1);
+        int base = (key.weekday - 1) * SLOTS_PER_DAY;
+        markSlots(anyChannelSlots, base, first, last);
+        if (key.channel != null) {
+            int[] same = TvChannelRegistry.getInstance().sameChannels(key.channel.getRegistryId());
+            for (int index = 0; index < same.length; ++index) {
+                if (same[index] < slotsByChannel.length)
+                    markSlots(slotsByChannel[same[index]], base, first, last);
+            }
+        }
+
+        for (int word = 0; word < marks.length; ++word) {
+            long bits = marks[word];
+            while (bits != 0) {
+                int bit = Long.numberOfTrailingZeros(bits);
+                candidates.add(matchers[(word << 6) + bit]);
+                bits &= bits - 1;
+            }
+        }
+        return candidates;
+    }
+}
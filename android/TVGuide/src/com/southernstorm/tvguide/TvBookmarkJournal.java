@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2011,2012  Southern Storm Software, Pty Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.southernstorm.tvguide;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * Journal of the changes that have been made to the bookmarks and ticks
+ * since the bookmarks file was last written.  Each change is appended as
+ * a small record, so the cost of an edit does not depend upon how many
+ * bookmarks there are.  Once enough changes have built up, the journal
+ * is compacted by writing a new bookmarks file and starting a new journal.
+ *
+ * Records are written on a background thread, and records that build up
+ * while a write is in progress are written together.
+ *
+ * The bookmarks file and the journal both record a generation number,
+ * and the journal is only replayed on top of a bookmarks file with the
+ * same generation.  A new bookmarks file is written to a temporary file
+ * and renamed into place, so if the writer is interrupted then either
+ * the old file and its journal or the new file is used.  The journal
+ * only moves on to the new generation once the rename has succeeded;
+ * if the new file cannot be written, then the changes keep being
+ * appended to the old journal.  Each record has a checksum, and a
+ * partly-written record at the end of the journal is discarded.
+ */
+public class TvBookmarkJournal {
+
+    private static final int MAGIC = 0x5456424A;    // "TVBJ"
+    private static final int VERSION = 1;
+
+    /** Number of records to allow in the journal before compacting it */
+    public static final int COMPACT_RECORDS = 64;
+
+    /**
+     * A change that was read back from the journal.
+     */
+    public static class Record {
+        /** Kind of change, from TvBookmarkChange */
+        public final int kind;
+
+        /** Position of the bookmark that was changed, or -1 */
+        public final int index;
+
+        /** XML for the bookmark or tick, or null */
+        public final byte[] data;
+
+        public Record(int kind, int index, byte[] data) {
+            this.kind = kind;
+            this.index = index;
+            this.data = data;
+        }
+    }
+
+    private static ExecutorService writer = null;
+
+    private static synchronized ExecutorService getWriter() {
+        if (writer == null) {
+            writer = Executors.newSingleThreadExecutor(new TvBackgroundThreadFactory("TvBookmarkJournal"));
+        }
+        return writer;
+    }
+
+    private final File file;
+    private final File journalFile;
+    private final Callable<byte[]> snapshot;
+    private long generation;
+    private List<byte[]> pending;
+    private List<byte[]> compacting;
+    private int numRecords;
+    private int numCompacting;
+    private boolean flushScheduled;
+    private boolean compactScheduled;
+    private long journalLength;
+    private boolean writeFailed;
+
+    /**
+     * Constructs a journal for a bookmarks file.
+     *
+     * The snapshot is called on the background thread to compact the
+     * journal.  It must lock the bookmarks and ticks, call startGeneration(),
+     * and then return the contents of the new bookmarks file, or null
+     * if the journal no longer applies.
+     *
+     * @param file the bookmarks file
+     * @param generation the generation number from the bookmarks file
+     * @param snapshot returns the contents of a new bookmarks file
+     */
+    public TvBookmarkJournal(File file, long generation, Callable<byte[]> snapshot) {
+        this.file = file;
+        this.snapshot = snapshot;
+        this.journalFile = new File(file.getPath() + ".journal");
+        this.generation = generation;
+        this.pending = new ArrayList<byte[]>();
+    }
+
+    /**
+     * Reads the records from the journal that apply to the bookmarks
+     * file.  Reading stops at the first record that is incomplete or
+     * corrupt, and it is cut off when the next record is written.
+     *
+     * @return the records, in the order they were written
+     */
+    public List<Record> read() {
+        List<Record> records = new ArrayList<Record>();
+        if (!journalFile.exists())
+            return records;
+        long validLength = 0;
+        try {
+            FileInputStream fileStream = new FileInputStream(journalFile);
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(fileStream, 8192));
+                if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != generation)
+                    return records;     // Left over from an older bookmarks file.
+                validLength = 16;
+                journalLength = validLength;
+                CRC32 crc = new CRC32();
+                for (;;) {
+                    int length = in.readInt();
+                    if (length < 5 || length > (journalFile.length() - validLength))
+                        break;
+                    byte[] payload = new byte [length];
+                    in.readFully(payload);
+                    crc.reset();
+                    crc.update(payload);
+                    if (in.readInt() != (int)crc.getValue())
+                        break;
+                    records.add(decode(payload));
+                    validLength += 8 + length;
+                    journalLength = validLength;
+                }
+            } finally {
+                fileStream.close();
+            }
+        } catch (EOFException e) {
+            // Stop at the end of the journal or a partly-written record.
+        } catch (IOException e) {
+        }
+        synchronized (this) {
+            numRecords = records.size();
+        }
+        return records;
+    }
+
+    private static byte[] encode(int kind, int index, byte[] data) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + (data != null ? data.length : 0));
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(kind);
+            out.writeInt(index);
+            if (data != null)
+                out.write(data);
+            out.flush();
+        } catch (IOException e) {
+            // Not possible when writing to a byte array.
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Record decode(byte[] payload) {
+        int kind = payload[0];
+        int index = ((payload[1] & 0xFF) << 24) | ((payload[2] & 0xFF) << 16) |
+                    ((payload[3] & 0xFF) << 8) | (payload[4] & 0xFF);
+        byte[] data = null;
+        if (payload.length > 5) {
+            data = new byte [payload.length - 5];
+            System.arraycopy(payload, 5, data, 0, data.length);
+        }
+        return new Record(kind, index, data);
+    }
+
+    /**
+     * Appends a record to the journal in the background.
+     *
+     * @param kind the kind of change, from TvBookmarkChange
+     * @param index the position of the bookmark that was changed, or -1
+     * @param data the XML for the bookmark or tick, or null
+     */
+    public synchronized void append(int kind, int index, byte[] data) {
+        pending.add(encode(kind, index, data));
+        ++numRecords;
+        if (numRecords >= COMPACT_RECORDS)
+            compact();
+        else
+            scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            getWriter().execute(new Runnable() {
+                public void run() {
+                    flush();
+                }
+            });
+        }
+    }
+
+    private void flush() {
+        List<byte[]> records;
+        long recordGeneration;
+        synchronized (this) {
+            records = pending;
+            pending = new ArrayList<byte[]>();
+            flushScheduled = false;
+            recordGeneration = generation;
+        }
+        if (records.isEmpty())
+            return;
+        try {
+            // Start a new journal if there is none yet for this generation.
+            // Otherwise cut off anything after the last record that was
+            // written successfully, and append to it.
+            RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                if (journalLength == 0) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeLong(recordGeneration);
+                }
+                CRC32 crc = new CRC32();
+                for (byte[] payload: records) {
+                    crc.reset();
+                    crc.update(payload);
+                    out.writeInt(payload.length);
+                    out.write(payload);
+                    out.writeInt((int)crc.getValue());
+                }
+                out.flush();
+                raf.setLength(journalLength);
+                raf.seek(journalLength);
+                raf.write(bytes.toByteArray());
+                raf.getFD().sync();
+                journalLength += bytes.size();
+                writeFailed = false;
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            // Keep the records for the next attempt, and try to write
+            // everything out as a new bookmarks file instead.
+            synchronized (this) {
+                records.addAll(pending);
+                pending = records;
+            }
+            writeFailed = true;
+            compact();
+        }
+    }
+
+    /**
+     * Starts a new generation of the bookmarks file.  This must be called
+     * by the snapshot while the bookmarks and ticks are locked, as the
+     * records that have not been written yet are covered by the snapshot.
+     * They are set aside until the new bookmarks file has been written,
+     * and go back into the old journal if it cannot be.
+     *
+     * @return the generation number to write to the new bookmarks file
+     */
+    public synchronized long startGeneration() {
+        compacting = pending;
+        numCompacting = numRecords;
+        pending = new ArrayList<byte[]>();
+        numRecords = 0;
+        return generation + 1;
+    }
+
+    /**
+     * Compacts the journal in the background by writing a new bookmarks
+     * file and starting a new journal.
+     */
+    public synchronized void compact() {
+        if (compactScheduled)
+            return;
+        compactScheduled = true;
+        getWriter().execute(new Runnable() {
+            public void run() {
+                byte[] data;
+                try {
+                    data = snapshot.call();
+                } catch (Exception e) {
+                    data = null;
+                }
+                synchronized (TvBookmarkJournal.this) {
+                    compactScheduled = false;
+                }
+                if (data != null)
+                    writeSnapshot(data);
+                else
+                    snapshotFailed();
+            }
+        });
+    }
+
+    private void writeSnapshot(byte[] data) {
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            FileOutputStream fileStream = new FileOutputStream(tempFile);
+            try {
+                fileStream.write(data);
+                fileStream.getFD().sync();
+            } finally {
+                fileStream.close();
+            }
+        } catch (IOException e) {
+            tempFile.delete();
+            snapshotFailed();
+            return;
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            snapshotFailed();
+            return;
+        }
+
+        // The old journal is now part of the bookmarks file, so the
+        // records from here on go into a new journal.
+        synchronized (this) {
+            ++generation;
+            compacting = null;
+        }
+        journalFile.delete();
+        journalLength = 0;
+        writeFailed = false;
+    }
+
+    private void snapshotFailed() {
+        // Put the records that the snapshot covered back in front of the
+        // ones that arrived since, and keep using the old journal.  Try to
+        // compact again on the next change.
+        synchronized (this) {
+            if (compacting == null)
+                return;     // The snapshot no longer applied.
+            compacting.addAll(pending);
+            pending = compacting;
+            numRecords = Math.max(numCompacting + numRecords, COMPACT_RECORDS - 1);
+            compacting = null;
+
+            // Don't go straight back to the journal if that is what failed,
+            // but do try it again on the next change.
+            if (!writeFailed && !pending.isEmpty())
+                scheduleFlush();
+            writeFailed = false;
+        }
+    }
+}
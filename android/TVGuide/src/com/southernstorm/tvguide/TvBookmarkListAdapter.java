@@ -114,7 +114,11 @@ public class TvBookmarkListAdapter implements ListAdapter, TvBookmarkChangedList
         return true;
     }
 
-    public void bookmarksChanged() {
+    public void bookmarksChanged(TvBookmarkChange change) {
+        refresh();
+    }
+
+    private void refresh() {
         bookmarks = new ArrayList<TvBookmark>();
         bookmarks.addAll(TvBookmarkManager.getInstance().getBookmarks());
         Collections.sort(bookmarks);
@@ -125,7 +129,7 @@ public class TvBookmarkListAdapter implements ListAdapter, TvBookmarkChangedList
 
     public void attach() {
         TvBookmarkManager.getInstance().addChangedListener(this);
-        bookmarksChanged();
+        refresh();
     }
     
     public void detach() {
@@ -17,15 +17,25 @@
 
 package com.southernstorm.tvguide;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -37,19 +47,43 @@ import android.util.Xml;
 
 /**
  * This class manages the global list of bookmarks and ticks in the TV guide.
+ *
+ * Programmes are matched on background threads by TvProgrammeLoader, so
+ * the methods that match programmes or modify the lists are synchronized.
  */
 public class TvBookmarkManager extends ExternalMediaHandler {
 
     private static TvBookmarkManager instance = null;
+
+    // Programme lists smaller than this are matched on the calling thread.
+    private static final int MIN_BATCH_SIZE = 512;
+
+    // Smallest number of programmes to give to each thread in a batch.
+    private static final int MIN_CHUNK_SIZE = 128;
+
     private List<TvBookmark> bookmarks;
     private List<TvTick> ticks;
+    private TvBookmarkIndex bookmarkIndex;
+    private TvTickIndex tickIndex;
+    private TvBookmarkJournal journal;
+    private Map<TvBookmark, ChannelDays> bookmarkDays;
+    private Map<Integer, int[]> channelDayCounts;
+    private volatile int[] channelDayMasks;
+    private volatile int channelDayGeneration;
     private boolean isLoaded;
+    private int matchGeneration;
+    private MatchResult matchResult;
     private List<TvBookmarkChangedListener> listeners;
     
     private TvBookmarkManager() {
         bookmarks = new ArrayList<TvBookmark>();
         ticks = new ArrayList<TvTick>();
+        tickIndex = new TvTickIndex();
+        bookmarkDays = new IdentityHashMap<TvBookmark, ChannelDays>();
+        channelDayCounts = new HashMap<Integer, int[]>();
+        channelDayMasks = new int [0];
         isLoaded = false;
+        matchResult = new MatchResult();
         listeners = new ArrayList<TvBookmarkChangedListener>();
     }
 
@@ -70,6 +104,8 @@ public class TvBookmarkManager extends ExternalMediaHandler {
         if (!isLoaded && isMediaUsable()) {
             isLoaded = true;
             load();
+            resetChannelDays();
+            notifyChanged(new TvBookmarkChange());
         }
     }
 
@@ -97,9 +133,13 @@ public class TvBookmarkManager extends ExternalMediaHandler {
      * 
      * @param bookmark the bookmark to add
      */
-    public void addBookmark(TvBookmark bookmark) {
+    public synchronized void addBookmark(TvBookmark bookmark) {
         bookmarks.add(bookmark);
-        save();
+        bookmarkIndex = null;
+        addChannelDays(bookmark);
+        publishChannelDays();
+        save(TvBookmarkChange.BOOKMARK_ADDED, -1, bookmark, null);
+        notifyChanged(new TvBookmarkChange(TvBookmarkChange.BOOKMARK_ADDED, bookmark));
     }
 
     /**
@@ -108,11 +148,15 @@ public class TvBookmarkManager extends ExternalMediaHandler {
      * 
      * @param bookmark the bookmark to remove
      */
-    public void removeBookmark(TvBookmark bookmark) {
+    public synchronized void removeBookmark(TvBookmark bookmark) {
         for (int index = 0; index < bookmarks.size(); ++index) {
             if (bookmarks.get(index) == bookmark) {
                 bookmarks.remove(index);
-                save();
+                bookmarkIndex = null;
+                removeChannelDays(bookmark);
+                publishChannelDays();
+                save(TvBookmarkChange.BOOKMARK_REMOVED, index, null, null);
+                notifyChanged(new TvBookmarkChange(TvBookmarkChange.BOOKMARK_REMOVED, bookmark));
                 break;
             }
         }
@@ -123,8 +167,18 @@ public class TvBookmarkManager extends ExternalMediaHandler {
      * 
      * @param bookmark the bookmark
      */
-    public void updateBookmark(TvBookmark bookmark) {
-        save();
+    public synchronized void updateBookmark(TvBookmark bookmark) {
+        bookmarkIndex = null;
+        removeChannelDays(bookmark);
+        addChannelDays(bookmark);
+        publishChannelDays();
+        for (int index = 0; index < bookmarks.size(); ++index) {
+            if (bookmarks.get(index) == bookmark) {
+                save(TvBookmarkChange.BOOKMARK_UPDATED, index, bookmark, null);
+                break;
+            }
+        }
+        notifyChanged(new TvBookmarkChange(TvBookmarkChange.BOOKMARK_UPDATED, bookmark));
     }
     
     /**
@@ -156,9 +210,11 @@ public class TvBookmarkManager extends ExternalMediaHandler {
      * 
      * @param tick the tick object to add
      */
-    public void addTick(TvTick tick) {
+    public synchronized void addTick(TvTick tick) {
         ticks.add(tick);
-        save();
+        tickIndex.add(tick);
+        save(TvBookmarkChange.TICK_ADDED, -1, null, tick);
+        notifyChanged(new TvBookmarkChange(TvBookmarkChange.TICK_ADDED, tick));
     }
     
     /**
@@ -167,11 +223,12 @@ public class TvBookmarkManager extends ExternalMediaHandler {
      * 
      * @param tick the tick object to remove
      */
-    public void removeTick(TvTick tick) {
+    public synchronized void removeTick(TvTick tick) {
         for (int index = 0; index < ticks.size(); ++index) {
             if (ticks.get(index).equals(tick)) {
-                ticks.remove(index);
-                save();
+                tickIndex.remove(ticks.remove(index));
+                save(TvBookmarkChange.TICK_REMOVED, -1, null, tick);
+                notifyChanged(new TvBookmarkChange(TvBookmarkChange.TICK_REMOVED, tick));
                 break;
             }
         }
@@ -189,86 +246,218 @@ public class TvBookmarkManager extends ExternalMediaHandler {
     }
 
     /**
-     * Loads the bookmarks from external SD card storage.
+     * Loads the bookmarks from external SD card storage, and then
+     * replays the changes from the journal on top of them.
      */
     private void load() {
         bookmarks.clear();
         ticks.clear();
+        tickIndex.clear();
+        bookmarkIndex = null;
         File file = getBookmarksFile();
-        if (!file.exists()) {
-            // The file doesn't exist on the SD card - create it for the first time.
-            save();
-            return;
+        long generation = 0;
+        if (file.exists()) {
+            try {
+                FileInputStream fileStream = new FileInputStream(file);
+                try {
+                    generation = loadFromXml(fileStream, bookmarks, ticks);
+                } finally {
+                    fileStream.close();
+                }
+            } catch (IOException e) {
+            }
         }
+        JournalSnapshot snapshot = new JournalSnapshot();
+        snapshot.owner = new TvBookmarkJournal(file, generation, snapshot);
+        List<TvBookmarkJournal.Record> records = snapshot.owner.read();
+        for (TvBookmarkJournal.Record record: records)
+            replay(record);
+        journal = snapshot.owner;
+
+        // Drop the ticks that have expired.
         Calendar today = new GregorianCalendar();
+        for (int index = ticks.size() - 1; index >= 0; --index) {
+            TvTick tick = ticks.get(index);
+            long diff = (today.getTimeInMillis() - tick.getTimestamp().getTimeInMillis());
+            if (diff >= TvTickIndex.TICK_LIFETIME)
+                ticks.remove(index);
+        }
+        for (TvTick tick: ticks)
+            tickIndex.add(tick);
+
+        // The file doesn't exist on the SD card - create it for the first time.
+        // Otherwise fold the journal into it.
+        if (!file.exists() || !records.isEmpty())
+            journal.compact();
+    }
+
+    /**
+     * Writes out the bookmarks file when the journal is compacted.
+     */
+    private class JournalSnapshot implements Callable<byte[]> {
+        public TvBookmarkJournal owner;
+
+        public byte[] call() {
+            synchronized (TvBookmarkManager.this) {
+                if (journal != owner)
+                    return null;    // The bookmarks have been reloaded since.
+                return saveToXml(owner.startGeneration());
+            }
+        }
+    }
+
+    /**
+     * Loads bookmarks and ticks from an XML stream.
+     * 
+     * @param stream the stream to load from
+     * @param bookmarkList the list to add the bookmarks to
+     * @param tickList the list to add the ticks to
+     * @return the generation number of the journal that goes with the stream
+     */
+    private static long loadFromXml(InputStream stream, List<TvBookmark> bookmarkList, List<TvTick> tickList) {
+        long generation = 0;
         try {
-            FileInputStream fileStream = new FileInputStream(file);
-            try {
-                XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
-                XmlPullParser parser = factory.newPullParser();
-                parser.setInput(fileStream, null);
-                int eventType = parser.getEventType();
-                while (eventType != XmlPullParser.END_DOCUMENT) {
-                    if (eventType == XmlPullParser.START_TAG &&
-                            parser.getName().equals("bookmark")) {
-                        // Parse the contents of a <bookmark> element.
-                        TvBookmark bookmark = new TvBookmark();
-                        bookmark.loadFromXml(parser);
-                        bookmarks.add(bookmark);
-                        eventType = parser.getEventType();
-                    } else if (eventType == XmlPullParser.START_TAG &&
-                                parser.getName().equals("tick")) {
-                        // Parse the contents of a <tick> element.
-                        TvTick tick = new TvTick();
-                        tick.loadFromXml(parser);
-                        long diff = (today.getTimeInMillis() - tick.getTimestamp().getTimeInMillis());
-                        if (diff < 30 * 24 * 60 * 60 * 1000) // ticks expire after 30 days
-                            ticks.add(tick);
-                        eventType = parser.getEventType();
-                    } else {
-                        // Skip unknown element.
-                        eventType = parser.next();
+            XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+            XmlPullParser parser = factory.newPullParser();
+            parser.setInput(stream, null);
+            int eventType = parser.getEventType();
+            while (eventType != XmlPullParser.END_DOCUMENT) {
+                if (eventType == XmlPullParser.START_TAG &&
+                        parser.getName().equals("bookmark")) {
+                    // Parse the contents of a <bookmark> element.
+                    TvBookmark bookmark = new TvBookmark();
+                    bookmark.loadFromXml(parser);
+                    bookmarkList.add(bookmark);
+                    eventType = parser.getEventType();
+                } else if (eventType == XmlPullParser.START_TAG &&
+                            parser.getName().equals("tick")) {
+                    // Parse the contents of a <tick> element.
+                    TvTick tick = new TvTick();
+                    tick.loadFromXml(parser);
+                    tickList.add(tick);
+                    eventType = parser.getEventType();
+                } else if (eventType == XmlPullParser.START_TAG &&
+                            parser.getName().equals("bookmarks")) {
+                    String value = parser.getAttributeValue(null, "generation");
+                    if (value != null) {
+                        try {
+                            generation = Long.parseLong(value);
+                        } catch (NumberFormatException e) {
+                        }
                     }
+                    eventType = parser.next();
+                } else {
+                    // Skip unknown element.
+                    eventType = parser.next();
                 }
-            } catch (XmlPullParserException e) {
-                // Ignore - just stop parsing at the first error.
-            } catch (IOException e) {
-            } finally {
-                fileStream.close();
             }
+        } catch (XmlPullParserException e) {
+            // Ignore - just stop parsing at the first error.
         } catch (IOException e) {
         }
+        return generation;
     }
 
     /**
-     * Saves the bookmarks to external SD card storage.
+     * Applies a change from the journal to the bookmarks and ticks.
+     * 
+     * @param record the journal record
      */
-    private void save() {
-        if (!isMediaUsable())
-            return;
-        File file = getBookmarksFile();
+    private void replay(TvBookmarkJournal.Record record) {
+        List<TvBookmark> bookmarkList = new ArrayList<TvBookmark>();
+        List<TvTick> tickList = new ArrayList<TvTick>();
+        if (record.data != null)
+            loadFromXml(new ByteArrayInputStream(record.data), bookmarkList, tickList);
+        switch (record.kind) {
+        case TvBookmarkChange.BOOKMARK_ADDED:
+            if (bookmarkList.size() == 1)
+                bookmarks.add(bookmarkList.get(0));
+            break;
+        case TvBookmarkChange.BOOKMARK_UPDATED:
+            if (bookmarkList.size() == 1 && record.index >= 0 && record.index < bookmarks.size())
+                bookmarks.set(record.index, bookmarkList.get(0));
+            break;
+        case TvBookmarkChange.BOOKMARK_REMOVED:
+            if (record.index >= 0 && record.index < bookmarks.size())
+                bookmarks.remove(record.index);
+            break;
+        case TvBookmarkChange.TICK_ADDED:
+            if (tickList.size() == 1)
+                ticks.add(tickList.get(0));
+            break;
+        case TvBookmarkChange.TICK_REMOVED:
+            if (tickList.size() == 1) {
+                for (int index = 0; index < ticks.size(); ++index) {
+                    if (ticks.get(index).equals(tickList.get(0))) {
+                        ticks.remove(index);
+                        break;
+                    }
+                }
+            }
+            break;
+        }
+    }
+
+    /**
+     * Saves the bookmarks and ticks to an XML document.
+     * 
+     * @param generation the generation number of the journal that goes with the document
+     * @return the bytes of the XML document
+     */
+    private byte[] saveToXml(long generation) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
         try {
-            FileOutputStream fileStream = new FileOutputStream(file);
             XmlSerializer serializer = Xml.newSerializer();
-            serializer.setOutput(fileStream, "UTF-8");
+            serializer.setOutput(stream, "UTF-8");
             serializer.startDocument(null, Boolean.valueOf(true));
             serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
             serializer.startTag(null, "bookmarks");
             serializer.attribute(null, "service", "http://xml.oztivo.net/xmltv/datalist.xml.gz"); // TODO
+            serializer.attribute(null, "generation", Long.toString(generation));
             for (TvBookmark bookmark: bookmarks)
                 bookmark.saveToXml(serializer);
             for (TvTick tick: ticks)
                 tick.saveToXml(serializer);
             serializer.endTag(null, "bookmarks");
             serializer.endDocument();
-            fileStream.close();
         } catch (IOException e) {
+            return null;
+        }
+        return stream.toByteArray();
+    }
+
+    /**
+     * Records a change to the bookmarks or ticks in the journal.
+     * 
+     * @param kind the kind of change, from TvBookmarkChange
+     * @param index the position of the bookmark that was changed, or -1
+     * @param bookmark the new bookmark details, or null
+     * @param tick the tick that was added or removed, or null
+     */
+    private void save(int kind, int index, TvBookmark bookmark, TvTick tick) {
+        if (!isMediaUsable() || journal == null)
+            return;
+        byte[] data = null;
+        if (bookmark != null || tick != null) {
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            try {
+                XmlSerializer serializer = Xml.newSerializer();
+                serializer.setOutput(stream, "UTF-8");
+                if (bookmark != null)
+                    bookmark.saveToXml(serializer);
+                else
+                    tick.saveToXml(serializer);
+                serializer.endDocument();
+            } catch (IOException e) {
+                return;
+            }
+            data = stream.toByteArray();
         }
-        notifyChanged();
+        journal.append(kind, index, data);
     }
 
     @Override
-    protected void mediaUsableChanged() {
+    protected synchronized void mediaUsableChanged() {
         if (isMediaUsable()) {
             isLoaded = true;
             load();
@@ -276,13 +465,20 @@ public class TvBookmarkManager extends ExternalMediaHandler {
             isLoaded = false;
             bookmarks.clear();
             ticks.clear();
+            tickIndex.clear();
+            bookmarkIndex = null;
+            journal = null;
         }
-        notifyChanged();
+        resetChannelDays();
+        notifyChanged(new TvBookmarkChange());
     }
     
-    private void notifyChanged() {
+    private void notifyChanged(TvBookmarkChange change) {
+        synchronized (this) {
+            ++matchGeneration;
+        }
         for (TvBookmarkChangedListener listener: listeners)
-            listener.bookmarksChanged();
+            listener.bookmarksChanged(change);
     }
 
     public void addChangedListener(TvBookmarkChangedListener listener) {
@@ -293,49 +489,83 @@ public class TvBookmarkManager extends ExternalMediaHandler {
         listeners.remove(listener);
     }
     
+    /**
+     * Drops ticks from the list once they are old enough to expire.  The
+     * bookmarks file is not rewritten; the expired ticks will be left
+     * out the next time it is saved.
+     */
+    private void expireTicks() {
+        long now = System.currentTimeMillis();
+        TvTick tick;
+        while ((tick = tickIndex.expireNext(now)) != null) {
+            for (int index = 0; index < ticks.size(); ++index) {
+                if (ticks.get(index) == tick) {
+                    ticks.remove(index);
+                    ++matchGeneration;
+                    break;
+                }
+            }
+        }
+    }
+
     /**
      * Match a programme against the bookmarks and ticks in this manager.
      * 
      * @param prog the programme
      */
-    public void matchProgramme(TvProgramme prog) {
-        TvBookmarkMatch result = TvBookmarkMatch.NoMatch;
-        TvBookmark bookmark = null;
-        
-        // Check the list of ticked programmes first as ticking takes
+    public synchronized void matchProgramme(TvProgramme prog) {
+        // Check the ticked programmes first as ticking takes
         // precedence over bookmark matching.
-        // TODO: tick indexing
-        for (TvTick tick: ticks) {
-            if (tick.match(prog)) {
-                prog.setBookmark(null, TvBookmarkMatch.TickMatch);
-                return;
-            }
+        expireTicks();
+        if (tickIndex.match(prog)) {
+            prog.setBookmark(null, TvBookmarkMatch.TickMatch);
+            return;
         }
         
-        // Look for a bookmark match.
-        // TODO: bookmark indexing
-        List<TvBookmark> candidates = bookmarks;
-        for (TvBookmark bm: candidates) {
-            TvBookmarkMatch match = bm.match(prog);
-            if (match != TvBookmarkMatch.NoMatch) {
-                if (match == TvBookmarkMatch.ShouldMatch) {
-                    if (result != TvBookmarkMatch.TitleMatch) {
+        // Look for a bookmark match.  Only the bookmarks that share the
+        // programme's title or time slot need to be checked.
+        if (bookmarkIndex == null)
+            bookmarkIndex = new TvBookmarkIndex(bookmarks);
+        TvProgrammeMatchKey key = prog.getMatchKey();
+        matchResult.choose(key, bookmarkIndex.candidates(key));
+
+        // Update the programme's bookmark details.
+        prog.setBookmark(matchResult.bookmark, matchResult.match);
+    }
+
+    /**
+     * The bookmark chosen for a programme, out of the candidates that
+     * the index found for it.
+     */
+    private static class MatchResult {
+        public TvBookmark bookmark;
+        public TvBookmarkMatch match;
+
+        public void choose(TvProgrammeMatchKey key, List<TvBookmarkMatcher> candidates) {
+            TvBookmarkMatch result = TvBookmarkMatch.NoMatch;
+            TvBookmark bookmark = null;
+            for (TvBookmarkMatcher matcher: candidates) {
+                TvBookmark bm = matcher.getBookmark();
+                TvBookmarkMatch match = matcher.match(key);
+                if (match != TvBookmarkMatch.NoMatch) {
+                    if (match == TvBookmarkMatch.ShouldMatch) {
+                        if (result != TvBookmarkMatch.TitleMatch) {
+                            bookmark = bm;
+                            result = TvBookmarkMatch.ShouldMatch;
+                        }
+                    } else if (match != TvBookmarkMatch.TitleMatch) {
                         bookmark = bm;
-                        result = TvBookmarkMatch.ShouldMatch;
+                        result = match;
+                        break;
+                    } else {
+                        bookmark = bm;
+                        result = TvBookmarkMatch.TitleMatch;
                     }
-                } else if (match != TvBookmarkMatch.TitleMatch) {
-                    bookmark = bm;
-                    result = match;
-                    break;
-                } else {
-                    bookmark = bm;
-                    result = TvBookmarkMatch.TitleMatch;
                 }
             }
+            this.bookmark = bookmark;
+            this.match = result;
         }
-
-        // Update the programme's bookmark details.
-        prog.setBookmark(bookmark, result);
     }
     
     /**
@@ -343,11 +573,249 @@ public class TvBookmarkManager extends ExternalMediaHandler {
      * 
      * @param programmes the list of programmes
      */
-    public void matchProgrammes(List<TvProgramme> programmes) {
+    public synchronized void matchProgrammes(List<TvProgramme> programmes) {
         for (TvProgramme prog: programmes)
             matchProgramme(prog);
     }
     
+    private static ExecutorService matchPool = null;
+
+    private static synchronized ExecutorService getMatchPool() {
+        if (matchPool == null) {
+            matchPool = Executors.newFixedThreadPool
+                (Runtime.getRuntime().availableProcessors(), new TvBackgroundThreadFactory("TvBookmarkMatcher"));
+        }
+        return matchPool;
+    }
+
+    /**
+     * Match a large list of programmes against the bookmarks and ticks in
+     * this manager, spreading the work over the available processors.
+     * The programmes end up with the same matches as matchProgrammes().
+     * 
+     * The manager is only locked while the bookmarks and ticks are copied
+     * and while the results are written back, so other threads can match
+     * programmes or modify the lists in the meantime.  If the lists are
+     * modified, then the programmes are matched again on this thread.
+     * This blocks until every programme has been matched, so it should
+     * not be called on the UI thread.
+     * 
+     * @param programmes the list of programmes
+     */
+    public void matchProgrammesInParallel(final List<TvProgramme> programmes) {
+        int size = programmes.size();
+        int numChunks = Math.min(Runtime.getRuntime().availableProcessors(), size / MIN_CHUNK_SIZE);
+        if (size < MIN_BATCH_SIZE || numChunks < 2) {
+            matchProgrammes(programmes);
+            return;
+        }
+
+        // Take a snapshot of the bookmarks and ticks.  The bookmark index
+        // is never modified once built, only replaced, so it can be shared.
+        final TvBookmarkIndex index;
+        final List<TvTick> tickList;
+        int generation;
+        synchronized (this) {
+            expireTicks();
+            if (bookmarkIndex == null)
+                bookmarkIndex = new TvBookmarkIndex(bookmarks);
+            index = bookmarkIndex;
+            tickList = new ArrayList<TvTick>(ticks);
+            generation = matchGeneration;
+        }
+
+        // Match contiguous chunks of the list on the pool's threads.
+        final TvBookmark[] matchedBookmarks = new TvBookmark [size];
+        final TvBookmarkMatch[] matches = new TvBookmarkMatch [size];
+        List<Future<?>> futures = new ArrayList<Future<?>>(numChunks);
+        for (int chunk = 0; chunk < numChunks; ++chunk) {
+            final int first = (int)((long)size * chunk / numChunks);
+            final int last = (int)((long)size * (chunk + 1) / numChunks);
+            futures.add(getMatchPool().submit(new Runnable() {
+                public void run() {
+                    TvBookmarkIndex chunkIndex = index.copyForThread();
+                    TvTickIndex chunkTicks = new TvTickIndex();
+                    for (TvTick tick: tickList)
+                        chunkTicks.add(tick);
+                    MatchResult result = new MatchResult();
+                    for (int posn = first; posn < last; ++posn) {
+                        TvProgramme prog = programmes.get(posn);
+                        if (chunkTicks.match(prog)) {
+                            matches[posn] = TvBookmarkMatch.TickMatch;
+                        } else {
+                            TvProgrammeMatchKey key = prog.getMatchKey();
+                            result.choose(key, chunkIndex.candidates(key));
+                            matchedBookmarks[posn] = result.bookmark;
+                            matches[posn] = result.match;
+                        }
+                    }
+                }
+            }));
+        }
+        boolean ok = true;
+        for (Future<?> future: futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                ok = false;
+            } catch (ExecutionException e) {
+                ok = false;
+            }
+        }
+
+        // Write the results back, unless the bookmarks or ticks changed
+        // while the programmes were being matched.
+        synchronized (this) {
+            expireTicks();
+            if (!ok || matchGeneration != generation) {
+                matchProgrammes(programmes);
+                return;
+            }
+            for (int posn = 0; posn < size; ++posn)
+                programmes.get(posn).setBookmark(matchedBookmarks[posn], matches[posn]);
+        }
+    }
+
+    /**
+     * Re-match the programmes in a list that could be affected by a change
+     * to the bookmarks or ticks in this manager.
+     * 
+     * @param programmes the list of programmes
+     * @param change the change that was made
+     * @return the positions of the programmes whose match changed
+     */
+    public synchronized List<Integer> matchChangedProgrammes(List<TvProgramme> programmes, TvBookmarkChange change) {
+        List<Integer> changed = new ArrayList<Integer>();
+        for (int index = 0; index < programmes.size(); ++index) {
+            TvProgramme prog = programmes.get(index);
+            if (!change.affects(prog))
+                continue;
+            TvBookmark oldBookmark = prog.getBookmark();
+            TvBookmarkMatch oldMatch = prog.getBookmarkMatch();
+            matchProgramme(prog);
+            if (prog.getBookmark() != oldBookmark || prog.getBookmarkMatch() != oldMatch)
+                changed.add(Integer.valueOf(index));
+        }
+        return changed;
+    }
+
+    /**
+     * Days of the week that a bookmark highlights on its channel.
+     */
+    private static class ChannelDays {
+        public final Integer channel;
+        public final int weekdays;
+
+        public ChannelDays(Integer channel, int weekdays) {
+            this.channel = channel;
+            this.weekdays = weekdays;
+        }
+    }
+
+    /**
+     * Gets the weekdays on which a bookmark's programme is on its channel,
+     * as a mask of (1 << Calendar.SUNDAY) to (1 << Calendar.SATURDAY).
+     * Programmes before 6:00 AM belong to the previous day's listing.
+     */
+    private static int weekdaysForBookmark(TvBookmark bookmark) {
+        if (bookmark.getChannelId() == null || bookmark.getAnyTime() || !bookmark.isOnAir())
+            return 0;
+        int mask = bookmark.getDayOfWeekMask();
+        int hour = bookmark.getStartTime() / (60 * 60);
+        int weekdays = 0;
+        for (int weekday = Calendar.SUNDAY; weekday <= Calendar.SATURDAY; ++weekday) {
+            int day = weekday;
+            if (hour < 6)
+                day = (weekday == Calendar.SATURDAY ? Calendar.SUNDAY : weekday + 1);
+            if ((mask & TvBookmark.getMaskForDay(day)) != 0)
+                weekdays |= 1 << weekday;
+        }
+        return weekdays;
+    }
+
+    private void addChannelDays(TvBookmark bookmark) {
+        int weekdays = weekdaysForBookmark(bookmark);
+        if (weekdays == 0)
+            return;
+        Integer channel = Integer.valueOf(bookmark.getChannelRegistryId());
+        bookmarkDays.put(bookmark, new ChannelDays(channel, weekdays));
+        int[] counts = channelDayCounts.get(channel);
+        if (counts == null) {
+            counts = new int [Calendar.SATURDAY + 1];
+            channelDayCounts.put(channel, counts);
+        }
+        for (int weekday = Calendar.SUNDAY; weekday <= Calendar.SATURDAY; ++weekday) {
+            if ((weekdays & (1 << weekday)) != 0)
+                ++(counts[weekday]);
+        }
+    }
+
+    private void removeChannelDays(TvBookmark bookmark) {
+        // Use the days that were recorded for the bookmark, as its
+        // definition may have changed since.
+        ChannelDays days = bookmarkDays.remove(bookmark);
+        if (days == null)
+            return;
+        int[] counts = channelDayCounts.get(days.channel);
+        for (int weekday = Calendar.SUNDAY; weekday <= Calendar.SATURDAY; ++weekday) {
+            if ((days.weekdays & (1 << weekday)) != 0)
+                --(counts[weekday]);
+        }
+    }
+
+    private void resetChannelDays() {
+        bookmarkDays.clear();
+        channelDayCounts.clear();
+        for (TvBookmark bookmark: bookmarks)
+            addChannelDays(bookmark);
+        publishChannelDays();
+    }
+
+    /**
+     * Publishes the per-channel weekday masks for the channel list to read
+     * without taking the lock, as matching may hold it for some time.
+     */
+    private void publishChannelDays() {
+        int[] masks = new int [TvChannelRegistry.getInstance().size()];
+        for (Map.Entry<Integer, int[]> entry: channelDayCounts.entrySet()) {
+            int[] counts = entry.getValue();
+            int mask = 0;
+            for (int weekday = Calendar.SUNDAY; weekday <= Calendar.SATURDAY; ++weekday) {
+                if (counts[weekday] > 0)
+                    mask |= 1 << weekday;
+            }
+            masks[entry.getKey().intValue()] = mask;
+        }
+        channelDayMasks = masks;
+        ++channelDayGeneration;
+    }
+
+    /**
+     * Gets the weekdays that have on-air bookmarks on a specific channel.
+     * The result is cached on the channel until the bookmarks change.
+     * 
+     * Note: bookmarks for "any time" or "any channel" are ignored.
+     * 
+     * @param channel the channel to check
+     * @return a mask of (1 << Calendar.SUNDAY) to (1 << Calendar.SATURDAY)
+     */
+    public int getBookmarkDays(TvChannel channel) {
+        int generation = channelDayGeneration;
+        int[] same = TvChannelRegistry.getInstance().sameChannels(channel.getRegistryId());
+        if (channel.getBookmarkDaysGeneration() == generation &&
+                channel.getBookmarkDaysSiblings() == same.length)
+            return channel.getBookmarkDays();
+        int[] masks = channelDayMasks;
+        int weekdays = 0;
+        for (int index = 0; index < same.length; ++index) {
+            if (same[index] < masks.length)
+                weekdays |= masks[same[index]];
+        }
+        channel.setBookmarkDays(weekdays, generation, same.length);
+        return weekdays;
+    }
+
     /**
      * Determine if there are on-air bookmarks for a specific channel and day.
      * 
@@ -358,21 +826,6 @@ public class TvBookmarkManager extends ExternalMediaHandler {
      * @return true if there are bookmarks, false otherwise
      */
     public boolean haveBookmarksForDay(TvChannel channel, int weekday) {
-        int maskToday = TvBookmark.getMaskForDay(weekday);
-        int maskTomorrow = TvBookmark.getMaskForDay((weekday == Calendar.SATURDAY ? Calendar.SUNDAY : weekday + 1));
-        for (TvBookmark bookmark: bookmarks) {
-            if (!channel.isSameChannel(bookmark.getChannelId()))
-                continue;
-            if (bookmark.getAnyTime())
-                continue;
-            int hour = bookmark.getStartTime() / (60 * 60);
-            if (hour < 6 && (bookmark.getDayOfWeekMask() & maskTomorrow) == 0)
-                continue;
-            else if (hour >= 6 && (bookmark.getDayOfWeekMask() & maskToday) == 0)
-                continue;
-            if (bookmark.isOnAir())
-                return true;
-        }
-        return false;
+        return (getBookmarkDays(channel) & (1 << weekday)) != 0;
     }
 }
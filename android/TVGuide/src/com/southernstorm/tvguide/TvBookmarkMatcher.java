@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2011,2012  Southern Storm Software, Pty Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.southernstorm.tvguide;
+
+/**
+ * Immutable compiled form of a bookmark, for matching against programmes.
+ *
+ * The bookmark's title is folded and hashed, the day mask is rotated
+ * ahead of time for bookmarks that run past midnight, and the season
+ * and year ranges are turned into bitsets.  match() gives exactly the
+ * same result as TvBookmark.match() did when the matcher was compiled,
+ * but only does integer comparisons against a TvProgrammeMatchKey.
+ */
+public final class TvBookmarkMatcher {
+
+    /**
+     * Set of values from a list of ranges, such as "1-3,5,7+".
+     */
+    private static final class RangeSet {
+        private static final int MAX_BITS = 4096;
+
+        private final int[] ranges;
+        private final long[] bits;
+        private final int limit;
+        private final boolean hasInfinite;
+        private final int infiniteFrom;
+
+        public RangeSet(int[] ranges) {
+            this.ranges = ranges;
+            int max = 0;
+            int from = Integer.MAX_VALUE;
+            for (int index = 0; index < ranges.length; index += 2) {
+                int last = ranges[index + 1];
+                if (last == TvBookmark.RANGE_INFINITE) {
+                    from = Math.min(from, ranges[index]);
+                    max = Math.max(max, ranges[index]);
+                } else {
+                    max = Math.max(max, last);
+                }
+            }
+            hasInfinite = (from != Integer.MAX_VALUE);
+            infiniteFrom = from;
+
+            // Values at or above the limit can only be in an open-ended range.
+            if (max < MAX_BITS) {
+                limit = max + 1;
+                bits = new long [(limit + 63) / 64];
+                for (int index = 0; index < ranges.length; index += 2) {
+                    int first = Math.max(ranges[index], 0);
+                    int last = Math.min(ranges[index + 1], limit - 1);
+                    for (int value = first; value <= last; ++value)
+                        bits[value >> 6] |= 1L << (value & 63);
+                }
+            } else {
+                limit = 0;
+                bits = null;
+            }
+        }
+
+        /**
+         * Determine if a season or year number matches.  A number of
+         * zero means "unknown", which only matches an open-ended range.
+         */
+        public boolean matches(int value) {
+            if (value == 0)
+                return hasInfinite;
+            if (value > 0 && value < limit)
+                return (bits[value >> 6] & (1L << (value & 63))) != 0;
+            if (value >= limit && limit > 0)
+                return hasInfinite && value >= infiniteFrom;
+            for (int index = 0; index < ranges.length; index += 2) {
+                if (value >= ranges[index] && value <= ranges[index + 1])
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    private final TvBookmark bookmark;
+    private final String title;
+    private final int titleHash;
+    private final int channelRegistryId;
+    private final boolean anyTime;
+    private final boolean onAir;
+    private final boolean wraps;
+    private final int startTime;
+    private final int stopTime;
+    private final int dayMask;
+    private final int rotatedDayMask;
+    private final RangeSet seasons;
+    private final RangeSet years;
+
+    public TvBookmarkMatcher(TvBookmark bookmark) {
+        this.bookmark = bookmark;
+        String bookmarkTitle = bookmark.getTitle();
+        title = (bookmarkTitle != null ? TvBookmarkIndex.foldTitle(bookmarkTitle) : null);
+        titleHash = (title != null ? title.hashCode() : 0);
+        channelRegistryId = bookmark.getChannelRegistryId();
+        anyTime = bookmark.getAnyTime();
+        onAir = bookmark.isOnAir();
+        startTime = bookmark.getStartTime();
+        stopTime = bookmark.getStopTime();
+        wraps = (startTime >= stopTime);
+        dayMask = bookmark.getDayOfWeekMask();
+
+        // Programmes after midnight are matched against the previous day.
+        rotatedDayMask = ((dayMask << 1) | (dayMask >> 6)) & 0xFE;
+
+        int[] ranges = bookmark.getSeasonRanges();
+        seasons = (ranges != null ? new RangeSet(ranges) : null);
+        ranges = bookmark.getYearRanges();
+        years = (ranges != null ? new RangeSet(ranges) : null);
+    }
+
+    /**
+     * Gets the bookmark that this matcher was compiled from.
+     *
+     * @return the bookmark
+     */
+    public TvBookmark getBookmark() {
+        return bookmark;
+    }
+
+    /**
+     * Gets the folded title of the bookmark.
+     *
+     * @return the folded title, or null if the bookmark has no title
+     */
+    public String getFoldedTitle() {
+        return title;
+    }
+
+    /**
+     * Match a programme against this bookmark.
+     *
+     * @param key the match key for the programme
+     * @return the type of match
+     */
+    public TvBookmarkMatch match(TvProgrammeMatchKey key) {
+        TvBookmarkMatch result = TvBookmarkMatch.FullMatch;
+        boolean should = false;
+
+        if (title == null)
+            return TvBookmarkMatch.NoMatch;
+        boolean sameChannel = (channelRegistryId == TvChannelRegistry.NO_CHANNEL || key.isChannel(channelRegistryId));
+        if (titleHash != key.titleHash || !title.equals(key.title)) {
+            if (!sameChannel)
+                return TvBookmarkMatch.NoMatch;
+            should = true;
+            result = TvBookmarkMatch.ShouldMatch;
+        } else if (!sameChannel) {
+            result = TvBookmarkMatch.TitleMatch;
+        }
+
+        // Check that start and stop times are within the expected range.
+        int start = key.start;
+        int stop = key.stop;
+        int mask = dayMask;
+        if (anyTime) {
+            // If we are matching at any time of day, then don't show
+            // failed matches.  Otherwise everything will show as failed!
+            if (should)
+                return TvBookmarkMatch.NoMatch;
+        } else if (!wraps) {
+            if (start < startTime) {
+                if (stop > startTime)
+                    result = TvBookmarkMatch.Underrun;
+                else
+                    result = TvBookmarkMatch.TitleMatch;
+            } else if (start >= stopTime) {
+                result = TvBookmarkMatch.TitleMatch;
+            } else if (stop < startTime || stop > stopTime) {
+                result = TvBookmarkMatch.Overrun;
+            }
+        } else if (start < stopTime) {
+            // Start time is in tomorrow.
+            mask = rotatedDayMask;
+            if (stop > stopTime)
+                result = TvBookmarkMatch.Overrun;
+        } else if (start < startTime) {
+            if (stop > startTime || stop <= stopTime || stop < start)
+                result = TvBookmarkMatch.Underrun;
+            else
+                result = TvBookmarkMatch.TitleMatch;
+        } else if (stop > stopTime && stop < startTime) {
+            result = TvBookmarkMatch.Overrun;
+        }
+
+        // Validate the weekday.
+        if ((mask & key.weekdayBit) == 0)
+            result = TvBookmarkMatch.TitleMatch;
+
+        // Deal with non-matching bookmarks that cover the same timeslot.
+        if (should) {
+            if (result == TvBookmarkMatch.Underrun || result == TvBookmarkMatch.Overrun)
+                result = TvBookmarkMatch.ShouldMatch;
+            if (result != TvBookmarkMatch.ShouldMatch || !onAir)
+                return TvBookmarkMatch.NoMatch;
+            return result;
+        }
+
+        // Match the season and year numbers.
+        if (result == TvBookmarkMatch.NoMatch)
+            return result;
+        if (seasons != null && !seasons.matches(key.season))
+            return TvBookmarkMatch.NoMatch;
+        if (years != null && !years.matches(key.year))
+            return TvBookmarkMatch.NoMatch;
+        return result;
+    }
+}
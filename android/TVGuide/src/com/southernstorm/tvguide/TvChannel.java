@@ -21,15 +21,25 @@ import java.io.File;
 import java.io.InputStream;
 import java.io.IOException;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.RandomAccess;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlPullParserFactory;
 
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
@@ -37,10 +47,10 @@ import android.os.Bundle;
 public class TvChannel implements Comparable<TvChannel> {
 
     private class DataFor {
-        public FastCalendar date;
+        public TvDayKey date;
         public FastCalendar lastModified;
         
-        public DataFor(FastCalendar date, FastCalendar lastModified) {
+        public DataFor(TvDayKey date, FastCalendar lastModified) {
             this.date = date;
             this.lastModified = lastModified;
         }
@@ -48,6 +58,7 @@ public class TvChannel implements Comparable<TvChannel> {
     
     public static final int NO_NUMBER = 0x7FFFFFFF;
     private String id;
+    private int registryId;
     private String commonId;
     private String name;
     private String region;
@@ -61,8 +72,12 @@ public class TvChannel implements Comparable<TvChannel> {
     private Drawable iconFileDrawable;
     private boolean convertTimezone;
     private ArrayList<String> baseUrls;
-    private Map< Calendar, List<TvProgramme> > programmes;
-    private ArrayList<String> otherChannelsList;
+    private Map< TvDayKey, TvProgramme[] > programmes;
+    private TvProgramme[] timeline;
+    private long[] timelineStarts;
+    private int bookmarkDays;
+    private int bookmarkDaysGeneration = -1;
+    private int bookmarkDaysSiblings;
     private List<DataFor> dataForList;
     
     public static final int NOT_HIDDEN = 0;
@@ -70,24 +85,33 @@ public class TvChannel implements Comparable<TvChannel> {
     public static final int HIDDEN_BY_REGION = 2;
 
     public TvChannel() {
+        this.registryId = TvChannelRegistry.NO_CHANNEL;
         this.primaryChannelNumber = TvChannel.NO_NUMBER;
         this.hiddenState = HIDDEN;
         this.defaultHiddenState = HIDDEN;
         this.iconResource = 0;
         this.baseUrls = new ArrayList<String>();
-        this.programmes = new TreeMap< Calendar, List<TvProgramme> >();
-        this.otherChannelsList = new ArrayList<String>();
+        this.programmes = new HashMap< TvDayKey, TvProgramme[] >();
+        this.timeline = emptyTimeline;
+        this.timelineStarts = emptyTimelineStarts;
         this.dataForList = new ArrayList<DataFor>();
     }
 
     public String getId() { return id; }
-    public void setId(String id) { this.id = id; }
+    public void setId(String id) {
+        this.id = id;
+        this.registryId = TvChannelRegistry.getInstance().register(id);
+        if (commonId != null)
+            TvChannelRegistry.getInstance().joinGroup(registryId, commonId);
+    }
 
-    public String getCommonId() { return commonId; }
-    public void setCommonId(String id) { this.commonId = id; }
+    public int getRegistryId() { return registryId; }
 
-    public List<String> getOtherChannelsList() { return otherChannelsList; }
-    public void setOtherChannelsList(ArrayList<String> list) { this.otherChannelsList = list; }
+    public String getCommonId() { return commonId; }
+    public void setCommonId(String id) {
+        this.commonId = id;
+        TvChannelRegistry.getInstance().joinGroup(registryId, id);
+    }
 
     public String getName() { return name; }
     public void setName(String name) { this.name = name; }
@@ -117,30 +141,22 @@ public class TvChannel implements Comparable<TvChannel> {
     public void setIconSource(String iconSource) { this.iconSource = iconSource; }
     
     public void clearDataFor() { dataForList.clear(); }
-    public void addDataFor(FastCalendar date, FastCalendar lastModified) {
+    public void addDataFor(TvDayKey date, FastCalendar lastModified) {
         dataForList.add(new DataFor(date, lastModified));
     }
     
-    private static boolean equalsDate(FastCalendar c1, Calendar c2) {
-        if (c1.day != c2.get(Calendar.DAY_OF_MONTH))
-            return false;
-        if (c1.month != c2.get(Calendar.MONTH))
-            return false;
-        return c1.year == c2.get(Calendar.YEAR);
-    }
-    
     public boolean hasDataFor() { return !dataForList.isEmpty(); }
-    public boolean hasDataFor(Calendar date) {
+    public boolean hasDataFor(TvDayKey date) {
         for (int index = 0; index < dataForList.size(); ++index) {
-            if (equalsDate(dataForList.get(index).date, date))
+            if (dataForList.get(index).date.equals(date))
                 return true;
         }
         return false;
     }
     
-    public Calendar dayLastModified(Calendar date) {
+    public Calendar dayLastModified(TvDayKey date) {
         for (int index = 0; index < dataForList.size(); ++index) {
-            if (equalsDate(dataForList.get(index).date, date))
+            if (dataForList.get(index).date.equals(date))
                 return dataForList.get(index).lastModified.toCalendar();
         }
         return null;
@@ -220,8 +236,10 @@ public class TvChannel implements Comparable<TvChannel> {
     /**
      * Clears all programmes that were cached for this channel, to save memory.
      */
-    public void clearProgrammes() {
+    public synchronized void clearProgrammes() {
         programmes.clear();
+        timeline = emptyTimeline;
+        timelineStarts = emptyTimelineStarts;
     }
     
     /**
@@ -230,21 +248,82 @@ public class TvChannel implements Comparable<TvChannel> {
      * @param date the date the programmes are for
      * @param stream the input stream
      */
-    public void loadProgrammesFromXml(Calendar date, InputStream stream) {
+    public void loadProgrammesFromXml(TvDayKey date, InputStream stream) {
+        setProgrammes(date, parseProgrammesFromXml(stream));
+    }
+
+    /**
+     * Parses programme details from an XML input stream without adding
+     * them to the programmes that are cached for this channel.
+     *
+     * @param stream the input stream
+     * @return the list of programmes that were parsed
+     */
+    public List<TvProgramme> parseProgrammesFromXml(InputStream stream) {
+        return parseProgrammesFromXml(stream, null, null);
+    }
+
+    /**
+     * Parses programme summaries from an XML input stream without adding
+     * them to the programmes that are cached for this channel.  The long
+     * description details of each programme are fetched from the day's
+     * details later if they are needed.
+     *
+     * @param stream the input stream
+     * @param details the details for the cached XMLTV data that is being parsed
+     * @return the list of programmes that were parsed
+     */
+    public List<TvProgramme> parseProgrammeSummariesFromXml(InputStream stream, TvProgrammeDetails details) {
+        return parseProgrammesFromXml(stream, details, null);
+    }
+
+    /**
+     * Parses programme summaries from an XML input stream, reporting the
+     * programmes to a listener in chunks as they are parsed.
+     *
+     * @param stream the input stream
+     * @param details the details for the cached XMLTV data that is being parsed
+     * @param listener the listener to report chunks of programmes to, or null
+     * @return the list of programmes that were parsed
+     */
+    public List<TvProgramme> parseProgrammeSummariesFromXml(InputStream stream, TvProgrammeDetails details, TvProgrammeParseListener listener) {
+        return parseProgrammesFromXml(stream, details, listener);
+    }
+
+    private static final int PARSE_CHUNK_SIZE = 16;
+
+    private List<TvProgramme> parseProgrammesFromXml(InputStream stream, TvProgrammeDetails details, TvProgrammeParseListener listener) {
         List<TvProgramme> progs = new ArrayList<TvProgramme>();
+        TvProgramme[] parsed = null;
         Utils.clearTimeZone(); // Force the local timezone to be reloaded between XML files just in case.
         try {
-            XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
-            XmlPullParser parser = factory.newPullParser();
+            XmlPullParser parser = new XmltvParser();
             parser.setInput(stream, null);
             int eventType = parser.getEventType();
             while (eventType != XmlPullParser.END_DOCUMENT) {
                 if (eventType == XmlPullParser.START_TAG &&
-                        parser.getName().equals("programme")) {
+                        XmltvParser.getNameCode(parser) == XmltvParser.NAME_PROGRAMME) {
                     // Parse the contents of a <programme> element.
                     TvProgramme prog = new TvProgramme(this);
-                    prog.load(parser, convertTimezone);
+                    if (details != null)
+                        prog.loadSummary(parser, convertTimezone, details, progs.size());
+                    else
+                        prog.load(parser, convertTimezone);
                     progs.add(prog);
+                    if (listener != null) {
+                        // Chunks are reported as views of an array that is only
+                        // appended to, so earlier views stay valid without copying.
+                        int count = progs.size();
+                        if (parsed == null || count > parsed.length) {
+                            TvProgramme[] newParsed = new TvProgramme [count * 2];
+                            if (parsed != null)
+                                System.arraycopy(parsed, 0, newParsed, 0, count - 1);
+                            parsed = newParsed;
+                        }
+                        parsed[count - 1] = prog;
+                        if ((count % PARSE_CHUNK_SIZE) == 0)
+                            listener.programmesParsed(this, details.getDate(), new ProgrammeSlice(parsed, 0, count));
+                    }
                     eventType = parser.getEventType();
                 } else {
                     // Skip unknown element.
@@ -255,7 +334,120 @@ public class TvChannel implements Comparable<TvChannel> {
             // Ignore - just stop parsing at the first error.
         } catch (IOException e) {
         }
-        this.programmes.put(date, progs);
+        return progs;
+    }
+
+    private static ExecutorService dayLoader = null;
+
+    private static synchronized ExecutorService getDayLoader() {
+        if (dayLoader == null) {
+            int threads = Math.max(Runtime.getRuntime().availableProcessors(), 1);
+            dayLoader = Executors.newFixedThreadPool(threads, new TvBackgroundThreadFactory("TvChannel day loader"));
+        }
+        return dayLoader;
+    }
+
+    /**
+     * Loads the programmes for several dates from the cache at once.
+     *
+     * The days are read and parsed concurrently, one per available core,
+     * and the results are then added to this channel in a single step.
+     * This blocks until all of the days have been loaded, so it should
+     * not be called on the UI thread.
+     *
+     * @param dates the dates to load
+     * @return the dates that were not present in the cache
+     */
+    public List<TvDayKey> loadProgrammes(List<TvDayKey> dates) {
+        return loadProgrammes(dates, null);
+    }
+
+    /**
+     * Loads the programmes for several dates from the cache at once,
+     * reporting chunks of programmes to a listener as they are parsed.
+     * Chunks are only reported for days that need to be parsed from the
+     * XMLTV data, and may be reported on any thread.
+     *
+     * @param dates the dates to load
+     * @param listener the listener to report chunks of programmes to, or null
+     * @return the dates that were not present in the cache
+     */
+    public List<TvDayKey> loadProgrammes(List<TvDayKey> dates, final TvProgrammeParseListener listener) {
+        List<TvDayKey> missing = new ArrayList<TvDayKey>();
+        Map< TvDayKey, List<TvProgramme> > loaded = new HashMap< TvDayKey, List<TvProgramme> >();
+        final TvChannelCache cache = TvChannelCache.getInstance();
+        if (dates.size() == 1) {
+            List<TvProgramme> progs = cache.readChannelData(this, dates.get(0), listener);
+            if (progs != null)
+                loaded.put(dates.get(0), progs);
+            else
+                missing.add(dates.get(0));
+        } else {
+            List< Callable< List<TvProgramme> > > tasks = new ArrayList< Callable< List<TvProgramme> > >();
+            for (final TvDayKey date: dates) {
+                tasks.add(new Callable< List<TvProgramme> >() {
+                    public List<TvProgramme> call() {
+                        return cache.readChannelData(TvChannel.this, date, listener);
+                    }
+                });
+            }
+            try {
+                List< Future< List<TvProgramme> > > results = getDayLoader().invokeAll(tasks);
+                for (int index = 0; index < dates.size(); ++index) {
+                    List<TvProgramme> progs;
+                    try {
+                        progs = results.get(index).get();
+                    } catch (ExecutionException e) {
+                        progs = null;
+                    }
+                    if (progs != null)
+                        loaded.put(dates.get(index), progs);
+                    else
+                        missing.add(dates.get(index));
+                }
+            } catch (InterruptedException e) {
+                // Give up on the whole batch.
+                Thread.currentThread().interrupt();
+                missing.clear();
+                missing.addAll(dates);
+                return missing;
+            }
+        }
+        synchronized (this) {
+            boolean replaced = false;
+            for (TvDayKey date: loaded.keySet()) {
+                if (programmes.remove(date) != null)
+                    replaced = true;
+            }
+            if (replaced)
+                rebuildTimeline();
+            for (Map.Entry< TvDayKey, List<TvProgramme> > entry: loaded.entrySet())
+                mergeDay(entry.getKey(), entry.getValue());
+        }
+        return missing;
+    }
+
+    /**
+     * Determine if programmes have been cached for this channel on a specific date.
+     *
+     * @param date the date to check
+     * @return true if programmes are cached, false otherwise
+     */
+    public synchronized boolean hasProgrammes(TvDayKey date) {
+        return programmes.containsKey(date);
+    }
+
+    /**
+     * Sets the programmes that are cached for this channel on a specific date.
+     *
+     * @param date the date the programmes are for
+     * @param progs the list of programmes, or null to forget the date
+     */
+    public synchronized void setProgrammes(TvDayKey date, List<TvProgramme> progs) {
+        if (programmes.remove(date) != null)
+            rebuildTimeline();
+        if (progs != null)
+            mergeDay(date, progs);
     }
     
     /**
@@ -264,56 +456,247 @@ public class TvChannel implements Comparable<TvChannel> {
      * @param date the date to fetch
      * @return the list of programmes, or null if none available
      */
-    public List<TvProgramme> programmesForDay(Calendar date) {
-        Calendar nextDay = (Calendar)date.clone();
-        nextDay.add(Calendar.DAY_OF_MONTH, 1);
-        List<TvProgramme> dayProgs = programmes.get(date);
-        List<TvProgramme> nextDayProgs = programmes.get(nextDay);
-        List<TvProgramme> progs = null;
-        if (dayProgs != null) {
-            int start = 0;
-            while (start < dayProgs.size()) {
-                TvProgramme prog = dayProgs.get(start);
-                Calendar startTime = prog.getStart();
-                if (startTime.get(Calendar.HOUR_OF_DAY) >= 6) {
-                    // It is possible that timezone adjustment has pushed some of the early
-                    // morning programmes into the previous day.
-                    if (startTime.get(Calendar.DAY_OF_MONTH) == date.get(Calendar.DAY_OF_MONTH))
-                        break;
-                    ++start;
-                    continue;
-                }
-                if (prog.getStop().get(Calendar.HOUR_OF_DAY) > 6)
-                    break;
-                if (prog.getStop().get(Calendar.HOUR_OF_DAY) == 6 && prog.getStop().get(Calendar.MINUTE) > 0)
+    public List<TvProgramme> programmesForDay(TvDayKey date) {
+        return programmesForDay(date, true);
+    }
+
+    private static final int SIX_AM = 6 * 60 * 60;
+
+    /**
+     * Gets the list of programmes for a specific day, optionally leaving out
+     * the early morning programmes from the next day's data.
+     * 
+     * The list is a read-only view of the channel's timeline, so it is
+     * cheap to fetch and will not change if more days are loaded later.
+     * 
+     * @param date the date to fetch
+     * @param includeNextDay true to include programmes up to 6:00 AM the next day
+     * @return the list of programmes, or null if none available
+     */
+    public synchronized List<TvProgramme> programmesForDay(TvDayKey date, boolean includeNextDay) {
+        long from = Utils.localToEpoch(date.toLocalTime() + SIX_AM);
+        long to = Utils.localToEpoch(date.addDays(1).toLocalTime() + SIX_AM);
+        if (!includeNextDay) {
+            // Stop at the last programme in the day's own data.
+            TvProgramme[] dayProgs = programmes.get(date);
+            if (dayProgs == null || dayProgs.length == 0)
+                return null;
+            long last = dayProgs[dayProgs.length - 1].getStartSeconds();
+            if (last < to)
+                to = last + 1;
+        }
+
+        // Include the programme that is running at 6:00 AM, unless it
+        // finishes within the first minute.
+        int start = timelineSearch(from);
+        if (start > 0 && timeline[start - 1].getStopSeconds() >= from + 60)
+            --start;
+        int end = timelineSearch(to);
+        if (start >= end)
+            return null;
+        return new ProgrammeSlice(timeline, start, end);
+    }
+
+    /**
+     * Gets the programmes for a specific day from the part of the day's
+     * data that has been parsed so far, without adding them to the channel.
+     * The early morning programmes from the next day's data are left out.
+     *
+     * @param date the date to fetch
+     * @param parsed the programmes parsed so far from the day's data, in file order
+     * @return the list of programmes, or null if none available yet
+     */
+    public static List<TvProgramme> partialProgrammesForDay(TvDayKey date, List<TvProgramme> parsed) {
+        long from = Utils.localToEpoch(date.toLocalTime() + SIX_AM);
+        long to = Utils.localToEpoch(date.addDays(1).toLocalTime() + SIX_AM);
+
+        // Only the early morning programmes need to be skipped at the start,
+        // so scan forwards rather than assuming that the data is sorted.
+        int start = 0;
+        int end = parsed.size();
+        while (start < end && parsed.get(start).getStartSeconds() < from)
+            ++start;
+        if (start > 0 && parsed.get(start - 1).getStopSeconds() >= from + 60)
+            --start;
+        while (end > start && parsed.get(end - 1).getStartSeconds() >= to)
+            --end;
+        if (start >= end)
+            return null;
+        return parsed.subList(start, end);
+    }
+
+    /**
+     * Gets the list of programmes that are on the air at any time in a
+     * specific time window.
+     * 
+     * @param from the start of the window, in seconds since the epoch
+     * @param to the end of the window, in seconds since the epoch
+     * @return the list of programmes, which may be empty
+     */
+    public synchronized List<TvProgramme> programmesBetween(long from, long to) {
+        int start = timelineSearch(from);
+        if (start > 0 && timeline[start - 1].getStopSeconds() > from)
+            --start;
+        int end = timelineSearch(to);
+        if (start >= end)
+            return new ProgrammeSlice(timeline, 0, 0);
+        return new ProgrammeSlice(timeline, start, end);
+    }
+
+    private static final TvProgramme[] emptyTimeline = new TvProgramme [0];
+    private static final long[] emptyTimelineStarts = new long [0];
+
+    /**
+     * Gets the index of the first programme in the timeline that starts
+     * at or after a specific time.
+     */
+    private int timelineSearch(long time) {
+        int low = 0;
+        int high = timelineStarts.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timelineStarts[mid] < time)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Rebuilds the timeline from the programmes of the remaining days,
+     * after a day has been removed.
+     */
+    private void rebuildTimeline() {
+        List<TvDayKey> days = new ArrayList<TvDayKey>(programmes.keySet());
+        Collections.sort(days);
+        timeline = emptyTimeline;
+        timelineStarts = emptyTimelineStarts;
+        for (TvDayKey day: days)
+            mergeDay(day, Arrays.asList(programmes.get(day)));
+    }
+
+    private static final Comparator<TvProgramme> startOrder = new Comparator<TvProgramme>() {
+        public int compare(TvProgramme p1, TvProgramme p2) {
+            long s1 = p1.getStartSeconds();
+            long s2 = p2.getStartSeconds();
+            return (s1 < s2 ? -1 : (s1 > s2 ? 1 : 0));
+        }
+    };
+
+    /**
+     * Merges the programmes for a day into the timeline.  The day must not
+     * already be present in the timeline.
+     *
+     * A programme that crosses midnight appears in the data for both days.
+     * If the timeline already has a programme with the same start time and
+     * title, then the day shares that copy rather than adding its own.
+     * The timeline is replaced rather than modified so that slices which
+     * have already been handed out remain valid.
+     */
+    private void mergeDay(TvDayKey date, List<TvProgramme> progs) {
+        TvProgramme[] dayProgs = progs.toArray(new TvProgramme [progs.size()]);
+        TvProgramme[] sorted = new TvProgramme [dayProgs.length];
+        int numSorted = 0;
+        for (TvProgramme prog: dayProgs) {
+            if (prog.getStartSeconds() != Utils.NO_TIME)
+                sorted[numSorted++] = prog;
+        }
+        Arrays.sort(sorted, 0, numSorted, startOrder);   // Stable, so file order is kept.
+
+        TvProgramme[] oldTimeline = timeline;
+        long[] oldStarts = timelineStarts;
+        TvProgramme[] newTimeline = new TvProgramme [oldTimeline.length + numSorted];
+        int count = 0;
+        int oldIndex = 0;
+        Map<TvProgramme, TvProgramme> shared = null;
+        for (int index = 0; index < numSorted; ++index) {
+            TvProgramme prog = sorted[index];
+            long start = prog.getStartSeconds();
+            while (oldIndex < oldTimeline.length && oldStarts[oldIndex] <= start)
+                newTimeline[count++] = oldTimeline[oldIndex++];
+            TvProgramme existing = null;
+            for (int prev = oldIndex - 1; prev >= 0 && oldStarts[prev] == start; --prev) {
+                if (sameTitle(oldTimeline[prev], prog)) {
+                    existing = oldTimeline[prev];
                     break;
-                ++start;
+                }
             }
-            if (start < dayProgs.size()) {
-                progs = new ArrayList<TvProgramme>();
-                progs.addAll(dayProgs.subList(start, dayProgs.size()));
+            if (existing == null) {
+                newTimeline[count++] = prog;
+            } else {
+                if (shared == null)
+                    shared = new IdentityHashMap<TvProgramme, TvProgramme>();
+                shared.put(prog, existing);
             }
         }
-        if (nextDayProgs != null) {
-            int end = 0;
-            while (end < nextDayProgs.size()) {
-                TvProgramme prog = nextDayProgs.get(end);
-                if (prog.getStart().get(Calendar.HOUR_OF_DAY) >= 6) {
-                    // It is possible that timezone adjustment has pushed some of the early
-                    // morning programmes into the previous day.
-                    if (prog.getStart().get(Calendar.DAY_OF_MONTH) != date.get(Calendar.DAY_OF_MONTH))
-                        break;
-                }
-                ++end;
-            }
-            if (end > 0) {
-                List<TvProgramme> prefix = nextDayProgs.subList(0, end);
-                if (progs == null)
-                    progs = new ArrayList<TvProgramme>();
-                progs.addAll(prefix);
+        while (oldIndex < oldTimeline.length)
+            newTimeline[count++] = oldTimeline[oldIndex++];
+
+        // Only keep references to the timeline's copies for the day itself,
+        // so that the duplicated programmes can be released.
+        if (shared != null) {
+            for (int index = 0; index < dayProgs.length; ++index) {
+                TvProgramme existing = shared.get(dayProgs[index]);
+                if (existing != null)
+                    dayProgs[index] = existing;
             }
         }
-        return progs;
+        programmes.put(date, dayProgs);
+
+        if (count == 0) {
+            timeline = emptyTimeline;
+            timelineStarts = emptyTimelineStarts;
+            return;
+        }
+        if (count < newTimeline.length) {
+            TvProgramme[] trimmed = new TvProgramme [count];
+            System.arraycopy(newTimeline, 0, trimmed, 0, count);
+            newTimeline = trimmed;
+        }
+        long[] newStarts = new long [count];
+        for (int index = 0; index < count; ++index)
+            newStarts[index] = newTimeline[index].getStartSeconds();
+        timeline = newTimeline;
+        timelineStarts = newStarts;
+    }
+
+    private static boolean sameTitle(TvProgramme p1, TvProgramme p2) {
+        String t1 = p1.getTitle();
+        String t2 = p2.getTitle();
+        return (t1 == null ? t2 == null : t1.equals(t2));
+    }
+
+    /**
+     * Read-only view of a range of an array of programmes.  The array
+     * must not be modified within the range while the view is in use.
+     */
+    private static class ProgrammeSlice extends AbstractList<TvProgramme> implements RandomAccess {
+        private final TvProgramme[] timeline;
+        private final int start;
+        private final int end;
+
+        public ProgrammeSlice(TvProgramme[] timeline, int start, int end) {
+            this.timeline = timeline;
+            this.start = start;
+            this.end = end;
+        }
+
+        public TvProgramme get(int index) {
+            if (index < 0 || index >= (end - start))
+                throw new IndexOutOfBoundsException();
+            return timeline[start + index];
+        }
+
+        public int size() {
+            return end - start;
+        }
+
+        public List<TvProgramme> subList(int fromIndex, int toIndex) {
+            if (fromIndex < 0 || toIndex > (end - start) || fromIndex > toIndex)
+                throw new IndexOutOfBoundsException();
+            return new ProgrammeSlice(timeline, start + fromIndex, start + toIndex);
+        }
     }
     
     /**
@@ -339,20 +722,14 @@ public class TvChannel implements Comparable<TvChannel> {
     }
     
     /**
-     * Determine if this channel has a specific identifier, or if this channel
-     * has the same common identifier as another channel with the specific identifier.
+     * Determine if this channel is the same as the channel with a specific
+     * registry identifier, either directly or via the common identifier.
      * 
-     * @param id the channel identifier to check
+     * @param registryId the registry identifier to check
      * @return true if the same channel, false if not
      */
-    public boolean isSameChannel(String id) {
-        if (id == null)
-            return false;
-        if (this.id != null && this.id.equals(id))
-            return true;
-        if (this.commonId == null)
-            return false;
-        return otherChannelsList.contains(id);
+    public boolean isSameChannel(int registryId) {
+        return TvChannelRegistry.getInstance().isSameChannel(this.registryId, registryId);
     }
     
     /**
@@ -366,4 +743,14 @@ public class TvChannel implements Comparable<TvChannel> {
     public boolean haveBookmarksForDay(int weekday) {
         return TvBookmarkManager.getInstance().haveBookmarksForDay(this, weekday);
     }
+
+    // Cached result of TvBookmarkManager.getBookmarkDays() for this channel.
+    int getBookmarkDays() { return bookmarkDays; }
+    int getBookmarkDaysGeneration() { return bookmarkDaysGeneration; }
+    int getBookmarkDaysSiblings() { return bookmarkDaysSiblings; }
+    void setBookmarkDays(int weekdays, int generation, int siblings) {
+        bookmarkDays = weekdays;
+        bookmarkDaysGeneration = generation;
+        bookmarkDaysSiblings = siblings;
+    }
 }
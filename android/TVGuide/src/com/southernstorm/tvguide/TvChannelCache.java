@@ -82,7 +82,6 @@ public class TvChannelCache extends ExternalMediaHandler {
     private Map<String, TvChannel> channels;
     private String region;
     private Map< String, List<String> > regionTree;
-    private Map< String, ArrayList<String> > commonIds;
     private List<TvNetworkListener> networkListeners;
     private List<TvChannelChangedListener> channelListeners;
     private boolean embeddedLoaded = false;
@@ -101,7 +100,6 @@ public class TvChannelCache extends ExternalMediaHandler {
         this.rand = new Random(System.currentTimeMillis());
         this.activeChannels = new ArrayList<TvChannel>();
         this.channels = new TreeMap<String, TvChannel>();
-        this.commonIds = new TreeMap< String, ArrayList<String> >();
         this.regionTree = new TreeMap< String, List<String> >();
         this.networkListeners = new ArrayList<TvNetworkListener>();
         this.channelListeners = new ArrayList<TvChannelChangedListener>();
@@ -305,7 +303,7 @@ public class TvChannelCache extends ExternalMediaHandler {
      * @param date the date corresponding to the requested data
      * @return an input stream, or null if the data is not present
      */
-    public InputStream openChannelData(TvChannel channel, Calendar date) {
+    public InputStream openChannelData(TvChannel channel, TvDayKey date) {
         File file = dataFile(channel, date, ".xml.gz");
         if (file == null || !file.exists())
             return null;
@@ -322,6 +320,131 @@ public class TvChannelCache extends ExternalMediaHandler {
         }
     }
 
+    /**
+     * Loads the programmes for a specific channel and date from the cache.
+     *
+     * @param channel the channel
+     * @param date the date corresponding to the requested data
+     * @return true if the programmes were loaded, false if the data is not present
+     */
+    public boolean loadChannelData(TvChannel channel, TvDayKey date) {
+        List<TvProgramme> programmes = readChannelData(channel, date);
+        if (programmes == null)
+            return false;
+        channel.setProgrammes(date, programmes);
+        return true;
+    }
+
+    /**
+     * Reads the programmes for a specific channel and date from the cache,
+     * without adding them to the channel.  This may be called on any thread.
+     *
+     * The compiled snapshot of the programmes is used if it is up to date
+     * with respect to the XMLTV data file.  The snapshot is memory-mapped
+     * and the programmes are views that decode their fields on demand.
+     * Otherwise the programme summaries are parsed from the XMLTV data,
+     * and the snapshot is compiled in the background to provide the
+     * remaining details.
+     *
+     * @param channel the channel
+     * @param date the date corresponding to the requested data
+     * @return the programmes, or null if the data is not present
+     */
+    public List<TvProgramme> readChannelData(TvChannel channel, TvDayKey date) {
+        return readChannelData(channel, date, null);
+    }
+
+    /**
+     * Reads the programmes for a specific channel and date from the cache,
+     * reporting chunks of programmes to a listener if they have to be
+     * parsed from the XMLTV data.
+     *
+     * @param channel the channel
+     * @param date the date corresponding to the requested data
+     * @param listener the listener to report chunks of programmes to, or null
+     * @return the programmes, or null if the data is not present
+     */
+    public List<TvProgramme> readChannelData(TvChannel channel, TvDayKey date, TvProgrammeParseListener listener) {
+        File file = dataFile(channel, date, ".xml.gz");
+        if (file == null || !file.exists())
+            return null;
+        TvProgrammeSnapshot snapshot = mapChannelSnapshot(channel, date);
+        if (snapshot != null)
+            return snapshot.programmes(channel);
+
+        // The snapshot is normally compiled when the data is downloaded,
+        // so it may be missing if the data was cached by an older version
+        // or the time zone has changed.  Load just the programme summaries
+        // for now to get the list up quickly, and then compile the snapshot.
+        InputStream stream = openChannelData(channel, date);
+        if (stream == null)
+            return null;
+        TvProgrammeDetails details = new TvProgrammeDetails(channel, date);
+        List<TvProgramme> programmes;
+        try {
+            programmes = channel.parseProgrammeSummariesFromXml(stream, details, listener);
+        } finally {
+            try {
+                stream.close();
+            } catch (IOException e) {
+            }
+        }
+        details.loadInBackground();
+        return programmes;
+    }
+
+    /**
+     * Memory-maps the compiled snapshot for a specific channel and date.
+     *
+     * @param channel the channel
+     * @param date the date corresponding to the data
+     * @return the snapshot, or null if it is missing or out of date
+     */
+    TvProgrammeSnapshot mapChannelSnapshot(TvChannel channel, TvDayKey date) {
+        File file = dataFile(channel, date, ".xml.gz");
+        if (file == null)
+            return null;
+        return TvProgrammeSnapshot.map(dataFile(channel, date, ".tvp"), file, channel.getConvertTimezone());
+    }
+
+    private final Object compileLock = new Object();
+
+    /**
+     * Parses the XMLTV data file for a specific channel and date, and writes
+     * a compiled snapshot of the programmes and a search index segment
+     * alongside it in the cache.  Only one day is compiled at a time, so
+     * that the download task and the programme details never write the
+     * same files at once.
+     *
+     * @param channel the channel
+     * @param date the date corresponding to the data
+     * @return the programmes that were parsed, or null if the data is not present
+     */
+    List<TvProgramme> compileChannelData(TvChannel channel, TvDayKey date) {
+        synchronized (compileLock) {
+            File file = dataFile(channel, date, ".xml.gz");
+            InputStream stream = openChannelData(channel, date);
+            if (stream == null)
+                return null;
+            List<TvProgramme> programmes;
+            try {
+                programmes = channel.parseProgrammesFromXml(stream);
+            } finally {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                }
+            }
+            if (TvProgrammeSnapshot.write(dataFile(channel, date, ".tvp"), file,
+                                          channel.getConvertTimezone(), programmes)) {
+                // The snapshot is still usable if the search index cannot be written.
+                TvSearchIndex.write(dataFile(channel, date, ".tvi"), file,
+                                    channel.getConvertTimezone(), programmes);
+            }
+            return programmes;
+        }
+    }
+
     /**
      * Gets the last-modified date for a specific channel and date combination.
      * 
@@ -329,7 +452,7 @@ public class TvChannelCache extends ExternalMediaHandler {
      * @param date the date
      * @return the last-modified date, or null if the data is not in the cache
      */
-    public Calendar channelDataLastModified(TvChannel channel, Calendar date) {
+    public Calendar channelDataLastModified(TvChannel channel, TvDayKey date) {
         File file = dataFile(channel, date, ".cache");
         if (file == null || !file.exists())
             return null;
@@ -368,7 +491,7 @@ public class TvChannelCache extends ExternalMediaHandler {
      * @param date the date to look for
      * @return true if data is available, false if not
      */
-    public boolean hasChannelData(TvChannel channel, Calendar date) {
+    public boolean hasChannelData(TvChannel channel, TvDayKey date) {
         File file = dataFile(channel, date, ".xml.gz");
         if (file == null || !file.exists())
             return false;
@@ -395,6 +518,29 @@ public class TvChannelCache extends ExternalMediaHandler {
         return d1.get(Calendar.SECOND) == d2.get(Calendar.SECOND);
     }
     
+    /**
+     * Searches the cached data for all channels and days for programmes
+     * whose title, sub-title, description, or credits contain every
+     * word in a query.
+     *
+     * @param query the words to search for
+     * @return the matching programmes, in order of start time
+     */
+    public List<TvSearchIndex.Hit> search(String query) {
+        return TvSearchIndex.getInstance().search(httpCacheDir, query);
+    }
+
+    /**
+     * Gets the file that the bookmark agenda is saved to.
+     *
+     * @return the agenda file, or null if there is no cache
+     */
+    File agendaFile() {
+        if (httpCacheDir == null)
+            return null;
+        return new File(httpCacheDir, "agenda.tva");
+    }
+
     /**
      * Expire old entries in the cache.
      */
@@ -407,13 +553,15 @@ public class TvChannelCache extends ExternalMediaHandler {
         int todayMonth = today.get(Calendar.MONTH) + 1;
         int todayDay = today.get(Calendar.DAY_OF_MONTH);
         for (int index = 0; index < entries.length; ++index) {
-            // Look for files that end in ".xml.gz" or ".cache".
+            // Look for files that end in ".xml.gz", ".cache", ".tvp", or ".tvi".
             String name = entries[index];
             int suffixLength;
             if (name.endsWith(".xml.gz"))
                 suffixLength = 7;
             else if (name.endsWith(".cache"))
                 suffixLength = 6;
+            else if (name.endsWith(".tvp") || name.endsWith(".tvi"))
+                suffixLength = 4;
             else
                 continue;
             if ((name.length() - suffixLength) < 10)
@@ -452,13 +600,15 @@ public class TvChannelCache extends ExternalMediaHandler {
             return;
         String[] entries = httpCacheDir.list();
         for (int index = 0; index < entries.length; ++index) {
-            // Look for files that end in ".xml.gz" or ".cache".
+            // Look for files that end in ".xml.gz", ".cache", ".tvp", or ".tvi".
             String name = entries[index];
             int suffixLength;
             if (name.endsWith(".xml.gz"))
                 suffixLength = 7;
             else if (name.endsWith(".cache"))
                 suffixLength = 6;
+            else if (name.endsWith(".tvp") || name.endsWith(".tvi"))
+                suffixLength = 4;
             else
                 continue;
             if ((name.length() - suffixLength) < 10)
@@ -470,6 +620,9 @@ public class TvChannelCache extends ExternalMediaHandler {
                 System.out.println("deleting " + file.getPath());
             file.delete();
         }
+        new File(httpCacheDir, "agenda.tva").delete();
+        TvSearchIndex.getInstance().clear();
+        TvAgendaEngine.clearInstance();
     }
 
     /**
@@ -529,18 +682,18 @@ public class TvChannelCache extends ExternalMediaHandler {
      *
      * @param channel the channel, or null for the main channel list file
      * @param date the date to fetch
-     * @param extension the file extension, ".xml.gz" or ".cache"
+     * @param extension the file extension, ".xml.gz", ".cache", ".tvp", or ".tvi"
      * @return the filename encapsulated in a File object, or null if no cache
      */
-    private File dataFile(TvChannel channel, Calendar date, String extension) {
+    private File dataFile(TvChannel channel, TvDayKey date, String extension) {
         if (httpCacheDir == null)
             return null;
         else if (channel == null)
             return new File(httpCacheDir, "channels" + extension);
         StringBuilder name = new StringBuilder();
-        int year = date.get(Calendar.YEAR);
-        int month = date.get(Calendar.MONTH) + 1;
-        int day = date.get(Calendar.DAY_OF_MONTH);
+        int year = date.getYear();
+        int month = date.getMonth();
+        int day = date.getDayOfMonth();
         name.append(channel.getId());
         name.append('_');
         name.append((char)('0' + ((year / 1000) % 10)));
@@ -569,8 +722,8 @@ public class TvChannelCache extends ExternalMediaHandler {
     
     private class RequestInfo {
         public TvChannel channel;
-        public Calendar date;
-        public Calendar primaryDate;
+        public TvDayKey date;
+        public TvDayKey primaryDate;
         public URI uri;
         public File cacheFile;
         public File dataFile;
@@ -597,7 +750,7 @@ public class TvChannelCache extends ExternalMediaHandler {
             return isSameFetch(info.channel, info.date);
         }
         
-        public boolean isSameFetch(TvChannel channel, Calendar date) {
+        public boolean isSameFetch(TvChannel channel, TvDayKey date) {
             if (this.channel == null) {
                 if (channel != null)
                     return false;
@@ -624,8 +777,8 @@ public class TvChannelCache extends ExternalMediaHandler {
 
     private RequestInfo requestQueue;
     private TvChannel currentRequestChannel;
-    private Calendar currentRequestDate;
-    private Calendar currentRequestPrimaryDate;
+    private TvDayKey currentRequestDate;
+    private TvDayKey currentRequestPrimaryDate;
     private boolean requestsActive;
 
     private static Calendar lastRequestTime = null;
@@ -733,6 +886,17 @@ public class TvChannelCache extends ExternalMediaHandler {
                 }
             }
             info.success = fetch(info);
+            if (info.success && info.isChannelDataFetch()) {
+                // Compile a binary snapshot of the new data so that the
+                // XML does not need to be parsed when the channel is opened.
+                File snapshotFile = dataFile(info.channel, info.date, ".tvp");
+                File indexFile = dataFile(info.channel, info.date, ".tvi");
+                boolean convertTimezone = info.channel.getConvertTimezone();
+                if (snapshotFile != null &&
+                        (!TvProgrammeSnapshot.isUpToDate(snapshotFile, info.dataFile, convertTimezone) ||
+                         !TvSearchIndex.isUpToDate(indexFile, info.dataFile, convertTimezone)))
+                    compileChannelData(info.channel, info.date);
+            }
             if (!info.success) {
                 // Something failed during the request - delete the cache files
                 // before handing the result back to the main thread.
@@ -793,14 +957,13 @@ public class TvChannelCache extends ExternalMediaHandler {
     public boolean bulkFetch(int numDays) {
         boolean fetched = false;
         boolean requestsWereActive = requestsActive;
-        Calendar today = new GregorianCalendar();
+        TvDayKey today = TvDayKey.today();
         for (TvNetworkListener listener: networkListeners)
             listener.setCancelable();
         for (int index = 0; index < activeChannels.size(); ++index) {
             TvChannel channel = activeChannels.get(index);
             for (int day = 0; day < numDays; ++day) {
-                Calendar date = (Calendar)today.clone();
-                date.add(Calendar.DAY_OF_MONTH, day);
+                TvDayKey date = today.addDays(day);
                 if (!hasChannelData(channel, date)) {
                     fetch(channel, date, today);
                     fetched = true;
@@ -820,7 +983,7 @@ public class TvChannelCache extends ExternalMediaHandler {
      * @param channel the channel
      * @param date the date to request
      */
-    public void fetch(TvChannel channel, Calendar date) {
+    public void fetch(TvChannel channel, TvDayKey date) {
         fetch(channel, date, date);
     }
 
@@ -835,7 +998,7 @@ public class TvChannelCache extends ExternalMediaHandler {
      * @param date the date to request
      * @param primaryDate the primary date for multi-day requests
      */
-    public void fetch(TvChannel channel, Calendar date, Calendar primaryDate) {
+    public void fetch(TvChannel channel, TvDayKey date, TvDayKey primaryDate) {
         // Bail out if the cache is unusable or there is no network.
         if (httpCacheDir == null || !isNetworkingAvailable())
             return;
@@ -859,9 +1022,9 @@ public class TvChannelCache extends ExternalMediaHandler {
 
         // Generate the URI for the request.
         StringBuilder requestUrl = new StringBuilder();
-        int year = date.get(Calendar.YEAR);
-        int month = date.get(Calendar.MONTH) + 1;
-        int day = date.get(Calendar.DAY_OF_MONTH);
+        int year = date.getYear();
+        int month = date.getMonth();
+        int day = date.getDayOfMonth();
         requestUrl.append(baseUrl);
         if (!baseUrl.endsWith("/"))
             requestUrl.append('/');
@@ -1212,6 +1375,7 @@ public class TvChannelCache extends ExternalMediaHandler {
      * @param parser XML stream to load the channels from
      */
     private void loadChannelsFromXml(XmlPullParser parser) {
+        TvStringDictionary dictionary = TvStringDictionary.getInstance();
         String id = null;
         String parent;
         try {
@@ -1221,7 +1385,7 @@ public class TvChannelCache extends ExternalMediaHandler {
                     String name = parser.getName();
                     if (name.equals("channel")) {
                         // Parse the contents of a <channel> element.
-                        id = parser.getAttributeValue(null, "id");
+                        id = dictionary.intern(parser.getAttributeValue(null, "id"));
                         TvChannel channel = channels.get(id);
                         if (channel == null) {
                             channel = new TvChannel();
@@ -1237,7 +1401,7 @@ public class TvChannelCache extends ExternalMediaHandler {
                             else if (hidden.equals("by-region"))
                                 channel.setHiddenState(TvChannel.HIDDEN_BY_REGION);
                         }
-                        String region = parser.getAttributeValue(null, "region");
+                        String region = dictionary.intern(parser.getAttributeValue(null, "region"));
                         if (region != null) {
                             channel.setRegion(region);
                             channel.setHiddenState(TvChannel.HIDDEN_BY_REGION);
@@ -1247,8 +1411,8 @@ public class TvChannelCache extends ExternalMediaHandler {
                         channels.put(id, channel);
                     } else if (name.equals("region")) {
                         // Parse the contents of a <region> element.
-                        id = parser.getAttributeValue(null, "id");
-                        parent = parser.getAttributeValue(null, "parent");
+                        id = dictionary.intern(parser.getAttributeValue(null, "id"));
+                        parent = dictionary.intern(parser.getAttributeValue(null, "parent"));
                         if (id != null && parent != null) {
                             if (!regionTree.containsKey(id))
                                 regionTree.put(id, new ArrayList<String>());
@@ -1257,7 +1421,7 @@ public class TvChannelCache extends ExternalMediaHandler {
                         }
                     } else if (name.equals("other-parent")) {
                         // Secondary parent for the current region.
-                        parent = Utils.getContents(parser, name);
+                        parent = dictionary.intern(Utils.getContents(parser, name));
                         if (!regionTree.containsKey(id))
                             regionTree.put(id, new ArrayList<String>());
                         if (!regionTree.get(id).contains(parent))
@@ -1273,20 +1437,11 @@ public class TvChannelCache extends ExternalMediaHandler {
     }
     
     private void loadChannel(TvChannel channel, XmlPullParser parser) throws XmlPullParserException, IOException {
-        String commonId = parser.getAttributeValue(null, "common-id");
+        String commonId = TvStringDictionary.getInstance().intern(parser.getAttributeValue(null, "common-id"));
         if (commonId != null && channel.getCommonId() == null) {
-            // Keep track of all channels with the same common identifier in a shared list.
-            // We use this to migrate bookmarks across regions.
+            // Channels with the same common identifier are grouped in the
+            // channel registry.  We use this to migrate bookmarks across regions.
             channel.setCommonId(commonId);
-            ArrayList<String> list = commonIds.get(commonId);
-            if (list != null) {
-                list.add(channel.getId());
-            } else {
-                list = new ArrayList<String>();
-                list.add(channel.getId());
-                commonIds.put(commonId, list);
-            }
-            channel.setOtherChannelsList(list);
         }
         int eventType = parser.next();
         boolean hadNumbers = channel.getNumbers() != null;
@@ -1307,8 +1462,7 @@ public class TvChannelCache extends ExternalMediaHandler {
                         int year = Utils.parseField(dateStr, 0, 4);
                         int month = Utils.parseField(dateStr, 5, 2);
                         int day = Utils.parseField(dateStr, 8, 2);
-                        FastCalendar date = new FastCalendar(year, month - 1, day);
-                        channel.addDataFor(date, Utils.parseDateTimeFast(lastmod));
+                        channel.addDataFor(TvDayKey.fromDate(year, month, day), Utils.parseDateTimeFast(lastmod));
                         haveDataForDecls = true;
                     }
                 } else if (name.equals("base-url")) {
@@ -18,8 +18,6 @@
 package com.southernstorm.tvguide;
 
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.GregorianCalendar;
 import java.util.List;
 
 import android.content.Context;
@@ -35,12 +33,13 @@ import android.widget.ListAdapter;
 import android.widget.SpinnerAdapter;
 import android.widget.TextView;
 
-public class TvChannelListAdapter implements ListAdapter, SpinnerAdapter, TvChannelChangedListener {
+public class TvChannelListAdapter implements ListAdapter, SpinnerAdapter, TvChannelChangedListener, TvNowNextChangedListener {
 
     private List<TvChannel> channels;
     private List<DataSetObserver> observers;
     private LayoutInflater inflater;
     private boolean indicateCurrent;
+    private boolean showNowNext;
     
     public TvChannelListAdapter(Context context) {
         this.channels = new ArrayList<TvChannel>();
@@ -52,10 +51,30 @@ public class TvChannelListAdapter implements ListAdapter, SpinnerAdapter, TvChan
 
     public void attach() {
         TvChannelCache.getInstance().addChannelChangedListener(this);
+        if (showNowNext)
+            TvNowNextIndex.getInstance().addChangedListener(this);
     }
     
     public void detach() {
         TvChannelCache.getInstance().removeChannelChangedListener(this);
+        if (showNowNext)
+            TvNowNextIndex.getInstance().removeChangedListener(this);
+    }
+
+    /**
+     * Shows the programme that is on now underneath each channel.
+     * Must be called before attach().
+     */
+    public void setShowNowNext() {
+        this.showNowNext = true;
+    }
+
+    /**
+     * Rebuilds the now/next information for the channels in the background.
+     */
+    public void refreshNowNext() {
+        if (showNowNext)
+            TvNowNextIndex.getInstance().refresh(TvChannelCache.getInstance().getActiveChannels());
     }
     
     public void addAnyChannel() {
@@ -109,6 +128,7 @@ public class TvChannelListAdapter implements ListAdapter, SpinnerAdapter, TvChan
         public ImageView icon;
         public TextView name;
         public TextView numbers;
+        public TextView now;
     }
 
     public View getView(int position, View convertView, ViewGroup parent) {
@@ -121,6 +141,7 @@ public class TvChannelListAdapter implements ListAdapter, SpinnerAdapter, TvChan
             view.icon = (ImageView)convertView.findViewById(R.id.channel_icon);
             view.name = (TextView)convertView.findViewById(R.id.channel_name);
             view.numbers = (TextView)convertView.findViewById(R.id.channel_numbers);
+            view.now = (TextView)convertView.findViewById(R.id.channel_now);
             convertView.setTag(view);
         }
         TvChannel channel = channels.get(position);
@@ -134,6 +155,16 @@ public class TvChannelListAdapter implements ListAdapter, SpinnerAdapter, TvChan
         if (numbers == null)
         	numbers = "";
         view.numbers.setText(numbers);
+        TvNowNextIndex.Airing now = null;
+        if (showNowNext)
+            now = TvNowNextIndex.getInstance().getAiringAt(channel.getId(), System.currentTimeMillis() / 1000);
+        if (now != null && now.title != null) {
+            int startTime = Utils.localTimeOfDay(Utils.epochToLocal(now.start));
+            view.now.setText(Utils.formatTime(startTime) + " " + now.title);
+            view.now.setVisibility(View.VISIBLE);
+        } else {
+            view.now.setVisibility(View.GONE);
+        }
         if (indicateCurrent) {
             String lastSelectedChannel = TvChannelCache.getInstance().getLastSelectedChannel();
             if (lastSelectedChannel != null && lastSelectedChannel.equals(channel.getId()))
@@ -142,7 +173,7 @@ public class TvChannelListAdapter implements ListAdapter, SpinnerAdapter, TvChan
                 convertView.setBackgroundDrawable(null);
             
             // Highlight channels that have bookmarked programmes for today in red.
-            int weekday = (new GregorianCalendar()).get(Calendar.DAY_OF_WEEK);
+            int weekday = Utils.localDayOfWeek(Utils.epochToLocal(System.currentTimeMillis() / 1000));
             if (channel.haveBookmarksForDay(weekday))
                 view.name.setTextColor(0xFFFF0000);
             else
@@ -188,6 +219,11 @@ public class TvChannelListAdapter implements ListAdapter, SpinnerAdapter, TvChan
         this.channels.addAll(TvChannelCache.getInstance().getActiveChannels());
         for (DataSetObserver observer: observers)
             observer.onChanged();
+        refreshNowNext();
+    }
+
+    public void nowNextChanged() {
+        forceUpdate();
     }
     
     public void forceUpdate() {
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2011,2012  Southern Storm Software, Pty Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.southernstorm.tvguide;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Registry that assigns each channel identifier a small integer, so that
+ * channels can be compared and looked up without comparing strings.
+ *
+ * Channels that share a common identifier across regions are placed in
+ * the same group, and two channels are the same if they are in the same
+ * group.  A channel is in a group of its own until it is given a common
+ * identifier.  String identifiers are only needed when reading and
+ * writing data files.
+ *
+ * Registry identifiers are never reused, but they are only valid for
+ * the lifetime of the process and must not be saved.  Lookups by
+ * registry identifier may be called on any thread without locking.
+ */
+public class TvChannelRegistry {
+
+    /** Registry identifier for a null channel identifier */
+    public static final int NO_CHANNEL = -1;
+
+    private static final TvChannelRegistry instance = new TvChannelRegistry();
+
+    private static final int[] noMembers = new int [0];
+
+    // Group for each registry identifier, and the members of each group.
+    // A new state is published on every change so that readers need no lock.
+    private static class State {
+        public final int[] groups;
+        public final int[][] members;
+
+        public State(int[] groups, int[][] members) {
+            this.groups = groups;
+            this.members = members;
+        }
+    }
+
+    private Map<String, Integer> channels;
+    private Map<String, Integer> commonIds;
+    private volatile State state;
+
+    private TvChannelRegistry() {
+        channels = new HashMap<String, Integer>();
+        commonIds = new HashMap<String, Integer>();
+        state = new State(new int [0], new int [0][]);
+    }
+
+    /**
+     * Retrieves the global channel registry.
+     * 
+     * @return the channel registry
+     */
+    public static TvChannelRegistry getInstance() {
+        return instance;
+    }
+
+    /**
+     * Gets the registry identifier for a channel identifier, assigning
+     * a new one if the channel has not been seen before.
+     * 
+     * @param id the channel identifier
+     * @return the registry identifier, or NO_CHANNEL if id is null
+     */
+    public synchronized int register(String id) {
+        if (id == null)
+            return NO_CHANNEL;
+        Integer existing = channels.get(id);
+        if (existing != null)
+            return existing.intValue();
+        State current = state;
+        int channel = current.groups.length;
+        int[][] members = addGroup(current.members, new int[] {channel});
+        int[] groups = new int [channel + 1];
+        System.arraycopy(current.groups, 0, groups, 0, channel);
+        groups[channel] = members.length - 1;
+        state = new State(groups, members);
+        channels.put(id, Integer.valueOf(channel));
+        return channel;
+    }
+
+    /**
+     * Moves a channel into the group for a common identifier.
+     * 
+     * @param channel the registry identifier for the channel
+     * @param commonId the common identifier
+     */
+    public synchronized void joinGroup(int channel, String commonId) {
+        if (channel == NO_CHANNEL || commonId == null)
+            return;
+        State current = state;
+        int[][] members = current.members;
+        Integer existing = commonIds.get(commonId);
+        int group;
+        if (existing != null) {
+            group = existing.intValue();
+        } else {
+            members = addGroup(members, noMembers);
+            group = members.length - 1;
+            commonIds.put(commonId, Integer.valueOf(group));
+        }
+        int oldGroup = current.groups[channel];
+        if (oldGroup == group)
+            return;
+        if (members == current.members)
+            members = members.clone();
+
+        int[] oldList = members[oldGroup];
+        int[] list = new int [oldList.length - 1];
+        int count = 0;
+        for (int index = 0; index < oldList.length; ++index) {
+            if (oldList[index] != channel)
+                list[count++] = oldList[index];
+        }
+        members[oldGroup] = list;
+        oldList = members[group];
+        list = new int [oldList.length + 1];
+        System.arraycopy(oldList, 0, list, 0, oldList.length);
+        list[oldList.length] = channel;
+        members[group] = list;
+
+        int[] groups = current.groups.clone();
+        groups[channel] = group;
+        state = new State(groups, members);
+    }
+
+    private static int[][] addGroup(int[][] members, int[] list) {
+        int[][] newMembers = new int [members.length + 1][];
+        System.arraycopy(members, 0, newMembers, 0, members.length);
+        newMembers[members.length] = list;
+        return newMembers;
+    }
+
+    /**
+     * Gets the number of registry identifiers that have been assigned.
+     * Registry identifiers are between 0 and this value minus 1.
+     * 
+     * @return the number of registry identifiers
+     */
+    public int size() {
+        return state.groups.length;
+    }
+
+    /**
+     * Gets the channels that are the same as a specific channel,
+     * including the channel itself.  The array must not be modified.
+     * 
+     * @param channel the registry identifier for the channel
+     * @return the registry identifiers for the channels in its group
+     */
+    public int[] sameChannels(int channel) {
+        if (channel == NO_CHANNEL)
+            return noMembers;
+        State current = state;
+        return current.members[current.groups[channel]];
+    }
+
+    /**
+     * Determine if two channels are the same.
+     * 
+     * @param channel1 the registry identifier for the first channel
+     * @param channel2 the registry identifier for the second channel
+     * @return true if the channels are the same, false otherwise
+     */
+    public boolean isSameChannel(int channel1, int channel2) {
+        if (channel1 == NO_CHANNEL || channel2 == NO_CHANNEL)
+            return false;
+        if (channel1 == channel2)
+            return true;
+        int[] groups = state.groups;
+        return groups[channel1] == groups[channel2];
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2011,2012  Southern Storm Software, Pty Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.southernstorm.tvguide;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+/**
+ * Immutable key for a single day in the local calendar, packed as the
+ * number of days since 1 January 1970.  Used in place of Calendar objects
+ * wherever data is organized by day, as it is cheap to hash, compare,
+ * and step forwards and backwards.
+ */
+public final class TvDayKey implements Comparable<TvDayKey> {
+
+    private final int day;
+    private final int year;
+    private final int month;
+    private final int dayOfMonth;
+
+    private TvDayKey(int day) {
+        this.day = day;
+
+        // Convert the day number into a civil date.
+        int z = day + 719468;
+        int era = (z >= 0 ? z : z - 146096) / 146097;
+        int dayOfEra = z - era * 146097;
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        this.dayOfMonth = dayOfYear - (153 * mp + 2) / 5 + 1;
+        this.month = (mp < 10 ? mp + 3 : mp - 9);
+        this.year = yearOfEra + era * 400 + (this.month <= 2 ? 1 : 0);
+    }
+
+    /**
+     * Gets the key for a day number.
+     *
+     * @param day the number of days since 1 January 1970
+     * @return the key
+     */
+    public static TvDayKey fromDayNumber(int day) {
+        return new TvDayKey(day);
+    }
+
+    /**
+     * Gets the key for a date.
+     *
+     * @param year the year
+     * @param month the month, 1 to 12
+     * @param dayOfMonth the day of the month, 1 to 31
+     * @return the key
+     */
+    public static TvDayKey fromDate(int year, int month, int dayOfMonth) {
+        return new TvDayKey((int)Utils.daysFromCivil(year, month, dayOfMonth));
+    }
+
+    /**
+     * Gets the key for the day that a calendar value falls on.
+     *
+     * @param date the calendar value
+     * @return the key
+     */
+    public static TvDayKey fromCalendar(Calendar date) {
+        return new TvDayKey(Utils.localDay(date));
+    }
+
+    /**
+     * Gets the key for today's date.
+     *
+     * @return the key
+     */
+    public static TvDayKey today() {
+        return new TvDayKey(Utils.localDay(Utils.epochToLocal(System.currentTimeMillis() / 1000)));
+    }
+
+    public int getDayNumber() { return day; }
+    public int getYear() { return year; }
+    public int getMonth() { return month; }
+    public int getDayOfMonth() { return dayOfMonth; }
+
+    /**
+     * Gets the day of the week.
+     *
+     * @return the day of the week, Calendar.SUNDAY to Calendar.SATURDAY
+     */
+    public int getDayOfWeek() {
+        // 1 January 1970 was a Thursday.
+        int weekday = (day + 4) % 7;
+        if (weekday < 0)
+            weekday += 7;
+        return Calendar.SUNDAY + weekday;
+    }
+
+    /**
+     * Gets the key for a day that is a number of days away from this one.
+     *
+     * @param days the number of days to add, which may be negative
+     * @return the key
+     */
+    public TvDayKey addDays(int days) {
+        return new TvDayKey(day + days);
+    }
+
+    /**
+     * Converts this key into a Calendar object for midnight on the day.
+     *
+     * @return the Calendar object
+     */
+    public Calendar toCalendar() {
+        return new GregorianCalendar(year, month - 1, dayOfMonth);
+    }
+
+    /**
+     * Gets the local time in seconds for midnight on the day.
+     *
+     * @return the local time in seconds
+     * @see Utils#localToEpoch(long)
+     */
+    public long toLocalTime() {
+        return day * (24L * 60 * 60);
+    }
+
+    public int compareTo(TvDayKey other) {
+        if (day < other.day)
+            return -1;
+        else if (day > other.day)
+            return 1;
+        else
+            return 0;
+    }
+
+    public boolean equals(Object other) {
+        if (!(other instanceof TvDayKey))
+            return false;
+        return day == ((TvDayKey)other).day;
+    }
+
+    public int hashCode() {
+        return day;
+    }
+
+    public String toString() {
+        StringBuilder builder = new StringBuilder(10);
+        builder.append(year);
+        builder.append(month < 10 ? "-0" : "-");
+        builder.append(month);
+        builder.append(dayOfMonth < 10 ? "-0" : "-");
+        builder.append(dayOfMonth);
+        return builder.toString();
+    }
+}
@@ -0,0 +1,437 @@
+/*
+ * Copyright (C) 2011,2012  Southern Storm Software, Pty Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.southernstorm.tvguide;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Query engine for a programme grid, with one row per channel and one
+ * column per time window.
+ *
+ * Windows are aligned to multiples of the window length in local time,
+ * so scrolling horizontally moves from one window to the next.  Each
+ * window holds a row of layout-ready slots for every channel, clipped
+ * to the window and with precomputed pixel offsets, so that drawing a
+ * frame does not need to parse, search, or allocate anything.
+ *
+ * Windows are built on a background thread from the cached day data,
+ * loading days into the TvChannel objects as required.  Asking for a
+ * window also prefetches the windows either side of it.  A small
+ * number of recent windows are kept and the oldest are discarded.
+ *
+ * All methods other than the constructor must be called on the UI thread.
+ */
+public class TvGridEngine implements TvNetworkListener {
+
+    private static final int MAX_WINDOWS = 5;
+
+    /**
+     * Flag for slots that start before the window.
+     */
+    public static final int FLAG_CLIPPED_START = 0x01;
+
+    /**
+     * Flag for slots that finish after the window.
+     */
+    public static final int FLAG_CLIPPED_END = 0x02;
+
+    /**
+     * Programmes on a single channel within a window, laid out as slots.
+     */
+    public static class Row {
+        public final TvChannel channel;
+        public final TvProgramme[] programmes;
+        public final long[] starts;
+        public final long[] stops;
+        public final int[] left;
+        public final int[] right;
+        public final int[] flags;
+        public final int count;
+
+        public Row(TvChannel channel, int count) {
+            this.channel = channel;
+            this.programmes = new TvProgramme [count];
+            this.starts = new long [count];
+            this.stops = new long [count];
+            this.left = new int [count];
+            this.right = new int [count];
+            this.flags = new int [count];
+            this.count = count;
+        }
+
+        /**
+         * Gets the slot that is under a pixel offset within the window.
+         *
+         * @param x the pixel offset
+         * @return the index of the slot, or -1 if there is no slot there
+         */
+        public int slotAt(int x) {
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (right[mid] <= x)
+                    low = mid + 1;
+                else if (left[mid] > x)
+                    high = mid - 1;
+                else
+                    return mid;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Rows for all channels in a single time window.
+     */
+    public static class Window {
+        public final long from;
+        public final long to;
+        public final Row[] rows;
+        private int width;
+
+        public Window(long from, long to, Row[] rows) {
+            this.from = from;
+            this.to = to;
+            this.rows = rows;
+        }
+
+        /**
+         * Gets the width in pixels that the slot offsets were computed for.
+         *
+         * @return the width
+         */
+        public int getWidth() {
+            return width;
+        }
+
+        private void layout(int width) {
+            this.width = width;
+            long span = to - from;
+            for (int rowIndex = 0; rowIndex < rows.length; ++rowIndex) {
+                Row row = rows[rowIndex];
+                for (int index = 0; index < row.count; ++index) {
+                    long start = Math.max(row.starts[index], from);
+                    long stop = Math.min(row.stops[index], to);
+                    row.left[index] = (int)((start - from) * width / span);
+                    row.right[index] = (int)((stop - from) * width / span);
+                }
+            }
+        }
+    }
+
+    private static ExecutorService builder = null;
+
+    private static synchronized ExecutorService getBuilder() {
+        if (builder == null) {
+            builder = Executors.newSingleThreadExecutor(new TvBackgroundThreadFactory("TvGridEngine"));
+        }
+        return builder;
+    }
+
+    private final int windowSeconds;
+    private final Handler handler;
+    private List<TvChannel> channels;
+    private int width;
+    private Window[] windows;
+    private long[] pending;
+    private int generation;
+    private long currentFrom;
+    private TvGridListener listener;
+
+    /**
+     * Constructs a new grid engine.
+     *
+     * @param windowSeconds the length of each time window, in seconds,
+     * which should divide evenly into a day
+     */
+    public TvGridEngine(int windowSeconds) {
+        this.windowSeconds = windowSeconds;
+        this.handler = new Handler(Looper.getMainLooper());
+        this.channels = new ArrayList<TvChannel>();
+        this.width = windowSeconds / 60;
+        this.windows = new Window [MAX_WINDOWS];
+        this.pending = new long [0];
+        this.currentFrom = Utils.NO_TIME;
+    }
+
+    /**
+     * Sets the listener to notify when windows become available.  The
+     * engine registers for network notifications while it has a listener,
+     * so that windows are rebuilt when new data is downloaded.
+     *
+     * @param listener the listener, or null to detach the engine
+     */
+    public void setListener(TvGridListener listener) {
+        TvChannelCache cache = TvChannelCache.getInstance();
+        if (this.listener == null && listener != null)
+            cache.addNetworkListener(this);
+        else if (this.listener != null && listener == null)
+            cache.removeNetworkListener(this);
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the channels to display as rows in the grid.  This discards
+     * all windows that have been built so far.
+     *
+     * @param channels the channels, in display order
+     */
+    public void setChannels(List<TvChannel> channels) {
+        this.channels = new ArrayList<TvChannel>(channels);
+        invalidate();
+    }
+
+    /**
+     * Sets the width in pixels of a window, which determines the slot
+     * offsets.  Windows that have already been built are laid out again.
+     *
+     * @param width the width of a window in pixels
+     */
+    public void setWidth(int width) {
+        if (this.width == width)
+            return;
+        this.width = width;
+        for (int index = 0; index < windows.length; ++index) {
+            if (windows[index] != null)
+                windows[index].layout(width);
+        }
+    }
+
+    /**
+     * Gets the start of the window that contains a specific time.
+     *
+     * @param time the time in seconds since the epoch
+     * @return the start of the window in seconds since the epoch
+     */
+    public long getWindowStart(long time) {
+        long local = Utils.epochToLocal(time);
+        long offset = local % windowSeconds;
+        if (offset < 0)
+            offset += windowSeconds;
+        return Utils.localToEpoch(local - offset);
+    }
+
+    /**
+     * Gets the start of the window after the one that starts at a specific time.
+     *
+     * @param from the start of the current window
+     * @return the start of the next window
+     */
+    public long getNextWindowStart(long from) {
+        return Utils.localToEpoch(Utils.epochToLocal(from) + windowSeconds);
+    }
+
+    /**
+     * Gets the start of the window before the one that starts at a specific time.
+     *
+     * @param from the start of the current window
+     * @return the start of the previous window
+     */
+    public long getPreviousWindowStart(long from) {
+        return getWindowStart(from - 1);
+    }
+
+    /**
+     * Gets the window that contains a specific time, and prefetches the
+     * windows either side of it.  If the window has not been built yet,
+     * it is built in the background and the listener is notified when
+     * it is ready.
+     *
+     * @param time the time in seconds since the epoch
+     * @return the window, or null if it is not available yet
+     */
+    public Window getWindow(long time) {
+        long from = getWindowStart(time);
+        Window window = findWindow(from);
+        if (from != currentFrom) {
+            currentFrom = from;
+            if (window == null)
+                request(from);
+            long previous = getPreviousWindowStart(from);
+            long next = getNextWindowStart(from);
+            if (findWindow(previous) == null)
+                request(previous);
+            if (findWindow(next) == null)
+                request(next);
+        }
+        return window;
+    }
+
+    private Window findWindow(long from) {
+        for (int index = 0; index < windows.length; ++index) {
+            Window window = windows[index];
+            if (window != null && window.from == from)
+                return window;
+        }
+        return null;
+    }
+
+    /**
+     * Discards all windows, and requests the current window again.
+     */
+    public void invalidate() {
+        ++generation;
+        for (int index = 0; index < windows.length; ++index)
+            windows[index] = null;
+        pending = new long [0];
+        long from = currentFrom;
+        currentFrom = Utils.NO_TIME;
+        if (from != Utils.NO_TIME)
+            getWindow(from);
+    }
+
+    private void request(final long from) {
+        for (int index = 0; index < pending.length; ++index) {
+            if (pending[index] == from)
+                return;
+        }
+        long[] newPending = new long [pending.length + 1];
+        System.arraycopy(pending, 0, newPending, 0, pending.length);
+        newPending[pending.length] = from;
+        pending = newPending;
+
+        final List<TvChannel> toBuild = channels;
+        final long to = getNextWindowStart(from);
+        final int requestGeneration = generation;
+        getBuilder().execute(new Runnable() {
+            public void run() {
+                final Window window = build(toBuild, from, to);
+                handler.post(new Runnable() {
+                    public void run() {
+                        windowBuilt(window, requestGeneration);
+                    }
+                });
+            }
+        });
+    }
+
+    private void windowBuilt(Window window, int requestGeneration) {
+        if (requestGeneration != generation)
+            return;     // Channels changed or data arrived since the request.
+        int count = 0;
+        for (int index = 0; index < pending.length; ++index) {
+            if (pending[index] != window.from)
+                pending[count++] = pending[index];
+        }
+        if (count < pending.length) {
+            long[] newPending = new long [count];
+            System.arraycopy(pending, 0, newPending, 0, count);
+            pending = newPending;
+        }
+
+        // Replace the window that is furthest from the current one.
+        int slot = 0;
+        long furthest = -1;
+        for (int index = 0; index < windows.length; ++index) {
+            if (windows[index] == null) {
+                slot = index;
+                break;
+            }
+            long distance = Math.abs(windows[index].from - currentFrom);
+            if (distance > furthest) {
+                furthest = distance;
+                slot = index;
+            }
+        }
+        window.layout(width);
+        windows[slot] = window;
+        if (listener != null)
+            listener.gridWindowReady(window);
+    }
+
+    /**
+     * Builds a window on the background thread.
+     */
+    private static Window build(List<TvChannel> channels, long from, long to) {
+        // Programmes that are on in the window may be in the data for the
+        // day before, for programmes that cross midnight.
+        int firstDay = Utils.localDay(Utils.epochToLocal(from)) - 1;
+        int lastDay = Utils.localDay(Utils.epochToLocal(to - 1));
+        Row[] rows = new Row [channels.size()];
+        for (int rowIndex = 0; rowIndex < rows.length; ++rowIndex) {
+            TvChannel channel = channels.get(rowIndex);
+            List<TvDayKey> dates = new ArrayList<TvDayKey>();
+            for (int day = firstDay; day <= lastDay; ++day) {
+                TvDayKey date = TvDayKey.fromDayNumber(day);
+                if (!channel.hasProgrammes(date))
+                    dates.add(date);
+            }
+            if (!dates.isEmpty())
+                channel.loadProgrammes(dates);
+
+            List<TvProgramme> progs = channel.programmesBetween(from, to);
+            Row row = new Row(channel, progs.size());
+            for (int index = 0; index < row.count; ++index) {
+                TvProgramme prog = progs.get(index);
+                long start = prog.getStartSeconds();
+                long stop = prog.getStopSeconds();
+                if (stop == Utils.NO_TIME || stop <= start) {
+                    // Run an open-ended programme up to the next one.
+                    stop = (index + 1) < row.count ? progs.get(index + 1).getStartSeconds() : to;
+                }
+                row.programmes[index] = prog;
+                row.starts[index] = start;
+                row.stops[index] = stop;
+                if (start < from)
+                    row.flags[index] |= FLAG_CLIPPED_START;
+                if (stop > to)
+                    row.flags[index] |= FLAG_CLIPPED_END;
+            }
+            rows[rowIndex] = row;
+        }
+        return new Window(from, to, rows);
+    }
+
+    public void setCancelable() {}
+    public void setCurrentNetworkRequest(TvChannel channel, TvDayKey date, TvDayKey primaryDate) {}
+    public void setCurrentNetworkIconRequest(TvChannel channel) {}
+    public void setCurrentNetworkListRequest() {}
+    public void endNetworkRequests() {}
+
+    public void dataAvailable(TvChannel channel, TvDayKey date, TvDayKey primaryDate) {
+        if (channel == null || date == null || !channels.contains(channel))
+            return;
+        if (!channel.hasProgrammes(date))
+            return;     // Will be loaded when a window needs it.
+
+        // Reload the day in the background, then rebuild the windows.
+        final TvChannel reloadChannel = channel;
+        final List<TvDayKey> dates = new ArrayList<TvDayKey>();
+        dates.add(date);
+        getBuilder().execute(new Runnable() {
+            public void run() {
+                reloadChannel.loadProgrammes(dates);
+                handler.post(new Runnable() {
+                    public void run() {
+                        invalidate();
+                    }
+                });
+            }
+        });
+    }
+
+    public void requestFailed(TvChannel channel, TvDayKey date, TvDayKey primaryDate) {}
+}
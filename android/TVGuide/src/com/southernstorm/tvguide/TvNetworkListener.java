@@ -17,8 +17,6 @@
 
 package com.southernstorm.tvguide;
 
-import java.util.Calendar;
-
 public interface TvNetworkListener {
 
     /**
@@ -33,7 +31,7 @@ public interface TvNetworkListener {
      * @param date the date that is being fetched
      * @param primaryDate the primary date for multi-day requests
      */
-    public void setCurrentNetworkRequest(TvChannel channel, Calendar date, Calendar primaryDate);
+    public void setCurrentNetworkRequest(TvChannel channel, TvDayKey date, TvDayKey primaryDate);
 
     /**
      * Sets the current network request to an icon fetch for a channel.
@@ -59,7 +57,7 @@ public interface TvNetworkListener {
      * @param date the date that was successfully fetched
      * @param primaryDate the primary date for multi-day requests
      */
-    public void dataAvailable(TvChannel channel, Calendar date, Calendar primaryDate);
+    public void dataAvailable(TvChannel channel, TvDayKey date, TvDayKey primaryDate);
 
     /**
      * Reports that a data request has failed.
@@ -68,5 +66,5 @@ public interface TvNetworkListener {
      * @param date the date that failed to be fetched
      * @param primaryDate the primary date for multi-day requests
      */
-    public void requestFailed(TvChannel channel, Calendar date, Calendar primaryDate);
+    public void requestFailed(TvChannel channel, TvDayKey date, TvDayKey primaryDate);
 }
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2011,2012  Southern Storm Software, Pty Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.southernstorm.tvguide;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Index of what is on across all of the active channels, built from the
+ * cached day data.  Each channel is reduced to sorted arrays of start and
+ * stop times and titles for yesterday, today, and tomorrow, so that "on
+ * now", "on next", and "on at time T" are a binary search per channel.
+ *
+ * The index is rebuilt on a background thread, one channel at a time,
+ * and channels are refreshed again as new data arrives from the network.
+ */
+public class TvNowNextIndex implements TvNetworkListener {
+
+    private static TvNowNextIndex instance = null;
+
+    /**
+     * Information about a programme airing on a channel.
+     */
+    public static class Airing {
+        public final String title;
+        public final long start;
+        public final long stop;
+
+        public Airing(String title, long start, long stop) {
+            this.title = title;
+            this.start = start;
+            this.stop = stop;
+        }
+    }
+
+    private static class Entry {
+        public long[] starts;
+        public long[] stops;
+        public String[] titles;
+
+        // Gets the index of the last programme that starts at or before a time.
+        public int search(long time) {
+            int low = 0;
+            int high = starts.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (starts[mid] <= time)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            return low - 1;
+        }
+
+        public Airing get(int index) {
+            if (index < 0 || index >= starts.length)
+                return null;
+            return new Airing(titles[index], starts[index], stops[index]);
+        }
+    }
+
+    private Map<String, Entry> entries;
+    private ExecutorService executor;
+    private Handler handler;
+    private List<TvNowNextChangedListener> listeners;
+    private boolean registered;
+
+    private TvNowNextIndex() {
+        entries = new ConcurrentHashMap<String, Entry>();
+        handler = new Handler(Looper.getMainLooper());
+        listeners = new ArrayList<TvNowNextChangedListener>();
+        executor = Executors.newSingleThreadExecutor(new TvBackgroundThreadFactory("TvNowNextIndex"));
+    }
+
+    /**
+     * Retrieves the global now/next index.
+     * 
+     * @return the index
+     */
+    public static TvNowNextIndex getInstance() {
+        if (instance == null)
+            instance = new TvNowNextIndex();
+        return instance;
+    }
+
+    public void addChangedListener(TvNowNextChangedListener listener) {
+        listeners.add(listener);
+        if (!registered) {
+            // Keep the index up to date with data that arrives while it is in use.
+            TvChannelCache.getInstance().addNetworkListener(this);
+            registered = true;
+        }
+    }
+
+    public void removeChangedListener(TvNowNextChangedListener listener) {
+        listeners.remove(listener);
+        if (listeners.isEmpty() && registered) {
+            TvChannelCache.getInstance().removeNetworkListener(this);
+            registered = false;
+        }
+    }
+
+    /**
+     * Rebuilds the index for a list of channels in the background.
+     * Channels that are not in the list are dropped from the index.
+     * 
+     * @param channels the channels to index
+     */
+    public void refresh(List<TvChannel> channels) {
+        final List<TvChannel> toIndex = new ArrayList<TvChannel>(channels);
+        List<String> ids = new ArrayList<String>();
+        for (TvChannel channel: toIndex)
+            ids.add(channel.getId());
+        entries.keySet().retainAll(ids);
+        executor.execute(new Runnable() {
+            public void run() {
+                for (TvChannel channel: toIndex)
+                    index(channel);
+                notifyListeners();
+            }
+        });
+    }
+
+    /**
+     * Rebuilds the index for a single channel in the background.
+     * 
+     * @param channel the channel to index
+     */
+    public void refresh(final TvChannel channel) {
+        executor.execute(new Runnable() {
+            public void run() {
+                index(channel);
+                notifyListeners();
+            }
+        });
+    }
+
+    private void index(TvChannel channel) {
+        TvChannelCache cache = TvChannelCache.getInstance();
+        TvDayKey today = TvDayKey.today();
+        List<TvProgramme> programmes = new ArrayList<TvProgramme>();
+        for (int day = -1; day <= 1; ++day) {
+            List<TvProgramme> progs = cache.readChannelData(channel, today.addDays(day));
+            if (progs == null)
+                continue;
+            for (TvProgramme prog: progs) {
+                if (prog.getStartSeconds() != Utils.NO_TIME && prog.getStopSeconds() != Utils.NO_TIME)
+                    programmes.add(prog);
+            }
+        }
+        if (programmes.isEmpty()) {
+            entries.remove(channel.getId());
+            return;
+        }
+        Collections.sort(programmes, new Comparator<TvProgramme>() {
+            public int compare(TvProgramme p1, TvProgramme p2) {
+                long s1 = p1.getStartSeconds();
+                long s2 = p2.getStartSeconds();
+                return (s1 < s2 ? -1 : (s1 > s2 ? 1 : 0));
+            }
+        });
+
+        // Programmes that cross midnight appear in both day files.
+        Entry entry = new Entry();
+        entry.starts = new long [programmes.size()];
+        entry.stops = new long [programmes.size()];
+        entry.titles = new String [programmes.size()];
+        int count = 0;
+        for (TvProgramme prog: programmes) {
+            long start = prog.getStartSeconds();
+            if (count > 0 && entry.starts[count - 1] == start)
+                continue;
+            entry.starts[count] = start;
+            entry.stops[count] = prog.getStopSeconds();
+            entry.titles[count] = prog.getTitle();
+            ++count;
+        }
+        if (count < programmes.size()) {
+            long[] starts = new long [count];
+            long[] stops = new long [count];
+            String[] titles = new String [count];
+            System.arraycopy(entry.starts, 0, starts, 0, count);
+            System.arraycopy(entry.stops, 0, stops, 0, count);
+            System.arraycopy(entry.titles, 0, titles, 0, count);
+            entry.starts = starts;
+            entry.stops = stops;
+            entry.titles = titles;
+        }
+        entries.put(channel.getId(), entry);
+    }
+
+    private void notifyListeners() {
+        handler.post(new Runnable() {
+            public void run() {
+                for (TvNowNextChangedListener listener: listeners)
+                    listener.nowNextChanged();
+            }
+        });
+    }
+
+    /**
+     * Gets the programme that is on a channel at a specific time.
+     * 
+     * @param channelId the identifier of the channel
+     * @param time the time in seconds since the epoch
+     * @return the programme, or null if nothing is known to be on
+     */
+    public Airing getAiringAt(String channelId, long time) {
+        Entry entry = entries.get(channelId);
+        if (entry == null)
+            return null;
+        int index = entry.search(time);
+        if (index < 0 || entry.stops[index] <= time)
+            return null;
+        return entry.get(index);
+    }
+
+    /**
+     * Gets the next programme to start on a channel after a specific time.
+     * 
+     * @param channelId the identifier of the channel
+     * @param time the time in seconds since the epoch
+     * @return the programme, or null if nothing is known to be on next
+     */
+    public Airing getNextAfter(String channelId, long time) {
+        Entry entry = entries.get(channelId);
+        if (entry == null)
+            return null;
+        return entry.get(entry.search(time) + 1);
+    }
+
+    /**
+     * Gets the programmes that are on now and next on every indexed channel.
+     * 
+     * @param time the time in seconds since the epoch
+     * @return a map from channel identifiers to two-element arrays containing
+     * the programme on now and the programme on next, either of which may be null
+     */
+    public Map<String, Airing[]> getNowAndNext(long time) {
+        Map<String, Airing[]> result = new HashMap<String, Airing[]>();
+        for (Map.Entry<String, Entry> item: entries.entrySet()) {
+            Entry entry = item.getValue();
+            int index = entry.search(time);
+            Airing[] airings = new Airing [2];
+            if (index >= 0 && entry.stops[index] > time)
+                airings[0] = entry.get(index);
+            airings[1] = entry.get(index + 1);
+            result.put(item.getKey(), airings);
+        }
+        return result;
+    }
+
+    public void setCancelable() {}
+    public void setCurrentNetworkRequest(TvChannel channel, TvDayKey date, TvDayKey primaryDate) {}
+    public void setCurrentNetworkIconRequest(TvChannel channel) {}
+    public void setCurrentNetworkListRequest() {}
+    public void endNetworkRequests() {}
+
+    public void dataAvailable(TvChannel channel, TvDayKey date, TvDayKey primaryDate) {
+        if (channel == null || date == null)
+            return;
+        int offset = date.getDayNumber() - TvDayKey.today().getDayNumber();
+        if (offset >= -1 && offset <= 1)
+            refresh(channel);
+    }
+
+    public void requestFailed(TvChannel channel, TvDayKey date, TvDayKey primaryDate) {}
+}
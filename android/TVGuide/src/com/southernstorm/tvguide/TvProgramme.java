@@ -44,42 +44,200 @@ public class TvProgramme {
         match = TvBookmarkMatch.NoMatch;
     }
 
+    /**
+     * Constructs a lightweight view of a programme record in a memory-mapped
+     * snapshot.  Fields are decoded from the snapshot when they are requested
+     * rather than being held on the heap.
+     *
+     * @param channel the channel that the programme is on
+     * @param snapshot the snapshot containing the programme's record
+     * @param record the index of the programme's record within the snapshot
+     */
+    public TvProgramme(TvChannel channel, TvProgrammeSnapshot snapshot, int record) {
+        this.channel = channel;
+        this.snapshot = snapshot;
+        this.record = record;
+        match = TvBookmarkMatch.NoMatch;
+    }
+
     public TvChannel getChannel() { return channel; }
     
-    public Calendar getStart() { return start; }
-    public void setStart(Calendar start) { this.start = start; }
+    /**
+     * Gets the start time as a Calendar object.  The object is constructed
+     * on first use; getStartSeconds() and friends are cheaper for most uses.
+     * 
+     * @return the start time, or null if the programme does not have one
+     */
+    public Calendar getStart() {
+        if (start == null)
+            start = Utils.epochToCalendar(getStartSeconds());
+        return start;
+    }
+    public void setStart(Calendar start) {
+        loadTimes();
+        setTimes(start != null ? start.getTimeInMillis() / 1000 : Utils.NO_TIME, stopTime);
+    }
+
+    /**
+     * Gets the stop time as a Calendar object.  The object is constructed
+     * on first use; getStopSeconds() and friends are cheaper for most uses.
+     * 
+     * @return the stop time, or null if the programme does not have one
+     */
+    public Calendar getStop() {
+        if (stop == null)
+            stop = Utils.epochToCalendar(getStopSeconds());
+        return stop;
+    }
+    public void setStop(Calendar stop) {
+        loadTimes();
+        setTimes(startTime, stop != null ? stop.getTimeInMillis() / 1000 : Utils.NO_TIME);
+    }
+
+    /**
+     * Gets the start time in seconds since the epoch.
+     * 
+     * @return the start time, or Utils.NO_TIME if the programme does not have one
+     */
+    public long getStartSeconds() {
+        loadTimes();
+        return startTime;
+    }
+
+    /**
+     * Gets the stop time in seconds since the epoch.
+     * 
+     * @return the stop time, or Utils.NO_TIME if the programme does not have one
+     */
+    public long getStopSeconds() {
+        loadTimes();
+        return stopTime;
+    }
+
+    /**
+     * Gets the local time of day that the programme starts.
+     * 
+     * @return the number of seconds since midnight
+     */
+    public int getStartTimeOfDay() {
+        loadTimes();
+        return startTimeOfDay;
+    }
 
-    public Calendar getStop() { return stop; }
-    public void setStop(Calendar stop) { this.stop = stop; }
+    /**
+     * Gets the local time of day that the programme stops.
+     * 
+     * @return the number of seconds since midnight
+     */
+    public int getStopTimeOfDay() {
+        loadTimes();
+        return (stopLocal != Utils.NO_TIME ? Utils.localTimeOfDay(stopLocal) : 0);
+    }
 
-    public String getTitle() { return title; }
-    public void setTitle(String title) { this.title = title; }
+    /**
+     * Gets the local day of the week that the programme starts on.
+     * 
+     * @return the day of the week, Calendar.SUNDAY to Calendar.SATURDAY
+     */
+    public int getStartDayOfWeek() {
+        loadTimes();
+        return Utils.localDayOfWeek(startLocal);
+    }
 
-    public String getSubTitle() { return subTitle; }
+    /**
+     * Gets the local day that the programme starts on.
+     * 
+     * @return the number of days since 1 January 1970
+     */
+    public int getStartDay() {
+        loadTimes();
+        return Utils.localDay(startLocal);
+    }
+
+    private void loadTimes() {
+        if (snapshot == null || timesLoaded)
+            return;
+        setTimes(snapshot.getSeconds(record, false), snapshot.getSeconds(record, true));
+    }
+
+    private void setTimes(long startTime, long stopTime) {
+        this.startTime = startTime;
+        this.stopTime = stopTime;
+        startLocal = Utils.epochToLocal(startTime);
+        stopLocal = Utils.epochToLocal(stopTime);
+        startTimeOfDay = (startLocal != Utils.NO_TIME ? Utils.localTimeOfDay(startLocal) : 0);
+        timesLoaded = true;
+        start = null;
+        stop = null;
+        matchKey = null;
+    }
+
+    public String getTitle() { return getString(title, TvProgrammeSnapshot.FIELD_TITLE); }
+    public void setTitle(String title) { this.title = title; matchKey = null; }
+
+    public String getSubTitle() { return getString(subTitle, TvProgrammeSnapshot.FIELD_SUB_TITLE); }
     public void setSubTitle(String subTitle) { this.subTitle = subTitle; }
 
-    public String getDescription() { return description; }
+    public String getDescription() { loadDetails(); return getString(description, TvProgrammeSnapshot.FIELD_DESCRIPTION); }
     public void setDescription(String desc) { this.description = desc; }
 
-    public String getDate() { return date; }
-    public void setDate(String date) { this.date = date; }
+    public String getDate() { return getString(date, TvProgrammeSnapshot.FIELD_DATE); }
+    public void setDate(String date) { this.date = date; matchKey = null; }
 
-    public String getRating() { return rating; }
+    public String getRating() { return getString(rating, TvProgrammeSnapshot.FIELD_RATING); }
     public void setRating(String rating) { this.rating = rating; }
 
-    public String getStarRating() { return starRating; }
+    public String getStarRating() { return getString(starRating, TvProgrammeSnapshot.FIELD_STAR_RATING); }
     
-    public List<String> getDirectors() { return directors; }
-    public List<String> getActors() { return actors; }
-    public List<String> getPresenters() { return presenters; }
-    public List<String> getCategories() { return categories; }
+    public List<String> getDirectors() { loadDetails(); return getList(directors, TvProgrammeSnapshot.FIELD_DIRECTORS); }
+    public List<String> getActors() { return getList(actors, TvProgrammeSnapshot.FIELD_ACTORS); }
+    public List<String> getPresenters() { loadDetails(); return getList(presenters, TvProgrammeSnapshot.FIELD_PRESENTERS); }
+    public List<String> getCategories() { return getList(categories, TvProgrammeSnapshot.FIELD_CATEGORIES); }
+
+    public Map< String, List<String> > getOtherCredits() {
+        if (snapshot != null)
+            return snapshot.getOtherCredits(record);
+        loadDetails();
+        return otherCredits;
+    }
     
-    public String getEpisodeNumber() { return episodeNumber; }
-    public int getSeason() { return season; }
+    public String getEpisodeNumber() { return getString(episodeNumber, TvProgrammeSnapshot.FIELD_EPISODE_NUMBER); }
+    public int getSeason() {
+        if (snapshot != null)
+            return snapshot.getField(record, TvProgrammeSnapshot.FIELD_SEASON);
+        return season;
+    }
+
+    public String getLanguage() { loadDetails(); return getString(language, TvProgrammeSnapshot.FIELD_LANGUAGE); }
+    public String getOriginalLanguage() { loadDetails(); return getString(originalLanguage, TvProgrammeSnapshot.FIELD_ORIGINAL_LANGUAGE); }
+    public String getCountry() { loadDetails(); return getString(country, TvProgrammeSnapshot.FIELD_COUNTRY); }
+    public String getAspectRatio() { loadDetails(); return getString(aspectRatio, TvProgrammeSnapshot.FIELD_ASPECT_RATIO); }
     
-    public boolean isMovie() { return m_isMovie; }
+    public boolean isMovie() { return getFlag(m_isMovie, TvProgrammeSnapshot.FLAG_MOVIE); }
+    public boolean isPremiere() { return getFlag(isPremiere, TvProgrammeSnapshot.FLAG_PREMIERE); }
+    public boolean isRepeat() { return getFlag(isRepeat, TvProgrammeSnapshot.FLAG_REPEAT); }
+
+    // Values set explicitly on a snapshot view override the snapshot's values.
+    private String getString(String value, int field) {
+        if (value == null && snapshot != null)
+            return snapshot.getString(record, field);
+        return value;
+    }
+
+    private List<String> getList(List<String> list, int field) {
+        if (snapshot != null)
+            return snapshot.getList(record, field);
+        return list;
+    }
+
+    private boolean getFlag(boolean value, int flag) {
+        if (snapshot != null)
+            return (snapshot.getField(record, TvProgrammeSnapshot.FIELD_FLAGS) & flag) != 0;
+        return value;
+    }
     
     public int getYear() {
+        String date = getDate();
         if (date == null || date.length() == 0) {
             return 0;
         } else {
@@ -97,8 +255,10 @@ public class TvProgramme {
      * @return the duration
      */
     public long getDuration() {
-        if (start != null && stop != null)
-            return (stop.getTimeInMillis() - start.getTimeInMillis()) / (1000 * 60);
+        long start = getStartSeconds();
+        long stop = getStopSeconds();
+        if (start != Utils.NO_TIME && stop != Utils.NO_TIME)
+            return (stop - start) / 60;
         else
             return 0;
     }
@@ -121,6 +281,18 @@ public class TvProgramme {
         return match;
     }
     
+    /**
+     * Gets the key for matching this programme against bookmarks.
+     * The key is computed on first use.
+     * 
+     * @return the match key
+     */
+    public TvProgrammeMatchKey getMatchKey() {
+        if (matchKey == null)
+            matchKey = new TvProgrammeMatchKey(this);
+        return matchKey;
+    }
+
     /**
      * Sets the bookmark and type of match for this programme.
      * 
@@ -145,172 +317,226 @@ public class TvProgramme {
      * @throws IOException error reading the xml data
      */
     public void load(XmlPullParser parser, boolean convertTimezone) throws XmlPullParserException, IOException {
-        start = Utils.parseDateTime(parser.getAttributeValue(null, "start"), convertTimezone);
-        stop = Utils.parseDateTime(parser.getAttributeValue(null, "stop"), convertTimezone);
+        load(parser, convertTimezone, true);
+    }
+
+    // Elements that are only needed for the long description.
+    private static final boolean[] detailElements = new boolean [XmltvParser.NAME_OTHER_PARENT + 1];
+    static {
+        detailElements[XmltvParser.NAME_DESC] = true;
+        detailElements[XmltvParser.NAME_DIRECTOR] = true;
+        detailElements[XmltvParser.NAME_PRESENTER] = true;
+        detailElements[XmltvParser.NAME_ADAPTER] = true;
+        detailElements[XmltvParser.NAME_COMMENTATOR] = true;
+        detailElements[XmltvParser.NAME_COMPOSER] = true;
+        detailElements[XmltvParser.NAME_EDITOR] = true;
+        detailElements[XmltvParser.NAME_GUEST] = true;
+        detailElements[XmltvParser.NAME_PRODUCER] = true;
+        detailElements[XmltvParser.NAME_WRITER] = true;
+        detailElements[XmltvParser.NAME_LANGUAGE] = true;
+        detailElements[XmltvParser.NAME_ORIG_LANGUAGE] = true;
+        detailElements[XmltvParser.NAME_COUNTRY] = true;
+        detailElements[XmltvParser.NAME_ASPECT] = true;
+    }
+
+    /**
+     * Loads a summary of the programme from an XML input stream, containing
+     * just the fields that are needed to display and match the programme
+     * in the programme list.  The remaining details are fetched from the
+     * details for the programme's day the first time that they are requested.
+     *
+     * When this method exits, the parser will be positioned just after
+     * the programme end element.
+     *
+     * @param parser Pull parser containing the input.  Must be positioned
+     * on the programme element.
+     * @param convertTimezone true to convert date/time values to local time
+     * @param details the details for the day of programmes in the cache
+     * @param ordinal the index of the programme element within the day's data
+     * @throws XmlPullParserException error in xml data
+     * @throws IOException error reading the xml data
+     */
+    public void loadSummary(XmlPullParser parser, boolean convertTimezone, TvProgrammeDetails details, int ordinal) throws XmlPullParserException, IOException {
+        load(parser, convertTimezone, false);
+        this.details = details;
+        this.detailsOrdinal = ordinal;
+    }
+
+    private void load(XmlPullParser parser, boolean convertTimezone, boolean full) throws XmlPullParserException, IOException {
+        setTimes(Utils.parseTime(parser.getAttributeValue(null, "start"), convertTimezone),
+                 Utils.parseTime(parser.getAttributeValue(null, "stop"), convertTimezone));
         int eventType = parser.next();
         while (eventType != XmlPullParser.END_DOCUMENT) {
             if (eventType == XmlPullParser.START_TAG) {
                 String name = parser.getName();
-                boolean handled = true;
-                switch (name.charAt(0)) {
-                case 'a':
-                    if (name.equals("actor")) {
-                        addToList(actors, Utils.getContents(parser, name));
-                    } else if (name.equals("aspect")) {
-                        aspectRatio = Utils.getContents(parser, name);
-                    } else if (name.equals("adapter")) {
-                        addOtherCredit("Adapted By", Utils.getContents(parser, name));
-                    } else {
-                        handled = false;
-                    }
+                int code = XmltvParser.getNameCode(parser);
+                if (!full && detailElements[code]) {
+                    Utils.skipContents(parser, name);
+                    eventType = parser.next();
+                    continue;
+                }
+                switch (code) {
+                case XmltvParser.NAME_ACTOR:
+                    addToList(actors, Utils.getContents(parser, name));
+                    break;
+                case XmltvParser.NAME_ASPECT:
+                    aspectRatio = getSharedContents(parser, name);
                     break;
-                case 'c':
-                    if (name.equals("category")) {
-                        String category = Utils.getContents(parser, name);
-                        if (category != null) {
-                            categories.add(category);
-                            char ch = category.charAt(0);
-                            if (ch == 'M') {
-                                if (category.equalsIgnoreCase("Movie") ||
-                                        category.equalsIgnoreCase("Movies"))
-                                    m_isMovie = true;
-                            }
+                case XmltvParser.NAME_ADAPTER:
+                    addOtherCredit("Adapted By", Utils.getContents(parser, name));
+                    break;
+                case XmltvParser.NAME_CATEGORY: {
+                    String category = getSharedContents(parser, name);
+                    if (category != null) {
+                        categories.add(category);
+                        char ch = category.charAt(0);
+                        if (ch == 'M') {
+                            if (category.equalsIgnoreCase("Movie") ||
+                                    category.equalsIgnoreCase("Movies"))
+                                m_isMovie = true;
                         }
-                    } else if (name.equals("credits")) {
-                        // Container element - nothing to do.
-                    } else if (name.equals("country")) {
-                        country = Utils.getContents(parser, name);
-                    } else if (name.equals("commentator")) {
-                        addOtherCredit("Commentator", Utils.getContents(parser, name));
-                    } else if (name.equals("composer")) {
-                        addOtherCredit("Composer", Utils.getContents(parser, name));
-                    } else {
-                        handled = false;
                     }
                     break;
-                case 'd':
-                    if (name.equals("desc")) {
-                        description = Utils.getContents(parser, name);
-                    } else if (name.equals("date")) {
-                        date = Utils.getContents(parser, name);
-                    } else if (name.equals("director")) {
-                        addToList(directors, Utils.getContents(parser, name));
-                    } else {
-                        handled = false;
-                    }
+                }
+                case XmltvParser.NAME_CREDITS:
+                    // Container element - nothing to do.
                     break;
-                case 'e':
-                    if (name.equals("episode-num")) {
-                        String system = parser.getAttributeValue(null, "system");
-                        if (system != null && system.equals("xmltv_ns"))
-                            episodeNumber = fixEpisodeNumber(Utils.getContents(parser, name));
-                    } else if (name.equals("editor")) {
-                        addOtherCredit("Editor", Utils.getContents(parser, name));
-                    } else {
-                        handled = false;
-                    }
+                case XmltvParser.NAME_COUNTRY:
+                    country = getSharedContents(parser, name);
                     break;
-                case 'g':
-                    if (name.equals("guest")) {
-                        addOtherCredit("Guest", Utils.getContents(parser, name));
-                    } else {
-                        handled = false;
-                    }
+                case XmltvParser.NAME_COMMENTATOR:
+                    addOtherCredit("Commentator", Utils.getContents(parser, name));
                     break;
-                case 'l':
-                    if (name.equals("language")) {
-                        language = Utils.getContents(parser, name);
-                    } else {
-                        handled = false;
-                    }
+                case XmltvParser.NAME_COMPOSER:
+                    addOtherCredit("Composer", Utils.getContents(parser, name));
                     break;
-                case 'o':
-                    if (name.equals("orig-language")) {
-                        originalLanguage = Utils.getContents(parser, name);
-                    } else {
-                        handled = false;
-                    }
+                case XmltvParser.NAME_DESC:
+                    description = Utils.getContents(parser, name);
                     break;
-                case 'p':
-                    if (name.equals("premiere")) {
-                        isPremiere = true;
-                    } else if (name.equals("previously-shown")) {
-                        isRepeat = true;
-                    } else if (name.equals("presenter")) {
-                        addToList(presenters, Utils.getContents(parser, name));
-                    } else if (name.equals("producer")) {
-                        addOtherCredit("Producer", Utils.getContents(parser, name));
-                    } else {
-                        handled = false;
-                    }
+                case XmltvParser.NAME_DATE:
+                    date = Utils.getContents(parser, name);
                     break;
-                case 'r':
-                    if (name.equals("rating")) {
-                        rating = Utils.getContents(parser, name);
-                    } else {
-                        handled = false;
-                    }
+                case XmltvParser.NAME_DIRECTOR:
+                    addToList(directors, Utils.getContents(parser, name));
                     break;
-                case 's':
-                    if (name.equals("sub-title")) {
-                        subTitle = Utils.getContents(parser, name);
-                    } else if (name.equals("star-rating")) {
-                        starRating = Utils.getContents(parser, name);
-                    } else {
-                        handled = false;
-                    }
+                case XmltvParser.NAME_EPISODE_NUM: {
+                    String system = parser.getAttributeValue(null, "system");
+                    if (system != null && system.equals("xmltv_ns"))
+                        episodeNumber = fixEpisodeNumber(Utils.getContents(parser, name));
                     break;
-                case 't':
-                    if (name.equals("title")) {
-                        title = Utils.getContents(parser, name);
-                    } else {
-                        handled = false;
-                    }
+                }
+                case XmltvParser.NAME_EDITOR:
+                    addOtherCredit("Editor", Utils.getContents(parser, name));
                     break;
-                case 'v':
-                    if (name.equals("video")) {
-                        // Container element - nothing to do.
-                    } else {
-                        handled = false;
-                    }
+                case XmltvParser.NAME_GUEST:
+                    addOtherCredit("Guest", Utils.getContents(parser, name));
                     break;
-                case 'w':
-                    if (name.equals("writer")) {
-                        addOtherCredit("Writer", Utils.getContents(parser, name));
-                    } else {
-                        handled = false;
-                    }
+                case XmltvParser.NAME_LANGUAGE:
+                    language = getSharedContents(parser, name);
                     break;
-                default:
-                    handled = false;
+                case XmltvParser.NAME_ORIG_LANGUAGE:
+                    originalLanguage = getSharedContents(parser, name);
                     break;
-                }
-                if (!handled) {
+                case XmltvParser.NAME_PREMIERE:
+                    isPremiere = true;
+                    break;
+                case XmltvParser.NAME_PREVIOUSLY_SHOWN:
+                    isRepeat = true;
+                    break;
+                case XmltvParser.NAME_PRESENTER:
+                    addToList(presenters, Utils.getContents(parser, name));
+                    break;
+                case XmltvParser.NAME_PRODUCER:
+                    addOtherCredit("Producer", Utils.getContents(parser, name));
+                    break;
+                case XmltvParser.NAME_RATING:
+                    rating = getSharedContents(parser, name);
+                    break;
+                case XmltvParser.NAME_SUB_TITLE:
+                    subTitle = Utils.getContents(parser, name);
+                    break;
+                case XmltvParser.NAME_STAR_RATING:
+                    starRating = getSharedContents(parser, name);
+                    break;
+                case XmltvParser.NAME_TITLE:
+                    title = Utils.getContents(parser, name);
+                    break;
+                case XmltvParser.NAME_VIDEO:
+                    // Container element - nothing to do.
+                    break;
+                case XmltvParser.NAME_WRITER:
+                    addOtherCredit("Writer", Utils.getContents(parser, name));
+                    break;
+                case XmltvParser.NAME_PRESENT:
+                case XmltvParser.NAME_QUALITY:
+                case XmltvParser.NAME_AUDIO:
+                case XmltvParser.NAME_STEREO:
+                case XmltvParser.NAME_LAST_CHANCE:
+                case XmltvParser.NAME_NEW:
+                case XmltvParser.NAME_SUBTITLES:
+                case XmltvParser.NAME_REVIEW:
+                case XmltvParser.NAME_URL:
+                case XmltvParser.NAME_LENGTH:
+                case XmltvParser.NAME_ICON:
                     // The following are in the DTD, but not processed yet.
-                    if (name.equals("present") ||
-                            name.equals("quality") ||
-                            name.equals("audio") ||
-                            name.equals("stereo") ||
-                            name.equals("last-chance") ||
-                            name.equals("new") ||
-                            name.equals("subtitles") ||
-                            name.equals("review") ||
-                            name.equals("url") ||
-                            name.equals("length") ||
-                            name.equals("icon")) {
-                        System.out.println("Warning: unhandled standard programme element: " + name);
-                    } else {
-                        System.out.println("Warning: unknown programme element: " + name);
-                    }
+                    System.out.println("Warning: unhandled standard programme element: " + name);
+                    break;
+                default:
+                    System.out.println("Warning: unknown programme element: " + name);
+                    break;
                 }
             } else if (eventType == XmlPullParser.END_TAG) {
-                if (parser.getName().equals("programme"))
+                if (XmltvParser.getNameCode(parser) == XmltvParser.NAME_PROGRAMME)
                     break;
             }
             eventType = parser.next();
         }
     }
 
+    /**
+     * Determine if the long description details for a programme are
+     * available.  Programmes that were loaded with loadSummary() only
+     * have their summary fields until the details for their day have
+     * been loaded in the background.
+     *
+     * @param callback run on a background thread once the details are
+     * available, if they are not available yet
+     * @return true if the details are available, false if the callback
+     * will be run later
+     */
+    public synchronized boolean requestDetails(Runnable callback) {
+        if (details == null || details.isLoaded())
+            return true;
+        details.whenLoaded(callback);
+        return false;
+    }
+
+    /**
+     * Loads the long description details for a programme that was loaded
+     * with loadSummary(), from the details that are shared by its day.
+     * Nothing happens if the details have not been loaded yet.
+     */
+    private synchronized void loadDetails() {
+        if (details == null || !details.isLoaded())
+            return;
+        TvProgramme prog = details.get(detailsOrdinal);
+        details = null;
+
+        // Don't mix in details from a different programme
+        // if the data file has been replaced in the meantime.
+        if (prog != null && Utils.stringEquals(prog.getTitle(), title) &&
+                prog.getStartSeconds() == startTime) {
+            description = prog.getDescription();
+            directors = prog.getDirectors();
+            presenters = prog.getPresenters();
+            otherCredits = prog.getOtherCredits();
+            language = prog.getLanguage();
+            originalLanguage = prog.getOriginalLanguage();
+            country = prog.getCountry();
+            aspectRatio = prog.getAspectRatio();
+        }
+    }
+
     private static int TITLE_COLOR = 0;
     private static int DETAILS_COLOR = 0xFF606060;
     private static int HEADING_COLOR = 0;
@@ -327,6 +553,12 @@ public class TvProgramme {
      */
     public SpannableString getShortDescription(Context context, TvBookmarkMatch match) {
         RichTextFormatter formatter = new RichTextFormatter(context);
+        boolean isMovie = isMovie();
+        boolean isRepeat = isRepeat();
+        String date = getDate();
+        String rating = getRating();
+        String subTitle = getSubTitle();
+        String episodeNumber = getEpisodeNumber();
         if (match == TvBookmarkMatch.TickMatch)
             formatter.addImage(R.drawable.tick);
         else if (bookmark != null && !bookmark.isOnAir() && match != TvBookmarkMatch.ShouldMatch)
@@ -350,9 +582,9 @@ public class TvProgramme {
             formatter.setColor(bookmark.getColor());
             break;
         }
-        if (m_isMovie)
+        if (isMovie)
             formatter.append("MOVIE: ");
-        formatter.append(title);
+        formatter.append(getTitle());
         formatter.setBold(false);
         formatter.setColor(DETAILS_COLOR);
         if (date != null && !date.equals("0"))
@@ -364,20 +596,20 @@ public class TvProgramme {
         } else if (isRepeat) {
             formatter.append(" (R)");
         }
-        String stars = formatStars(starRating);
+        String stars = formatStars(getStarRating());
         if (stars != null) {
             formatter.append(" ");
             formatter.append(stars);
         }
         String category = null;
-        for (String cat: categories) {
+        for (String cat: getCategories()) {
             // Ignore generic categories that occur early in the list.
             if (cat.equalsIgnoreCase("Movie") || cat.equalsIgnoreCase("Movies") || cat.equalsIgnoreCase("series"))
                 continue;
             category = cat;
             break;
         }
-        if (!m_isMovie && category != null) {
+        if (!isMovie && category != null) {
             formatter.append(", ");
             formatter.append(category);
         }
@@ -391,9 +623,10 @@ public class TvProgramme {
             formatter.append(")");
         }
         formatter.setItalic(false);
-        if (m_isMovie) {
+        if (isMovie) {
             // Add the category and first actor name to the second line for movies
             // because there usually will be no episode name.
+            List<String> actors = getActors();
             String actor = (actors.size() > 0 ? actors.get(0) : null);
             if (category != null)
                 formatter.append(category);
@@ -403,7 +636,7 @@ public class TvProgramme {
                 formatter.append(actor);
             }
         }
-        if (isPremiere) {
+        if (isPremiere()) {
             formatter.append(", ");
             formatter.setBold(true);
             formatter.setColor(PREMIERE_COLOR);
@@ -439,6 +672,7 @@ public class TvProgramme {
         
         // Add the full programme description.
         formatter.setColor(DETAILS_COLOR);
+        String description = getDescription();
         if (description != null) {
             formatter.append(description);
             formatter.endParagraph();
@@ -450,24 +684,25 @@ public class TvProgramme {
         formatter.setColor(DETAILS_COLOR);
         formatter.append(Long.toString(getDuration()));
         formatter.append(" minutes, ");
-        formatter.append(Utils.formatTime(getStart()));
+        formatter.append(Utils.formatTime(getStartTimeOfDay()));
         formatter.append(" to ");
-        formatter.append(Utils.formatTime(getStop()));
+        formatter.append(Utils.formatTime(getStopTimeOfDay()));
         formatter.endParagraph();
         
         // Add categories, actors, directors, etc.
-        formatCredits(formatter, "Categories", categories);
-        formatCredits(formatter, "Starring", actors);
-        formatCredits(formatter, "Presenter", presenters);
+        formatCredits(formatter, "Categories", getCategories());
+        formatCredits(formatter, "Starring", getActors());
+        formatCredits(formatter, "Presenter", getPresenters());
+        Map< String, List<String> > otherCredits = getOtherCredits();
         for (String key: otherCredits.keySet())
             formatCredits(formatter, key, otherCredits.get(key));
-        formatCredits(formatter, "Director", directors);
+        formatCredits(formatter, "Director", getDirectors());
         
         // Other values.
-        formatField(formatter, "Language", language);
-        formatField(formatter, "Original language", originalLanguage);
-        formatField(formatter, "Country", country);
-        formatField(formatter, "Aspect ratio", aspectRatio);
+        formatField(formatter, "Language", getLanguage());
+        formatField(formatter, "Original language", getOriginalLanguage());
+        formatField(formatter, "Country", getCountry());
+        formatField(formatter, "Aspect ratio", getAspectRatio());
         
         return formatter.toSpannableString();
     }
@@ -528,6 +763,12 @@ public class TvProgramme {
         return null;
     }
     
+    // Values from a small fixed vocabulary, such as categories and ratings,
+    // are shared via the string dictionary.
+    private static String getSharedContents(XmlPullParser parser, String name) throws XmlPullParserException, IOException {
+        return TvStringDictionary.getInstance().intern(Utils.getContents(parser, name));
+    }
+
     private static void addToList(List<String> list, String str) {
         if (str != null)
             list.add(str);
@@ -575,6 +816,12 @@ public class TvProgramme {
 
     // Internal state.
     private TvChannel channel;
+    private long startTime = Utils.NO_TIME;
+    private long stopTime = Utils.NO_TIME;
+    private long startLocal = Utils.NO_TIME;
+    private long stopLocal = Utils.NO_TIME;
+    private int startTimeOfDay;
+    private boolean timesLoaded;
     private Calendar start;
     private Calendar stop;
     private String title;
@@ -599,4 +846,9 @@ public class TvProgramme {
     private boolean m_isMovie;
     private TvBookmark bookmark;
     private TvBookmarkMatch match;
+    private TvProgrammeMatchKey matchKey;
+    private TvProgrammeSnapshot snapshot;
+    private int record;
+    private TvProgrammeDetails details;
+    private int detailsOrdinal;
 }
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2011,2012  Southern Storm Software, Pty Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.southernstorm.tvguide;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Long description details for a day of programmes that were read from
+ * the XMLTV data as summaries, because the day had no compiled snapshot.
+ *
+ * The details for the whole day are loaded once and then shared by all
+ * of the day's programmes.  Loading the details compiles the day's
+ * snapshot and search index, and the details are then decoded from the
+ * memory-mapped snapshot.  This is done on a background thread as soon
+ * as the summaries have been read, so that the details are normally ready
+ * by the time that a programme is expanded.  Readers never wait for the
+ * details; they register a callback with whenLoaded() instead.
+ */
+public class TvProgrammeDetails {
+
+    private static ExecutorService compiler = null;
+
+    private TvChannel channel;
+    private TvDayKey date;
+    private boolean loaded;
+    private volatile boolean ready;
+    private List<Runnable> waiting;
+    private TvProgrammeSnapshot snapshot;
+    private List<TvProgramme> programmes;
+
+    /**
+     * Constructs the details for a day of programmes.
+     *
+     * @param channel the channel that the programmes are on
+     * @param date the date of the XMLTV data file in the cache
+     */
+    public TvProgrammeDetails(TvChannel channel, TvDayKey date) {
+        this.channel = channel;
+        this.date = date;
+        this.waiting = new ArrayList<Runnable>();
+    }
+
+    public TvDayKey getDate() { return date; }
+
+    private static synchronized ExecutorService getCompiler() {
+        if (compiler == null)
+            compiler = Executors.newSingleThreadExecutor(new TvBackgroundThreadFactory("TvProgrammeDetails"));
+        return compiler;
+    }
+
+    /**
+     * Loads the details on a background thread.
+     */
+    public void loadInBackground() {
+        getCompiler().execute(new Runnable() {
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * Loads the details if they have not been loaded already.  The snapshot
+     * for the day is compiled if necessary.  If it cannot be written, then
+     * the fully-parsed programmes are kept instead.  This may take a while,
+     * so it must not be called on the UI thread.
+     */
+    public synchronized void load() {
+        if (loaded)
+            return;
+        loaded = true;
+        try {
+            TvChannelCache cache = TvChannelCache.getInstance();
+            snapshot = cache.mapChannelSnapshot(channel, date);
+            if (snapshot == null) {
+                List<TvProgramme> progs = cache.compileChannelData(channel, date);
+                snapshot = cache.mapChannelSnapshot(channel, date);
+                if (snapshot == null)
+                    programmes = progs;
+            }
+        } finally {
+            List<Runnable> callbacks;
+            synchronized (waiting) {
+                ready = true;
+                callbacks = new ArrayList<Runnable>(waiting);
+                waiting.clear();
+            }
+            for (Runnable callback: callbacks)
+                callback.run();
+        }
+    }
+
+    /**
+     * Determine if the details have been loaded.
+     *
+     * @return true if the details have been loaded, false if not
+     */
+    public boolean isLoaded() { return ready; }
+
+    /**
+     * Arranges for a callback to be run once the details have been loaded.
+     * The callback is run on the background thread that loaded the details,
+     * or immediately if they have already been loaded.  A callback that is
+     * already waiting is not added again.
+     *
+     * @param callback the callback to run
+     */
+    public void whenLoaded(Runnable callback) {
+        synchronized (waiting) {
+            if (!ready) {
+                if (!waiting.contains(callback))
+                    waiting.add(callback);
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    /**
+     * Gets the fully-loaded version of a programme.  This never waits for
+     * the details to be loaded.
+     *
+     * @param ordinal the index of the programme element within the day's data
+     * @return the programme, or null if the details are not available yet
+     */
+    public TvProgramme get(int ordinal) {
+        if (!ready)
+            return null;
+        if (snapshot != null)
+            return (ordinal < snapshot.size() ? new TvProgramme(channel, snapshot, ordinal) : null);
+        else if (programmes != null && ordinal < programmes.size())
+            return programmes.get(ordinal);
+        return null;
+    }
+}
@@ -17,14 +17,14 @@
 
 package com.southernstorm.tvguide;
 
-import java.io.InputStream;
-import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.Map;
 
 import android.app.AlertDialog;
 import android.app.Dialog;
@@ -54,19 +54,21 @@ import android.widget.TextView;
 import android.widget.Toast;
 import android.widget.TabHost.TabContentFactory;
 
-public class TvProgrammeListActivity extends TabActivity implements TvNetworkListener, TvBookmarkChangedListener {
+public class TvProgrammeListActivity extends TabActivity implements TvNetworkListener, TvBookmarkChangedListener, TvProgrammeLoadListener {
 
     private static final int NUM_DAYS = 5;
     
     private View[] tabViews;
     private ExpandableListView[] programmeListViews;
     private TvProgrammeListAdapter[] programmeListAdapters;
+    private boolean[] scrolledEarly;
     private ProgressDialog progressDialog;
-    private Calendar date;
+    private TvDayKey date;
     private TvChannel channel;
     private LayoutInflater inflater;
     private boolean landscape;
     private TvScrollTime scrollTime;
+    private TvProgrammeLoader loader;
 
     private static final int DIALOG_PICK_COLOR = 1;
     private static final int DIALOG_EDIT_BOOKMARK = 2;
@@ -82,8 +84,10 @@ public class TvProgrammeListActivity extends TabActivity implements TvNetworkLis
         tabViews = new View[NUM_DAYS];
         programmeListViews = new ExpandableListView[NUM_DAYS];
         programmeListAdapters = new TvProgrammeListAdapter[NUM_DAYS];
+        scrolledEarly = new boolean[NUM_DAYS];
         
         scrollTime = TvScrollTime.NOW;
+        loader = new TvProgrammeLoader(this);
     }
 
     @Override
@@ -106,7 +110,7 @@ public class TvProgrammeListActivity extends TabActivity implements TvNetworkLis
         int year = intent.getIntExtra("date_year", 2000);
         int month = intent.getIntExtra("date_month", Calendar.JANUARY);
         int day = intent.getIntExtra("date_day", 1);
-        date = new GregorianCalendar(year, month, day);
+        date = TvDayKey.fromDate(year, month + 1, day);
         channel = TvChannel.fromBundle(intent.getBundleExtra("channel"));
 
         // Show the channel name in the title bar.
@@ -131,15 +135,28 @@ public class TvProgrammeListActivity extends TabActivity implements TvNetworkLis
             // Activity has been resumed - reuse current tabs.  Since the activity was
             // probably stopped due to "Organize Bookmarks" being displayed, refresh
             // the bookmark matches in the existing tabs when we resume.
-            bookmarksChanged();
+            // Tabs that were still loading when we stopped are reloaded.
+            for (day = 0; day < NUM_DAYS; ++day) {
+                TvProgrammeListAdapter adapter = programmeListAdapters[day];
+                if (adapter != null && adapter.isEmpty())
+                    selectDate(day, adapter.getPrimaryDate());
+            }
+            bookmarksChanged(new TvBookmarkChange());
             return;
         }
         tabHost.clearAllTabs();
+
+        // Load all of the days that the tabs cover in parallel ahead of the tabs
+        // being created.  The tabs will pick up the days when they select them.
+        List<TvDayKey> dates = new ArrayList<TvDayKey>();
+        for (day = 0; day <= NUM_DAYS; ++day)
+            dates.add(date.addDays(day));
+        loader.load(channel, dates, date, false, false);
+
         for (day = 0; day < 5; ++day) {
-            Calendar tabDate = (Calendar)date.clone(); 
-            tabDate.add(Calendar.DAY_OF_MONTH, day);
+            Calendar tabDate = date.addDays(day).toCalendar();
             final int dayNum = day;
-            final Calendar dayDate = tabDate;
+            final TvDayKey dayDate = date.addDays(day);
             CharSequence text;
             if (landscape)
                 text = DateFormat.format("E MMM dd", tabDate);
@@ -172,7 +189,7 @@ public class TvProgrammeListActivity extends TabActivity implements TvNetworkLis
      * @param date the date on the tab
      * @return the view to display in the tab
      */
-    private View createTabView(int day, Calendar date) {
+    private View createTabView(int day, TvDayKey date) {
         // Return the existing view if we have one.
         if (tabViews[day] != null)
             return tabViews[day];
@@ -196,6 +213,8 @@ public class TvProgrammeListActivity extends TabActivity implements TvNetworkLis
 
     @Override
     protected void onStop() {
+        loader.cancel();
+        Arrays.fill(scrolledEarly, false);
         channel.clearProgrammes();
         TvChannelCache.getInstance().removeContext(this);
         TvChannelCache.getInstance().removeNetworkListener(this);
@@ -209,6 +228,12 @@ public class TvProgrammeListActivity extends TabActivity implements TvNetworkLis
         super.onStop();
     }
 
+    @Override
+    protected void onDestroy() {
+        loader.shutdown();
+        super.onDestroy();
+    }
+
     /** Load preferences when the activity is resumed */
     @Override
     protected void onResume() {
@@ -250,8 +275,7 @@ public class TvProgrammeListActivity extends TabActivity implements TvNetworkLis
             View indicator = tabHost.getTabWidget().getChildTabViewAt(day);
             indicator.getLayoutParams().height = tabHeight;
             TextView title = (TextView)indicator.findViewById(android.R.id.title);
-            Calendar tabDate = (Calendar)date.clone();
-            tabDate.add(Calendar.DAY_OF_MONTH, day);
+            Calendar tabDate = date.addDays(day).toCalendar();
             CharSequence text;
             if (landscape)
                 text = DateFormat.format("E MMM dd", tabDate);
@@ -261,11 +285,10 @@ public class TvProgrammeListActivity extends TabActivity implements TvNetworkLis
         }
     }
 
-    private void selectDate(int day, Calendar date) {
+    private void selectDate(int day, TvDayKey date) {
         // Set up the programme list view with the covered channels and dates.
-        Calendar tomorrow = (Calendar)date.clone(); 
-        tomorrow.add(Calendar.DAY_OF_MONTH, 1);
-        List<Calendar> datesCovered = new ArrayList<Calendar>();
+        TvDayKey tomorrow = date.addDays(1);
+        List<TvDayKey> datesCovered = new ArrayList<TvDayKey>();
         datesCovered.add(date);
         datesCovered.add(tomorrow);
         TvProgrammeListAdapter adapter = programmeListAdapters[day];
@@ -281,7 +304,7 @@ public class TvProgrammeListActivity extends TabActivity implements TvNetworkLis
         // Nothing to do here.
     }
 
-    public void setCurrentNetworkRequest(TvChannel channel, Calendar date, Calendar primaryDate) {
+    public void setCurrentNetworkRequest(TvChannel channel, TvDayKey date, TvDayKey primaryDate) {
         String message = channel.getName(); // + " " + DateFormat.format("E, MMM dd", primaryDate);
         if (progressDialog == null) {
             progressDialog = ProgressDialog.show
@@ -321,39 +344,53 @@ public class TvProgrammeListActivity extends TabActivity implements TvNetworkLis
             progressDialog.hide();
     }
 
-    private void fetch(TvChannel channel, Calendar date, Calendar primaryDate) {
-        InputStream stream = TvChannelCache.getInstance().openChannelData(channel, date);
-        if (stream != null)
-            parseProgrammes(channel, date, stream);
-        else
-            TvChannelCache.getInstance().fetch(channel, date, primaryDate);
+    private void fetch(TvChannel channel, TvDayKey date, TvDayKey primaryDate) {
+        loader.load(channel, date, primaryDate, true, false);
     }
     
-    public void dataAvailable(TvChannel channel, Calendar date, Calendar primaryDate) {
-        InputStream stream = TvChannelCache.getInstance().openChannelData(channel, date);
-        if (stream != null)
-            parseProgrammes(channel, date, stream);
+    public void dataAvailable(TvChannel channel, TvDayKey date, TvDayKey primaryDate) {
+        loader.load(channel, date, primaryDate, false, true);
+    }
+
+    public void programmesNotCached(TvChannel channel, TvDayKey date, TvDayKey primaryDate) {
+        TvChannelCache.getInstance().fetch(channel, date, primaryDate);
     }
     
-    private void parseProgrammes(TvChannel channel, Calendar date, InputStream stream) {
-        channel.loadProgrammesFromXml(date, stream);
-        try {
-            stream.close();
-        } catch (IOException e) {
+    public void programmesLoaded(TvChannel channel, Map< TvDayKey, List<TvProgramme> > days) {
+        int time = scrollTime.toTime();
+        for (int day = 0; day < NUM_DAYS; ++day) {
+            TvProgrammeListAdapter adapter = programmeListAdapters[day];
+            if (adapter != null && adapter.isChannelCovered(channel)) {
+                TvDayKey primaryDate = adapter.getPrimaryDate();
+                if (!days.containsKey(primaryDate))
+                    continue;
+                adapter.setProgrammes(days.get(primaryDate));
+                if (!scrolledEarly[day])
+                    programmeListViews[day].setSelectionFromTop(adapter.getPositionForTime(time), 20);
+                scrolledEarly[day] = false;
+            }
         }
+    }
+
+    public void programmesParsed(TvChannel channel, TvDayKey date, List<TvProgramme> programmes) {
         int time = scrollTime.toTime();
         for (int day = 0; day < NUM_DAYS; ++day) {
             TvProgrammeListAdapter adapter = programmeListAdapters[day];
-            if (adapter != null && adapter.isChannelCovered(channel) && adapter.isDateCovered(date)) {
-                List<TvProgramme> programmes = channel.programmesForDay(adapter.getPrimaryDate());
-                TvBookmarkManager.getInstance().matchProgrammes(programmes);
-                adapter.setProgrammes(programmes);
-                programmeListViews[day].setSelectionFromTop(adapter.getPositionForTime(time), 20);
+            if (adapter != null && adapter.isChannelCovered(channel) && date.equals(adapter.getPrimaryDate())) {
+                if (!adapter.appendProgrammes(programmes))
+                    continue;
+
+                // Scroll as soon as the scroll time is in the list, and then
+                // leave the position alone while the rest of the day arrives.
+                if (!scrolledEarly[day] && adapter.getTimeForPosition(programmes.size() - 1) > time) {
+                    programmeListViews[day].setSelectionFromTop(adapter.getPositionForTime(time), 20);
+                    scrolledEarly[day] = true;
+                }
             }
         }
     }
 
-    public void requestFailed(TvChannel channel, Calendar date, Calendar primaryDate) {
+    public void requestFailed(TvChannel channel, TvDayKey date, TvDayKey primaryDate) {
     }
 
     private static final int ITEM_WEB_SEARCH = 1;
@@ -446,9 +483,9 @@ public class TvProgrammeListActivity extends TabActivity implements TvNetworkLis
             TvBookmark bookmark = new TvBookmark();
             bookmark.setTitle(prog.getTitle());
             bookmark.setChannelId(prog.getChannel().getId());
-            bookmark.setDayOfWeek(prog.getStart().get(Calendar.DAY_OF_WEEK));
-            bookmark.setStartTime(TvBookmark.getTimeOfDay(prog.getStart()));
-            bookmark.setStopTime(TvBookmark.getTimeOfDay(prog.getStop()));
+            bookmark.setDayOfWeek(prog.getStartDayOfWeek());
+            bookmark.setStartTime(prog.getStartTimeOfDay());
+            bookmark.setStopTime(prog.getStopTimeOfDay());
             TvBookmarkManager.getInstance().addBookmark(bookmark);
             showBookmarkDialog(DIALOG_PICK_COLOR, bookmark);
             break;
@@ -487,11 +524,11 @@ public class TvProgrammeListActivity extends TabActivity implements TvNetworkLis
             // Send a new event to the device's calendar application.
             Intent intent = new Intent(Intent.ACTION_EDIT);
             intent.setType("vnd.android.cursor.item/event");
-            intent.putExtra("beginTime", prog.getStart().getTimeInMillis());
+            intent.putExtra("beginTime", prog.getStartSeconds() * 1000);
             intent.putExtra("allDay", false);
             //if (!prog.isMovie())    // Movies are typically one-off, so no weekly rule for them.
             //    intent.putExtra("rrule", "FREQ=WEEKLY" + weeklyRule(prog.getStart().get(Calendar.DAY_OF_WEEK)));
-            intent.putExtra("endTime", prog.getStop().getTimeInMillis());
+            intent.putExtra("endTime", prog.getStopSeconds() * 1000);
             if (prog.isMovie())
                 intent.putExtra("title", "MOVIE: " + prog.getTitle());
             else
@@ -537,12 +574,13 @@ public class TvProgrammeListActivity extends TabActivity implements TvNetworkLis
         }
     }
     
-    public void bookmarksChanged() {
+    public void bookmarksChanged(TvBookmarkChange change) {
         for (int day = 0; day < NUM_DAYS; ++day) {
             TvProgrammeListAdapter adapter = programmeListAdapters[day];
             if (adapter != null) {
-                TvBookmarkManager.getInstance().matchProgrammes(adapter.getProgrammes());
-                adapter.updateAllProgrammes();
+                List<Integer> changed = TvBookmarkManager.getInstance().matchChangedProgrammes
+                        (adapter.getProgrammes(), change);
+                adapter.updateProgrammes(programmeListViews[day], changed);
             }
         }
     }
@@ -18,15 +18,16 @@
 package com.southernstorm.tvguide;
 
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.List;
 
 import android.content.Context;
 import android.database.DataSetObserver;
+import android.os.Handler;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ExpandableListAdapter;
+import android.widget.ExpandableListView;
 import android.widget.TextView;
 
 public class TvProgrammeListAdapter implements ExpandableListAdapter {
@@ -35,19 +36,35 @@ public class TvProgrammeListAdapter implements ExpandableListAdapter {
     private List<TvProgramme> programmes;
     private List<DataSetObserver> observers;
     private LayoutInflater inflater;
+    private Handler handler;
+    private Runnable detailsLoaded;
     private TvChannel channel;
-    private List<Calendar> datesCovered;
+    private List<TvDayKey> datesCovered;
+    private boolean partial;
+    private int[] startTimes;
     private static final int timeColorMorning = R.drawable.time_color_morning;
     private static final int timeColorAfternoon = R.drawable.time_color_afternoon;
     private static final int timeColorNight = R.drawable.time_color_night;
     private static final int timeColorLateNight = R.drawable.time_color_late_night;
     private static final List<TvProgramme> emptyProgrammes = new ArrayList<TvProgramme>();
+    private static final int[] emptyStartTimes = new int [0];
 
     public TvProgrammeListAdapter(Context context) {
         this.context = context;
         programmes = emptyProgrammes;
+        startTimes = emptyStartTimes;
         observers = new ArrayList<DataSetObserver>();
         inflater = LayoutInflater.from(context);
+        handler = new Handler();
+        detailsLoaded = new Runnable() {
+            public void run() {
+                handler.post(new Runnable() {
+                    public void run() {
+                        updateAllProgrammes();
+                    }
+                });
+            }
+        };
     }
 
     public List<TvProgramme> getProgrammes() {
@@ -59,10 +76,35 @@ public class TvProgrammeListAdapter implements ExpandableListAdapter {
             this.programmes = programmes;
         else
             this.programmes = emptyProgrammes;
+        partial = false;
+        updateStartTimes(0);
         for (DataSetObserver observer: observers)
             observer.onChanged();
     }
 
+    /**
+     * Extends the list with programmes that have been parsed so far.  The
+     * new list must start with the programmes that are already displayed.
+     * The list is left alone if it is already showing a complete day,
+     * so that a reload does not blank out the old data while it is parsed.
+     * 
+     * @param programmes the programmes parsed so far
+     * @return true if the list was extended, false if not
+     */
+    public boolean appendProgrammes(List<TvProgramme> programmes) {
+        if (!partial && !this.programmes.isEmpty())
+            return false;
+        if (programmes.size() <= this.programmes.size())
+            return false;
+        int known = this.programmes.size();
+        this.programmes = programmes;
+        partial = true;
+        updateStartTimes(known);
+        for (DataSetObserver observer: observers)
+            observer.onChanged();
+        return true;
+    }
+
     /**
      * Gets the channel that is currently being displayed by the programme list's view.
      * 
@@ -97,7 +139,7 @@ public class TvProgrammeListAdapter implements ExpandableListAdapter {
      * 
      * @return the list of dates, or null if none
      */
-    public List<Calendar> getDatesCovered() {
+    public List<TvDayKey> getDatesCovered() {
         return datesCovered;
     }
 
@@ -109,7 +151,7 @@ public class TvProgrammeListAdapter implements ExpandableListAdapter {
      * 
      * @param datesCovered the list of dates
      */
-    public void setDatesCovered(List<Calendar> datesCovered) {
+    public void setDatesCovered(List<TvDayKey> datesCovered) {
         this.datesCovered = datesCovered;
     }
 
@@ -119,7 +161,7 @@ public class TvProgrammeListAdapter implements ExpandableListAdapter {
      * @param date the date to test
      * @return true if the date is covered, false otherwise
      */
-    public boolean isDateCovered(Calendar date) {
+    public boolean isDateCovered(TvDayKey date) {
         return datesCovered != null && datesCovered.contains(date);
     }
     
@@ -128,7 +170,7 @@ public class TvProgrammeListAdapter implements ExpandableListAdapter {
      * 
      * @return the primary display date
      */
-    public Calendar getPrimaryDate() {
+    public TvDayKey getPrimaryDate() {
         if (datesCovered != null && datesCovered.size() > 0)
             return datesCovered.get(0);
         else
@@ -184,6 +226,42 @@ public class TvProgrammeListAdapter implements ExpandableListAdapter {
             observer.onChanged();
     }
 
+    /**
+     * Updates specific programmes in the view.  Rows that are on the screen
+     * are re-bound in place; the others will be bound when they are
+     * scrolled into view.  The neighbours of each programme are also
+     * updated, as a row's display depends on the programmes either side.
+     * 
+     * @param view the list view that is displaying this adapter
+     * @param positions the positions of the programmes that changed
+     */
+    public void updateProgrammes(ExpandableListView view, List<Integer> positions) {
+        if (positions.isEmpty())
+            return;
+        if (view == null) {
+            updateAllProgrammes();
+            return;
+        }
+        int count = view.getChildCount();
+        int first = view.getFirstVisiblePosition();
+        for (int index = 0; index < count; ++index) {
+            long packed = view.getExpandableListPosition(first + index);
+            if (ExpandableListView.getPackedPositionType(packed) != ExpandableListView.PACKED_POSITION_TYPE_GROUP)
+                continue;
+            int position = ExpandableListView.getPackedPositionGroup(packed);
+            if (!positions.contains(Integer.valueOf(position)) &&
+                    !positions.contains(Integer.valueOf(position - 1)) &&
+                    !positions.contains(Integer.valueOf(position + 1)))
+                continue;
+            View child = view.getChildAt(index);
+            if (getGroupView(position, view.isGroupExpanded(position), child, view) != child) {
+                // The row needs a different layout, so rebuild everything.
+                updateAllProgrammes();
+                return;
+            }
+        }
+    }
+
     private class GroupViewDetails {
         public boolean isExpanded;
         public TextView time;
@@ -192,9 +270,9 @@ public class TvProgrammeListAdapter implements ExpandableListAdapter {
     }
 
     private boolean crossesSixAM(TvProgramme prog) {
-        if (prog.getStart().get(Calendar.HOUR_OF_DAY) >= 6)
+        if (prog.getStartTimeOfDay() >= 6 * 60 * 60)
             return false;
-        if (prog.getStop().get(Calendar.HOUR_OF_DAY) >= 6)
+        if (prog.getStopTimeOfDay() >= 6 * 60 * 60)
             return true;
         return false;
     }
@@ -224,11 +302,11 @@ public class TvProgrammeListAdapter implements ExpandableListAdapter {
             // match is labelled as an underrun or overrun.
             // Probably a double episode where one of the episodes
             // falls outside the normal bookmark range.
-            if (prev != null && prev.getStop().equals(prog.getStart()) &&
+            if (prev != null && prev.getStopSeconds() == prog.getStartSeconds() &&
                     prev.getBookmarkMatch() == TvBookmarkMatch.FullMatch &&
                     prev.getBookmark() == bookmark) {
                 result = TvBookmarkMatch.Overrun;
-            } else if (next != null && next.getStart().equals(prog.getStop()) &&
+            } else if (next != null && next.getStartSeconds() == prog.getStopSeconds() &&
                        next.getBookmarkMatch() == TvBookmarkMatch.FullMatch &&
                        next.getBookmark() == bookmark) {
                 result = TvBookmarkMatch.Underrun;
@@ -267,8 +345,7 @@ public class TvProgrammeListAdapter implements ExpandableListAdapter {
             view.time.setBackgroundResource(timeColorMorning);
             view.time.setText("  6:00\n (cont)");
         } else {
-            Calendar timeval = prog.getStart();
-            int hour = timeval.get(Calendar.HOUR_OF_DAY);
+            int hour = prog.getStartTimeOfDay() / (60 * 60);
             if (hour < 6)
                 view.time.setBackgroundResource(timeColorLateNight);
             else if (hour < 12)
@@ -277,11 +354,15 @@ public class TvProgrammeListAdapter implements ExpandableListAdapter {
                 view.time.setBackgroundResource(timeColorAfternoon);
             else
                 view.time.setBackgroundResource(timeColorNight);
-            view.time.setText(Utils.formatTimeProgrammeList(timeval));
+            view.time.setText(Utils.formatTimeProgrammeList(prog.getStartTimeOfDay()));
         }
         view.short_desc.setText(prog.getShortDescription(context, getDisplayMatch(position)));
-        if (isExpanded)
+        if (isExpanded) {
+            // Show the summary fields for now if the rest of the details
+            // are still being loaded, and re-bind the row once they are.
+            prog.requestDetails(detailsLoaded);
             view.long_desc.setText(prog.getLongDescription(context));
+        }
         return convertView;
     }
 
@@ -310,12 +391,27 @@ public class TvProgrammeListAdapter implements ExpandableListAdapter {
     public void onGroupExpanded(int position) {}
 
     private static int getStartTime(TvProgramme prog, int position) {
-        int hour = prog.getStart().get(Calendar.HOUR_OF_DAY);
-        int minute = prog.getStart().get(Calendar.MINUTE);
-        int second = prog.getStart().get(Calendar.SECOND);
-        if (hour < 6 && position != 0)
-            hour += 24;
-        return hour * 60 * 60 + minute * 60 + second;
+        int time = prog.getStartTimeOfDay();
+        if (time < 6 * 60 * 60 && position != 0)
+            time += 24 * 60 * 60;
+        return time;
+    }
+
+    /**
+     * Recomputes the start times of the programmes in the list, so that
+     * scroll positions can be looked up without visiting every programme.
+     * 
+     * @param known the number of programmes at the start of the list whose
+     * start times are already known
+     */
+    private void updateStartTimes(int known) {
+        int size = programmes.size();
+        int[] times = (size > 0 ? new int [size] : emptyStartTimes);
+        known = Math.min(known, Math.min(size, startTimes.length));
+        System.arraycopy(startTimes, 0, times, 0, known);
+        for (int index = known; index < size; ++index)
+            times[index] = getStartTime(programmes.get(index), index);
+        startTimes = times;
     }
 
     /**
@@ -325,9 +421,9 @@ public class TvProgrammeListAdapter implements ExpandableListAdapter {
      * @return the start time, seconds since midnight (>= 24 hours for "next day")
      */
     public int getTimeForPosition(int position) {
-        if (position < 0 || position >= programmes.size())
+        if (position < 0 || position >= startTimes.length)
             return 0;
-        return getStartTime(programmes.get(position), position);
+        return startTimes[position];
     }
     
     /**
@@ -337,11 +433,16 @@ public class TvProgrammeListAdapter implements ExpandableListAdapter {
      * @return the position
      */
     public int getPositionForTime(int time) {
-        for (int index = 0; index < programmes.size(); ++index) {
-            int t = getStartTime(programmes.get(index), index);
-            if (t > time)
-                return Math.max(0,  index - 1);
+        // Find the first programme that starts after the time.
+        int low = 0;
+        int high = startTimes.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (startTimes[mid] <= time)
+                low = mid + 1;
+            else
+                high = mid;
         }
-        return Math.max(0, programmes.size() - 1);
+        return Math.max(0, low - 1);
     }
 }
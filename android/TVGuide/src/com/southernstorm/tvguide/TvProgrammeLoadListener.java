@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2011,2012  Southern Storm Software, Pty Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.southernstorm.tvguide;
+
+import java.util.List;
+import java.util.Map;
+
+public interface TvProgrammeLoadListener {
+
+    /**
+     * Reports that programmes for a channel have been loaded from the cache
+     * and matched against the bookmarks.
+     *
+     * @param channel the channel
+     * @param days the programmes for each affected day, from 6:00 AM on the
+     * day in the key to 6:00 AM the next day
+     */
+    public void programmesLoaded(TvChannel channel, Map< TvDayKey, List<TvProgramme> > days);
+
+    /**
+     * Reports the programmes for a day that have been parsed so far,
+     * while the rest of the day is still being loaded.  Each report for
+     * a day extends the previous one, and programmesLoaded() will be
+     * called with the full list once the load is complete.
+     *
+     * @param channel the channel
+     * @param day the day, which runs from 6:00 AM onwards
+     * @param programmes the programmes parsed so far
+     */
+    public void programmesParsed(TvChannel channel, TvDayKey day, List<TvProgramme> programmes);
+
+    /**
+     * Reports that the programmes for a channel and date could not be
+     * loaded because the data is not in the cache.
+     *
+     * @param channel the channel
+     * @param date the date that was requested
+     * @param primaryDate the primary date for multi-day requests
+     */
+    public void programmesNotCached(TvChannel channel, TvDayKey date, TvDayKey primaryDate);
+}
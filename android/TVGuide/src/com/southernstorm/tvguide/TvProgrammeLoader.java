@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2011,2012  Southern Storm Software, Pty Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.southernstorm.tvguide;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Handler;
+
+/**
+ * Loads programmes from the cache on background threads.
+ *
+ * Decompressing and parsing the cached data, slicing it into days, and
+ * matching against the bookmarks is all done on a small worker pool.
+ * The finished lists are handed back to the listener on the thread that
+ * created the loader, which only has to swap them into its adapters.
+ *
+ * Requests for a channel and date that is already waiting in the queue
+ * are folded into the earlier request.  Requests for several dates are
+ * parsed in parallel by TvChannel.loadProgrammes().  If the worker pool's
+ * queue is full, then requests wait in an overflow list and are handed
+ * to the pool as earlier requests finish.
+ *
+ * Days that have to be parsed from the XMLTV data are also reported to
+ * the listener in chunks while the parse is still running, so that the
+ * start of the day can be shown before the rest of it has been read.
+ */
+public class TvProgrammeLoader {
+
+    private static final int NUM_THREADS = 2;
+    private static final int QUEUE_SIZE = 16;
+
+    private TvProgrammeLoadListener listener;
+    private Handler handler;
+    private ThreadPoolExecutor executor;
+    private Map<Long, LoadRequest> pending;
+    private LinkedList<LoadRequest> overflow;
+    private volatile int generation;
+
+    /**
+     * Constructs a new programme loader.  Must be called on the UI thread.
+     *
+     * @param listener the listener to notify when programmes have been loaded
+     */
+    public TvProgrammeLoader(TvProgrammeLoadListener listener) {
+        this.listener = listener;
+        this.handler = new Handler();
+        this.pending = new HashMap<Long, LoadRequest>();
+        this.overflow = new LinkedList<LoadRequest>();
+        this.executor = new ThreadPoolExecutor
+            (NUM_THREADS, NUM_THREADS, 0L, TimeUnit.MILLISECONDS,
+             new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new TvBackgroundThreadFactory("TvProgrammeLoader"));
+    }
+
+    private class LoadRequest implements Runnable, TvProgrammeParseListener {
+        public TvChannel channel;
+        public List<TvDayKey> dates;
+        public Long[] keys;
+        public boolean[] fetchIfMissing;
+        public TvDayKey primaryDate;
+        public boolean reload;
+        public boolean started;
+        public int generation;
+        private Map<TvDayKey, Integer> matched = new HashMap<TvDayKey, Integer>();
+
+        public void run() {
+            synchronized (pending) {
+                started = true;
+            }
+            try {
+                if (generation == TvProgrammeLoader.this.generation)
+                    load();
+            } finally {
+                synchronized (pending) {
+                    for (int index = 0; index < keys.length; ++index) {
+                        if (pending.get(keys[index]) == this)
+                            pending.remove(keys[index]);
+                    }
+                    submitOverflow();
+                }
+            }
+        }
+
+        private void load() {
+            // Days that are already loaded only need to be reloaded if
+            // the cache has been updated since.
+            List<TvDayKey> toLoad = dates;
+            if (!reload) {
+                toLoad = new ArrayList<TvDayKey>();
+                for (TvDayKey date: dates) {
+                    if (!channel.hasProgrammes(date))
+                        toLoad.add(date);
+                }
+            }
+            List<TvDayKey> missing = channel.loadProgrammes(toLoad, this);
+
+            // Each date's data appears in the lists for the previous day and itself.
+            final Map< TvDayKey, List<TvProgramme> > days = new TreeMap< TvDayKey, List<TvProgramme> >();
+            for (TvDayKey date: dates) {
+                if (missing.contains(date))
+                    continue;
+                TvDayKey prevDate = date.addDays(-1);
+                addDay(days, prevDate);
+                addDay(days, date);
+            }
+
+            // Check which missing dates need to be fetched.  The flags may have
+            // been set by later requests that were merged into this one.
+            final List<TvDayKey> fetch = new ArrayList<TvDayKey>();
+            synchronized (pending) {
+                for (int index = 0; index < keys.length; ++index) {
+                    if (fetchIfMissing[index] && missing.contains(dates.get(index)))
+                        fetch.add(dates.get(index));
+                    if (pending.get(keys[index]) == this)
+                        pending.remove(keys[index]);
+                }
+            }
+
+            handler.post(new Runnable() {
+                public void run() {
+                    if (generation != TvProgrammeLoader.this.generation)
+                        return;
+                    if (!days.isEmpty())
+                        listener.programmesLoaded(channel, days);
+                    for (TvDayKey date: fetch)
+                        listener.programmesNotCached(channel, date, primaryDate);
+                }
+            });
+        }
+
+        public void programmesParsed(TvChannel channel, final TvDayKey date, List<TvProgramme> programmes) {
+            if (generation != TvProgrammeLoader.this.generation)
+                return;
+
+            // Only the new programmes in this chunk need to be matched.
+            synchronized (matched) {
+                Integer count = matched.get(date);
+                int first = (count != null ? count.intValue() : 0);
+                TvBookmarkManager.getInstance().matchProgrammes(programmes.subList(first, programmes.size()));
+                matched.put(date, programmes.size());
+            }
+
+            // The channel's timeline is only updated once the whole day has
+            // been parsed.  Leave out the next day's data so that the list
+            // that is shown only grows at the end.
+            final List<TvProgramme> partial = TvChannel.partialProgrammesForDay(date, programmes);
+            if (partial == null)
+                return;
+            handler.post(new Runnable() {
+                public void run() {
+                    if (generation != TvProgrammeLoader.this.generation)
+                        return;
+                    listener.programmesParsed(LoadRequest.this.channel, date, partial);
+                }
+            });
+        }
+
+        private void addDay(Map< TvDayKey, List<TvProgramme> > days, TvDayKey day) {
+            if (days.containsKey(day))
+                return;
+            List<TvProgramme> programmes = channel.programmesForDay(day);
+            if (programmes != null)
+                TvBookmarkManager.getInstance().matchProgrammes(programmes);
+            days.put(day, programmes);
+        }
+    }
+
+    private static Long requestKey(TvChannel channel, TvDayKey date) {
+        return Long.valueOf(((long)channel.getRegistryId() << 32) | (date.getDayNumber() & 0xFFFFFFFFL));
+    }
+
+    /**
+     * Queues a request to load the programmes for a channel and date.
+     *
+     * @param channel the channel
+     * @param date the date to load
+     * @param primaryDate the primary date for multi-day requests
+     * @param fetchIfMissing true to report back to the listener if the data is not cached
+     * @param reload true to reload the data even if the channel already has it,
+     * because the cache has been updated
+     */
+    public void load(TvChannel channel, TvDayKey date, TvDayKey primaryDate, boolean fetchIfMissing, boolean reload) {
+        List<TvDayKey> dates = new ArrayList<TvDayKey>();
+        dates.add(date);
+        load(channel, dates, primaryDate, fetchIfMissing, reload);
+    }
+
+    /**
+     * Queues a request to load the programmes for a channel on several dates.
+     * The dates are parsed in parallel and reported back together.
+     *
+     * @param channel the channel
+     * @param dates the dates to load
+     * @param primaryDate the primary date for multi-day requests
+     * @param fetchIfMissing true to report back to the listener if the data is not cached
+     * @param reload true to reload the data even if the channel already has it,
+     * because the cache has been updated
+     */
+    public void load(TvChannel channel, List<TvDayKey> dates, TvDayKey primaryDate, boolean fetchIfMissing, boolean reload) {
+        LoadRequest request = new LoadRequest();
+        request.channel = channel;
+        request.dates = new ArrayList<TvDayKey>();
+        request.primaryDate = primaryDate;
+        request.reload = reload;
+        List<Long> keys = new ArrayList<Long>();
+        synchronized (pending) {
+            for (TvDayKey date: dates) {
+                // Fold the date into an existing request if it will see the same data.
+                Long key = requestKey(channel, date);
+                LoadRequest existing = pending.get(key);
+                if (existing != null && (!reload || !existing.started)) {
+                    if (fetchIfMissing)
+                        existing.fetchIfMissing[Arrays.asList(existing.keys).indexOf(key)] = true;
+                    continue;
+                }
+                request.dates.add(date);
+                keys.add(key);
+            }
+            if (keys.isEmpty())
+                return;
+            request.keys = keys.toArray(new Long [keys.size()]);
+            request.fetchIfMissing = new boolean [keys.size()];
+            for (int index = 0; index < keys.size(); ++index) {
+                request.fetchIfMissing[index] = fetchIfMissing;
+                pending.put(request.keys[index], request);
+            }
+            request.generation = generation;
+
+            // Keep the requests in order if some are already waiting for room.
+            overflow.add(request);
+            submitOverflow();
+        }
+    }
+
+    /**
+     * Hands the requests in the overflow list to the worker pool until
+     * its queue is full.  Must be called with the pending map locked.
+     */
+    private void submitOverflow() {
+        while (!overflow.isEmpty()) {
+            LoadRequest request = overflow.getFirst();
+            try {
+                executor.execute(request);
+            } catch (RejectedExecutionException e) {
+                if (!executor.isShutdown())
+                    break;      // Try again when the next request finishes.
+                // The loader has been shut down, so drop the request.
+                for (int index = 0; index < request.keys.length; ++index) {
+                    if (pending.get(request.keys[index]) == request)
+                        pending.remove(request.keys[index]);
+                }
+            }
+            overflow.removeFirst();
+        }
+    }
+
+    /**
+     * Cancels all outstanding requests.  Requests that are already running
+     * will finish, but their results will not be delivered to the listener.
+     */
+    public void cancel() {
+        synchronized (pending) {
+            ++generation;
+            pending.clear();
+            overflow.clear();
+            executor.getQueue().clear();
+        }
+    }
+
+    /**
+     * Cancels all outstanding requests and stops the worker threads.
+     */
+    public void shutdown() {
+        cancel();
+        executor.shutdown();
+    }
+}
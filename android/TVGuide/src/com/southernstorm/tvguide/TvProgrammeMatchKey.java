@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2011,2012  Southern Storm Software, Pty Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.southernstorm.tvguide;
+
+import java.util.Calendar;
+
+/**
+ * The fields of a programme that bookmarks are matched against, decoded
+ * once so that matching a programme against many bookmarks does not
+ * need to recompute them for every bookmark.
+ */
+public final class TvProgrammeMatchKey {
+
+    /** Channel that the programme is on, or null */
+    public final TvChannel channel;
+
+    /** Title folded with TvBookmarkIndex.foldTitle(), or null if none */
+    public final String title;
+
+    /** Hash code of the folded title, or 0 if none */
+    public final int titleHash;
+
+    /** Local time of day that the programme starts, in seconds */
+    public final int start;
+
+    /** Local time of day that the programme stops, in seconds */
+    public final int stop;
+
+    /** Day that the programme starts, 1 (Monday) to 7 (Sunday) as in the bookmark day mask */
+    public final int weekday;
+
+    /** Bit for the starting day in a bookmark day of week mask */
+    public final int weekdayBit;
+
+    /** Season number, or 0 if unknown */
+    public final int season;
+
+    /** Year of production, or 0 if unknown */
+    public final int year;
+
+    public TvProgrammeMatchKey(TvProgramme prog) {
+        channel = prog.getChannel();
+        String progTitle = prog.getTitle();
+        title = (progTitle != null ? TvBookmarkIndex.foldTitle(progTitle) : null);
+        titleHash = (title != null ? title.hashCode() : 0);
+        start = prog.getStartTimeOfDay();
+        stop = prog.getStopTimeOfDay();
+        int day = prog.getStartDayOfWeek();
+        weekday = (day == Calendar.SUNDAY ? 7 : day - 1);
+        weekdayBit = 1 << weekday;
+        season = prog.getSeason();
+        year = prog.getYear();
+    }
+
+    /**
+     * Determine if the programme is on a specific channel, or a channel
+     * with the same common identifier.
+     *
+     * @param registryId the registry identifier for the channel
+     * @return true if the same channel, false if not
+     */
+    public boolean isChannel(int registryId) {
+        return channel != null && channel.isSameChannel(registryId);
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2011,2012  Southern Storm Software, Pty Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.southernstorm.tvguide;
+
+import java.util.List;
+
+public interface TvProgrammeParseListener {
+
+    /**
+     * Reports the programmes that have been parsed so far from a day's data.
+     * This is called on the parsing thread.
+     *
+     * @param channel the channel
+     * @param date the date of the data being parsed
+     * @param programmes the programmes parsed so far, in file order.  The list
+     * is read-only and does not change after the call returns.
+     */
+    public void programmesParsed(TvChannel channel, TvDayKey date, List<TvProgramme> programmes);
+}
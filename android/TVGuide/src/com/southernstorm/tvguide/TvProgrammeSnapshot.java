@@ -0,0 +1,575 @@
+/*
+ * Copyright (C) 2011,2012  Southern Storm Software, Pty Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.southernstorm.tvguide;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * Compiled binary snapshot of the programmes for a single channel and day.
+ *
+ * Snapshots are written next to the XMLTV data files in the cache so that
+ * re-opening a channel does not need to decompress and re-parse the XML.
+ * The snapshot records the length and modification time of the XML file
+ * it was compiled from, and is ignored if the XML file has since changed.
+ * Programme times are converted to seconds since the epoch using the
+ * device's time zone, so the snapshot also records the zone and is
+ * ignored if the device has since moved to a different zone.
+ *
+ * Snapshots are read by memory-mapping the file.  Each programme is
+ * exposed as a lightweight TvProgramme view that decodes its fields
+ * from the mapped buffer on demand, so that very little of a day's
+ * data needs to be resident on the Java heap.
+ *
+ * File layout: a fixed-size header, the time zone identifier, fixed-size
+ * programme records of 32-bit fields, variable-length string lists referred
+ * to by records, the string offset table, and then length-prefixed UTF-8
+ * string data.
+ * Strings are shared between all programmes and referred to by index.
+ */
+public class TvProgrammeSnapshot {
+
+    private static final int MAGIC = 0x54565053;    // "TVPS"
+    private static final int VERSION = 4;
+    private static final int HEADER_SIZE = 48;
+
+    public static final int FIELD_FLAGS = 0;
+    public static final int FIELD_START = 1;
+    public static final int FIELD_DURATION = 2;
+    public static final int FIELD_TITLE = 3;
+    public static final int FIELD_SUB_TITLE = 4;
+    public static final int FIELD_DESCRIPTION = 5;
+    public static final int FIELD_DATE = 6;
+    public static final int FIELD_RATING = 7;
+    public static final int FIELD_STAR_RATING = 8;
+    public static final int FIELD_EPISODE_NUMBER = 9;
+    public static final int FIELD_SEASON = 10;
+    public static final int FIELD_LANGUAGE = 11;
+    public static final int FIELD_ORIGINAL_LANGUAGE = 12;
+    public static final int FIELD_COUNTRY = 13;
+    public static final int FIELD_ASPECT_RATIO = 14;
+    public static final int FIELD_CATEGORIES = 15;
+    public static final int FIELD_DIRECTORS = 16;
+    public static final int FIELD_ACTORS = 17;
+    public static final int FIELD_PRESENTERS = 18;
+    public static final int FIELD_OTHER_CREDITS = 19;
+    private static final int NUM_FIELDS = 20;
+    private static final int RECORD_SIZE = NUM_FIELDS * 4;
+
+    // Fields whose values come from a small vocabulary that repeats across
+    // channels and days, and so are shared via the string dictionary.
+    private static final boolean[] sharedFields = new boolean [NUM_FIELDS];
+    static {
+        sharedFields[FIELD_RATING] = true;
+        sharedFields[FIELD_STAR_RATING] = true;
+        sharedFields[FIELD_LANGUAGE] = true;
+        sharedFields[FIELD_ORIGINAL_LANGUAGE] = true;
+        sharedFields[FIELD_COUNTRY] = true;
+        sharedFields[FIELD_ASPECT_RATIO] = true;
+        sharedFields[FIELD_CATEGORIES] = true;
+    }
+
+    public static final int FLAG_PREMIERE = 0x01;
+    public static final int FLAG_REPEAT = 0x02;
+    public static final int FLAG_MOVIE = 0x04;
+    public static final int FLAG_HAVE_START = 0x08;
+    public static final int FLAG_HAVE_STOP = 0x10;
+
+    private ByteBuffer buffer;
+    private int numRecords;
+    private int recordsOffset;
+    private int stringTableOffset;
+    private String[] strings;
+
+    private TvProgrammeSnapshot(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Table of strings that are shared between all programmes in a snapshot.
+     */
+    private static class StringTable {
+        private Map<String, Integer> indexes;
+        private List<String> strings;
+
+        public StringTable() {
+            indexes = new HashMap<String, Integer>();
+            strings = new ArrayList<String>();
+        }
+
+        public int indexOf(String str) {
+            if (str == null)
+                return -1;
+            Integer index = indexes.get(str);
+            if (index != null)
+                return index.intValue();
+            int newIndex = strings.size();
+            strings.add(str);
+            indexes.put(str, Integer.valueOf(newIndex));
+            return newIndex;
+        }
+
+        public int size() {
+            return strings.size();
+        }
+
+        public String get(int index) {
+            return strings.get(index);
+        }
+    }
+
+    /**
+     * Writes a snapshot of a list of programmes to a file.  The file is written
+     * under a temporary name and then renamed so that readers never see a
+     * partially-written snapshot, and existing mappings of the old file
+     * remain valid.
+     *
+     * @param file the snapshot file to write
+     * @param source the XML data file that the programmes were parsed from
+     * @param convertTimezone true if the programme times were converted to local time
+     * @param programmes the programmes to write
+     * @return true if the snapshot was written, false if there was an error
+     */
+    public static boolean write(File file, File source, boolean convertTimezone, List<TvProgramme> programmes) {
+        StringTable strings = new StringTable();
+        String zoneId = TimeZone.getDefault().getID();
+        int recordsOffset;
+        try {
+            recordsOffset = HEADER_SIZE + 2 + zoneId.getBytes("UTF-8").length;
+        } catch (UnsupportedEncodingException e) {
+            return false;
+        }
+        int listsOffset = recordsOffset + programmes.size() * RECORD_SIZE;
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(programmes.size() * RECORD_SIZE);
+        ByteArrayOutputStream listBytes = new ByteArrayOutputStream(programmes.size() * 32);
+        ByteArrayOutputStream stringBytes = new ByteArrayOutputStream(programmes.size() * 128);
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            // Serialize the programme records and lists first to collect up the string table.
+            DataOutputStream records = new DataOutputStream(recordBytes);
+            DataOutputStream lists = new DataOutputStream(listBytes);
+            for (TvProgramme prog: programmes) {
+                long start = prog.getStartSeconds();
+                long stop = prog.getStopSeconds();
+                int flags = 0;
+                if (prog.isPremiere())
+                    flags |= FLAG_PREMIERE;
+                if (prog.isRepeat())
+                    flags |= FLAG_REPEAT;
+                if (prog.isMovie())
+                    flags |= FLAG_MOVIE;
+                if (start != Utils.NO_TIME)
+                    flags |= FLAG_HAVE_START;
+                if (stop != Utils.NO_TIME)
+                    flags |= FLAG_HAVE_STOP;
+                long startSecs = (start != Utils.NO_TIME ? start : 0);
+                records.writeInt(flags);
+                records.writeInt((int)startSecs);
+                records.writeInt(stop != Utils.NO_TIME ? (int)(stop - startSecs) : 0);
+                records.writeInt(strings.indexOf(prog.getTitle()));
+                records.writeInt(strings.indexOf(prog.getSubTitle()));
+                records.writeInt(strings.indexOf(prog.getDescription()));
+                records.writeInt(strings.indexOf(prog.getDate()));
+                records.writeInt(strings.indexOf(prog.getRating()));
+                records.writeInt(strings.indexOf(prog.getStarRating()));
+                records.writeInt(strings.indexOf(prog.getEpisodeNumber()));
+                records.writeInt(prog.getSeason());
+                records.writeInt(strings.indexOf(prog.getLanguage()));
+                records.writeInt(strings.indexOf(prog.getOriginalLanguage()));
+                records.writeInt(strings.indexOf(prog.getCountry()));
+                records.writeInt(strings.indexOf(prog.getAspectRatio()));
+                records.writeInt(writeList(lists, listsOffset, strings, prog.getCategories()));
+                records.writeInt(writeList(lists, listsOffset, strings, prog.getDirectors()));
+                records.writeInt(writeList(lists, listsOffset, strings, prog.getActors()));
+                records.writeInt(writeList(lists, listsOffset, strings, prog.getPresenters()));
+                Map< String, List<String> > otherCredits = prog.getOtherCredits();
+                if (otherCredits.isEmpty()) {
+                    records.writeInt(-1);
+                } else {
+                    int[] credits = new int [otherCredits.size() * 2];
+                    int index = 0;
+                    for (String key: otherCredits.keySet()) {
+                        credits[index++] = strings.indexOf(key);
+                        credits[index++] = writeList(lists, listsOffset, strings, otherCredits.get(key));
+                    }
+                    records.writeInt(listsOffset + lists.size());
+                    lists.writeInt(otherCredits.size());
+                    for (index = 0; index < credits.length; ++index)
+                        lists.writeInt(credits[index]);
+                }
+            }
+            records.flush();
+            lists.flush();
+
+            // Lay out the string data after the string offset table.
+            int stringTableOffset = listsOffset + listBytes.size();
+            int stringDataOffset = stringTableOffset + strings.size() * 4;
+            int[] stringOffsets = new int [strings.size()];
+            DataOutputStream stringData = new DataOutputStream(stringBytes);
+            for (int index = 0; index < strings.size(); ++index) {
+                byte[] data = strings.get(index).getBytes("UTF-8");
+                stringOffsets[index] = stringDataOffset + stringData.size();
+                stringData.writeInt(data.length);
+                stringData.write(data);
+            }
+            stringData.flush();
+
+            FileOutputStream fileStream = new FileOutputStream(tempFile);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream, 8192));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(source.length());
+                out.writeLong(source.lastModified());
+                out.writeInt(convertTimezone ? 1 : 0);
+                out.writeInt(programmes.size());
+                out.writeInt(recordsOffset);
+                out.writeInt(listsOffset);
+                out.writeInt(stringTableOffset);
+                out.writeInt(strings.size());
+                out.writeUTF(zoneId);
+                recordBytes.writeTo(out);
+                listBytes.writeTo(out);
+                for (int index = 0; index < stringOffsets.length; ++index)
+                    out.writeInt(stringOffsets[index]);
+                stringBytes.writeTo(out);
+                out.flush();
+            } finally {
+                fileStream.close();
+            }
+        } catch (IOException e) {
+            tempFile.delete();
+            return false;
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            return false;
+        }
+        return true;
+    }
+
+    private static int writeList(DataOutputStream lists, int listsOffset, StringTable strings, List<String> list) throws IOException {
+        if (list.isEmpty())
+            return -1;
+        int offset = listsOffset + lists.size();
+        lists.writeInt(list.size());
+        for (int index = 0; index < list.size(); ++index)
+            lists.writeInt(strings.indexOf(list.get(index)));
+        return offset;
+    }
+
+    /**
+     * Determine if a snapshot file exists and is up to date with respect
+     * to its XML data file and the device's time zone.  Only the snapshot's
+     * header is read.
+     *
+     * @param file the snapshot file
+     * @param source the XML data file that the snapshot should correspond to
+     * @param convertTimezone true if the programme times should be converted to local time
+     * @return true if the snapshot is usable, false if it is missing or stale
+     */
+    public static boolean isUpToDate(File file, File source, boolean convertTimezone) {
+        if (!file.exists())
+            return false;
+        try {
+            FileInputStream fileStream = new FileInputStream(file);
+            try {
+                DataInputStream in = new DataInputStream(fileStream);
+                if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                    return false;
+                if (in.readLong() != source.length() || in.readLong() != source.lastModified())
+                    return false;
+                if (in.readInt() != (convertTimezone ? 1 : 0))
+                    return false;
+                in.skipBytes(HEADER_SIZE - 28);
+                return in.readUTF().equals(TimeZone.getDefault().getID());
+            } finally {
+                fileStream.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Memory-maps a snapshot file.
+     *
+     * @param file the snapshot file to map
+     * @param source the XML data file that the snapshot should correspond to
+     * @param convertTimezone true if the programme times should be converted to local time
+     * @return the snapshot, or null if the snapshot is missing, stale, or corrupt
+     */
+    public static TvProgrammeSnapshot map(File file, File source, boolean convertTimezone) {
+        if (!isUpToDate(file, source, convertTimezone))
+            return null;
+        try {
+            FileInputStream fileStream = new FileInputStream(file);
+            try {
+                // The mapping remains valid after the file has been closed.
+                FileChannel channel = fileStream.getChannel();
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                TvProgrammeSnapshot snapshot = new TvProgrammeSnapshot(buffer);
+                if (!snapshot.validate())
+                    return null;
+                return snapshot;
+            } finally {
+                fileStream.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Validates the layout of the snapshot.  Every offset and string index
+     * in the file is checked up front, so that the accessors can decode
+     * fields without any further bounds checks.
+     */
+    private boolean validate() {
+        int size = buffer.limit();
+        if (size < HEADER_SIZE + 2)
+            return false;
+        numRecords = buffer.getInt(28);
+        recordsOffset = buffer.getInt(32);
+        int listsOffset = buffer.getInt(36);
+        stringTableOffset = buffer.getInt(40);
+        int numStrings = buffer.getInt(44);
+        if (numRecords < 0 || numStrings < 0)
+            return false;
+        if (recordsOffset != HEADER_SIZE + 2 + (buffer.getShort(HEADER_SIZE) & 0xFFFF))
+            return false;
+        if ((long)recordsOffset + (long)numRecords * RECORD_SIZE != listsOffset)
+            return false;
+        if (stringTableOffset < listsOffset || (long)stringTableOffset + (long)numStrings * 4 > size)
+            return false;
+
+        // Check the string data referred to by the string offset table.
+        int stringDataOffset = stringTableOffset + numStrings * 4;
+        for (int index = 0; index < numStrings; ++index) {
+            int offset = buffer.getInt(stringTableOffset + index * 4);
+            if (offset < stringDataOffset || offset > size - 4)
+                return false;
+            int length = buffer.getInt(offset);
+            if (length < 0 || length > size - 4 - offset)
+                return false;
+        }
+
+        // Check the string fields and lists in each record.
+        for (int record = 0; record < numRecords; ++record) {
+            int base = recordsOffset + record * RECORD_SIZE;
+            for (int field = FIELD_TITLE; field <= FIELD_ASPECT_RATIO; ++field) {
+                if (field != FIELD_SEASON && !validString(buffer.getInt(base + field * 4), numStrings))
+                    return false;
+            }
+            for (int field = FIELD_CATEGORIES; field <= FIELD_PRESENTERS; ++field) {
+                if (!validList(buffer.getInt(base + field * 4), listsOffset, numStrings))
+                    return false;
+            }
+            int offset = buffer.getInt(base + FIELD_OTHER_CREDITS * 4);
+            if (offset < 0)
+                continue;
+            if (offset < listsOffset || offset > stringTableOffset - 4)
+                return false;
+            int count = buffer.getInt(offset);
+            if (count < 0 || count > (stringTableOffset - offset - 4) / 8)
+                return false;
+            for (int index = 0; index < count; ++index) {
+                if (!validString(buffer.getInt(offset + 4 + index * 8), numStrings))
+                    return false;
+                if (!validList(buffer.getInt(offset + 8 + index * 8), listsOffset, numStrings))
+                    return false;
+            }
+        }
+        strings = new String [numStrings];
+        return true;
+    }
+
+    private static boolean validString(int index, int numStrings) {
+        return index >= -1 && index < numStrings;
+    }
+
+    private boolean validList(int offset, int listsOffset, int numStrings) {
+        if (offset < 0)
+            return true;
+        if (offset < listsOffset || offset > stringTableOffset - 4)
+            return false;
+        int count = buffer.getInt(offset);
+        if (count < 0 || count > (stringTableOffset - offset - 4) / 4)
+            return false;
+        for (int index = 0; index < count; ++index) {
+            if (!validString(buffer.getInt(offset + 4 + index * 4), numStrings))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Creates programme views for all of the records in this snapshot.
+     *
+     * @param channel the channel that the programmes are for
+     * @return the list of programme views
+     */
+    public List<TvProgramme> programmes(TvChannel channel) {
+        List<TvProgramme> programmes = new ArrayList<TvProgramme>(numRecords);
+        for (int record = 0; record < numRecords; ++record)
+            programmes.add(new TvProgramme(channel, this, record));
+        return programmes;
+    }
+
+    /**
+     * Gets the number of programme records in this snapshot.
+     *
+     * @return the number of records
+     */
+    public int size() {
+        return numRecords;
+    }
+
+    /**
+     * Gets the raw value of a field in a programme record.
+     *
+     * @param record the index of the record
+     * @param field the field number, FIELD_FLAGS, FIELD_START, ...
+     * @return the field value
+     */
+    public int getField(int record, int field) {
+        return buffer.getInt(recordsOffset + record * RECORD_SIZE + field * 4);
+    }
+
+    /**
+     * Gets the value of a string field in a programme record.
+     *
+     * @param record the index of the record
+     * @param field the field number, FIELD_TITLE, FIELD_SUB_TITLE, ...
+     * @return the string value, or null if the field is not set
+     */
+    public String getString(int record, int field) {
+        return getString(getField(record, field), sharedFields[field]);
+    }
+
+    /**
+     * Gets the value of a string list field in a programme record.
+     *
+     * @param record the index of the record
+     * @param field the field number, FIELD_CATEGORIES, FIELD_ACTORS, ...
+     * @return the list of strings, which will be empty if the field is not set
+     */
+    public List<String> getList(int record, int field) {
+        List<String> list = new ArrayList<String>();
+        readList(getField(record, field), list, sharedFields[field]);
+        return list;
+    }
+
+    /**
+     * Gets the "other credits" for a programme record.
+     *
+     * @param record the index of the record
+     * @return the credits, as a map from credit type to names
+     */
+    public Map< String, List<String> > getOtherCredits(int record) {
+        Map< String, List<String> > credits = new TreeMap< String, List<String> >();
+        int offset = getField(record, FIELD_OTHER_CREDITS);
+        if (offset < 0)
+            return credits;
+        int count = buffer.getInt(offset);
+        for (int index = 0; index < count; ++index) {
+            String key = getString(buffer.getInt(offset + 4 + index * 8), true);
+            List<String> list = new ArrayList<String>();
+            readList(buffer.getInt(offset + 8 + index * 8), list, false);
+            credits.put(key, list);
+        }
+        return credits;
+    }
+
+    /**
+     * Gets a time field from a programme record.
+     *
+     * @param record the index of the record
+     * @param stop true for the stop time, false for the start time
+     * @return the time in seconds since the epoch, or Utils.NO_TIME if the
+     * record does not have the time
+     */
+    public long getSeconds(int record, boolean stop) {
+        int flags = getField(record, FIELD_FLAGS);
+        if ((flags & (stop ? FLAG_HAVE_STOP : FLAG_HAVE_START)) == 0)
+            return Utils.NO_TIME;
+        long secs = getField(record, FIELD_START);
+        if (stop)
+            secs += getField(record, FIELD_DURATION);
+        return secs;
+    }
+
+    private void readList(int offset, List<String> list, boolean shared) {
+        if (offset < 0)
+            return;
+        int count = buffer.getInt(offset);
+        for (int index = 0; index < count; ++index)
+            list.add(getString(buffer.getInt(offset + 4 + index * 4), shared));
+    }
+
+    /**
+     * Decodes a string from the string table.  Each string is decoded at most
+     * once and then shared between all programmes that refer to it.  Values
+     * of fields with a small vocabulary are also shared with other snapshots
+     * via the string dictionary.
+     *
+     * @param index the index of the string in the table, or -1 for null
+     * @param shared true if the string is from a field with a small vocabulary
+     * @return the string
+     */
+    private synchronized String getString(int index, boolean shared) {
+        if (index < 0 || index >= strings.length)
+            return null;
+        String str = strings[index];
+        if (str == null) {
+            int offset = buffer.getInt(stringTableOffset + index * 4);
+            int length = buffer.getInt(offset);
+            byte[] data = new byte [length];
+            ByteBuffer dup = buffer.duplicate();
+            dup.position(offset + 4);
+            dup.get(data);
+            try {
+                str = new String(data, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                str = "";
+            }
+            if (shared)
+                str = TvStringDictionary.getInstance().intern(str);
+            strings[index] = str;
+        }
+        return str;
+    }
+}
@@ -0,0 +1,614 @@
+/*
+ * Copyright (C) 2011,2012  Southern Storm Software, Pty Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.southernstorm.tvguide;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * Full-text search index over the cached guide data.
+ *
+ * The index is made up of one segment per channel and day, written next
+ * to the XMLTV data file with a ".tvi" extension when the data is
+ * downloaded.  Expiring a day from the cache deletes its segments along
+ * with the rest of that day's files, so the index never needs to be
+ * rewritten as a whole.
+ *
+ * Each segment is an inverted index from every word in the title,
+ * sub-title, description, and credits of a programme to the programmes
+ * that contain it.  The terms are sorted by hash so that they can be
+ * found with a binary search, and the words themselves are stored too
+ * so that terms with the same hash are told apart.  Segments are
+ * memory-mapped and searched in place, so a query is a handful of
+ * binary searches per segment.
+ *
+ * Segments record the device's time zone as well as the data file that
+ * they were built from, because the programme start times depend on it.
+ *
+ * File layout: a fixed-size header, the time zone identifier, the start
+ * time of each programme, the sorted term hashes, the offset of each term's
+ * postings (plus an end offset), the postings themselves as ascending
+ * programme indexes, the offset of each term's text (plus an end offset),
+ * and the UTF-8 text of the terms.
+ */
+public class TvSearchIndex {
+
+    private static TvSearchIndex instance = null;
+
+    private static final int MAGIC = 0x54565349;    // "TVSI"
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 44;
+    private static final String EXTENSION = ".tvi";
+    private static final String SOURCE_EXTENSION = ".xml.gz";
+
+    /**
+     * Search hit, identifying a programme by channel and start time.
+     */
+    public static class Hit {
+        public final TvChannel channel;
+        public final long start;
+
+        public Hit(TvChannel channel, long start) {
+            this.channel = channel;
+            this.start = start;
+        }
+    }
+
+    /**
+     * Memory-mapped segment for a single channel and day.
+     */
+    private static class Segment {
+        public long fileLength;
+        public long fileModified;
+        public String zoneId;
+        public String channelId;
+        public ByteBuffer buffer;
+        public int numProgrammes;
+        public int numTerms;
+        public int numPostings;
+        public int numTextBytes;
+        public int startsOffset;
+        public int termsOffset;
+        public int offsetsOffset;
+        public int postingsOffset;
+        public int textOffsetsOffset;
+        public int textOffset;
+
+        /**
+         * Validates the header and the tables of a newly-mapped segment, so
+         * that searching a corrupt segment cannot index outside the buffer.
+         *
+         * @return true if the segment is valid, false if it should be skipped
+         */
+        public boolean validate() {
+            int size = buffer.limit();
+            if (size < HEADER_SIZE + 2)
+                return false;
+            numProgrammes = buffer.getInt(28);
+            numTerms = buffer.getInt(32);
+            numPostings = buffer.getInt(36);
+            numTextBytes = buffer.getInt(40);
+            if (numProgrammes < 0 || numTerms < 0 || numPostings < 0 || numTextBytes < 0)
+                return false;
+            long offset = HEADER_SIZE + 2 + (buffer.getShort(HEADER_SIZE) & 0xFFFF);
+            startsOffset = (int)offset;
+            offset += numProgrammes * 4L;
+            termsOffset = (int)offset;
+            offset += numTerms * 4L;
+            offsetsOffset = (int)offset;
+            offset += (numTerms + 1) * 4L;
+            postingsOffset = (int)offset;
+            offset += numPostings * 4L;
+            textOffsetsOffset = (int)offset;
+            offset += (numTerms + 1) * 4L;
+            textOffset = (int)offset;
+            offset += numTextBytes;
+            if (offset > size)
+                return false;
+
+            // The postings and text for each term must lie within their
+            // tables, and each posting must refer to a programme.
+            if (!validateOffsets(offsetsOffset, numPostings) ||
+                    !validateOffsets(textOffsetsOffset, numTextBytes))
+                return false;
+            for (int term = 0; term < numTerms; ++term) {
+                int last = -1;
+                int end = getPostingsEnd(term);
+                for (int posting = getPostingsStart(term); posting < end; ++posting) {
+                    int programme = getPosting(posting);
+                    if (programme <= last || programme >= numProgrammes)
+                        return false;
+                    last = programme;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Checks that a table of numTerms + 1 offsets starts at zero, never
+         * decreases, and ends at a specific limit.
+         */
+        private boolean validateOffsets(int tableOffset, int limit) {
+            int prev = 0;
+            if (buffer.getInt(tableOffset) != 0)
+                return false;
+            for (int term = 1; term <= numTerms; ++term) {
+                int next = buffer.getInt(tableOffset + term * 4);
+                if (next < prev)
+                    return false;
+                prev = next;
+            }
+            return prev == limit;
+        }
+
+        public long getStart(int programme) {
+            return buffer.getInt(startsOffset + programme * 4);
+        }
+
+        /**
+         * Finds the postings for a term.
+         *
+         * @param hash the hash of the term
+         * @param text the UTF-8 text of the term
+         * @return the index of the term, or -1 if not present
+         */
+        public int findTerm(int hash, byte[] text) {
+            // Find the first term with the hash, and then check the text
+            // of each of the terms that share it.
+            int low = 0;
+            int high = numTerms;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (buffer.getInt(termsOffset + mid * 4) < hash)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            for (int term = low; term < numTerms && buffer.getInt(termsOffset + term * 4) == hash; ++term) {
+                if (textEquals(term, text))
+                    return term;
+            }
+            return -1;
+        }
+
+        private boolean textEquals(int term, byte[] text) {
+            int start = buffer.getInt(textOffsetsOffset + term * 4);
+            int end = buffer.getInt(textOffsetsOffset + term * 4 + 4);
+            if ((end - start) != text.length)
+                return false;
+            for (int index = 0; index < text.length; ++index) {
+                if (buffer.get(textOffset + start + index) != text[index])
+                    return false;
+            }
+            return true;
+        }
+
+        public int getPostingsStart(int term) {
+            return buffer.getInt(offsetsOffset + term * 4);
+        }
+
+        public int getPostingsEnd(int term) {
+            return buffer.getInt(offsetsOffset + term * 4 + 4);
+        }
+
+        public int getPosting(int posting) {
+            return buffer.getInt(postingsOffset + posting * 4);
+        }
+    }
+
+    private Map<String, Segment> segments;
+
+    private TvSearchIndex() {
+        segments = new HashMap<String, Segment>();
+    }
+
+    public static TvSearchIndex getInstance() {
+        if (instance == null)
+            instance = new TvSearchIndex();
+        return instance;
+    }
+
+    /**
+     * Splits text into lower-case words for indexing or searching.
+     * Words consist of letters and digits; everything else is a separator.
+     *
+     * @param text the text to split, which may be null
+     * @param words the list to add the words to
+     */
+    public static void tokenize(String text, List<String> words) {
+        if (text == null)
+            return;
+        int length = text.length();
+        int posn = 0;
+        while (posn < length) {
+            while (posn < length && !Character.isLetterOrDigit(text.charAt(posn)))
+                ++posn;
+            int start = posn;
+            while (posn < length && Character.isLetterOrDigit(text.charAt(posn)))
+                ++posn;
+            if (posn > start)
+                words.add(text.substring(start, posn).toLowerCase());
+        }
+    }
+
+    private static int hashTerm(String term) {
+        return term.hashCode();
+    }
+
+    private static byte[] termText(String term) {
+        try {
+            return term.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported.
+            return new byte [0];
+        }
+    }
+
+    // Terms are sorted by hash, and then by text for terms with the same hash.
+    private static final Comparator<String> termOrder = new Comparator<String>() {
+        public int compare(String term1, String term2) {
+            int hash1 = hashTerm(term1);
+            int hash2 = hashTerm(term2);
+            if (hash1 < hash2)
+                return -1;
+            else if (hash1 > hash2)
+                return 1;
+            return term1.compareTo(term2);
+        }
+    };
+
+    private static void addTerms(TreeMap<String, List<Integer>> terms, String text, int programme, List<String> words) {
+        words.clear();
+        tokenize(text, words);
+        for (int index = 0; index < words.size(); ++index) {
+            String term = words.get(index);
+            List<Integer> postings = terms.get(term);
+            if (postings == null) {
+                postings = new ArrayList<Integer>();
+                terms.put(term, postings);
+            }
+            // Programmes are added in order, so duplicates are always at the end.
+            if (postings.isEmpty() || postings.get(postings.size() - 1).intValue() != programme)
+                postings.add(Integer.valueOf(programme));
+        }
+    }
+
+    private static void addTerms(TreeMap<String, List<Integer>> terms, List<String> texts, int programme, List<String> words) {
+        if (texts == null)
+            return;
+        for (int index = 0; index < texts.size(); ++index)
+            addTerms(terms, texts.get(index), programme, words);
+    }
+
+    /**
+     * Writes the index segment for a day of programmes.  The file is written
+     * under a temporary name and then renamed so that readers never see a
+     * partially-written segment.
+     *
+     * @param file the segment file to write
+     * @param source the XML data file that the programmes were parsed from
+     * @param convertTimezone true if the programme times were converted to local time
+     * @param programmes the programmes to index, with full details loaded
+     * @return true if the segment was written, false otherwise
+     */
+    public static boolean write(File file, File source, boolean convertTimezone, List<TvProgramme> programmes) {
+        TreeMap<String, List<Integer>> terms = new TreeMap<String, List<Integer>>(termOrder);
+        List<String> words = new ArrayList<String>();
+        for (int index = 0; index < programmes.size(); ++index) {
+            TvProgramme prog = programmes.get(index);
+            addTerms(terms, prog.getTitle(), index, words);
+            addTerms(terms, prog.getSubTitle(), index, words);
+            addTerms(terms, prog.getDescription(), index, words);
+            addTerms(terms, prog.getDirectors(), index, words);
+            addTerms(terms, prog.getActors(), index, words);
+            addTerms(terms, prog.getPresenters(), index, words);
+            Map< String, List<String> > otherCredits = prog.getOtherCredits();
+            if (otherCredits != null) {
+                for (List<String> credits: otherCredits.values())
+                    addTerms(terms, credits, index, words);
+            }
+        }
+        int numPostings = 0;
+        for (List<Integer> postings: terms.values())
+            numPostings += postings.size();
+        List<byte[]> texts = new ArrayList<byte[]>(terms.size());
+        int numTextBytes = 0;
+        for (String term: terms.keySet()) {
+            byte[] text = termText(term);
+            texts.add(text);
+            numTextBytes += text.length;
+        }
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            FileOutputStream fileStream = new FileOutputStream(tempFile);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream, 8192));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(source.length());
+                out.writeLong(source.lastModified());
+                out.writeInt(convertTimezone ? 1 : 0);
+                out.writeInt(programmes.size());
+                out.writeInt(terms.size());
+                out.writeInt(numPostings);
+                out.writeInt(numTextBytes);
+                out.writeUTF(TimeZone.getDefault().getID());
+                for (int index = 0; index < programmes.size(); ++index)
+                    out.writeInt((int)programmes.get(index).getStartSeconds());
+                for (String term: terms.keySet())
+                    out.writeInt(hashTerm(term));
+                int offset = 0;
+                for (List<Integer> postings: terms.values()) {
+                    out.writeInt(offset);
+                    offset += postings.size();
+                }
+                out.writeInt(offset);
+                for (List<Integer> postings: terms.values()) {
+                    for (int index = 0; index < postings.size(); ++index)
+                        out.writeInt(postings.get(index).intValue());
+                }
+                offset = 0;
+                for (byte[] text: texts) {
+                    out.writeInt(offset);
+                    offset += text.length;
+                }
+                out.writeInt(offset);
+                for (byte[] text: texts)
+                    out.write(text);
+                out.flush();
+            } finally {
+                fileStream.close();
+            }
+        } catch (IOException e) {
+            tempFile.delete();
+            return false;
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Determine if a segment file exists and is up to date with respect
+     * to its XML data file and the device's time zone.  Only the segment's
+     * header is read.
+     *
+     * @param file the segment file
+     * @param source the XML data file that the segment should correspond to
+     * @param convertTimezone true if the programme times should be converted to local time
+     * @return true if the segment is usable, false if it is missing or stale
+     */
+    public static boolean isUpToDate(File file, File source, boolean convertTimezone) {
+        if (!file.exists())
+            return false;
+        try {
+            FileInputStream fileStream = new FileInputStream(file);
+            try {
+                DataInputStream in = new DataInputStream(fileStream);
+                if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                    return false;
+                if (in.readLong() != source.length() || in.readLong() != source.lastModified())
+                    return false;
+                if (in.readInt() != (convertTimezone ? 1 : 0))
+                    return false;
+                in.skipBytes(HEADER_SIZE - 28);
+                return in.readUTF().equals(TimeZone.getDefault().getID());
+            } finally {
+                fileStream.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Maps a segment file, or returns the previous mapping if the file
+     * has not changed since it was last mapped.
+     */
+    private Segment mapSegment(File dir, String name) {
+        File file = new File(dir, name);
+        long length = file.length();
+        long modified = file.lastModified();
+        String zoneId = TimeZone.getDefault().getID();
+        Segment segment = segments.get(name);
+        if (segment != null && segment.fileLength == length &&
+                segment.fileModified == modified && segment.zoneId.equals(zoneId))
+            return segment;
+        segments.remove(name);
+
+        // Segment names are "ID_YYYY-MM-DD.tvi".  Ignore segments for
+        // channels that are not in the current region.
+        int idLength = name.length() - EXTENSION.length() - 11;
+        if (idLength <= 0 || name.charAt(idLength) != '_')
+            return null;
+        TvChannel channel = TvChannelCache.getInstance().getChannel(name.substring(0, idLength));
+        if (channel == null)
+            return null;
+        String baseName = name.substring(0, name.length() - EXTENSION.length());
+        File source = new File(dir, baseName + SOURCE_EXTENSION);
+        if (!isUpToDate(file, source, channel.getConvertTimezone()))
+            return null;
+        try {
+            FileInputStream fileStream = new FileInputStream(file);
+            try {
+                // The mapping remains valid after the file has been closed.
+                FileChannel fileChannel = fileStream.getChannel();
+                MappedByteBuffer buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+                segment = new Segment();
+                segment.fileLength = length;
+                segment.fileModified = modified;
+                segment.zoneId = zoneId;
+                segment.channelId = channel.getId();
+                segment.buffer = buffer;
+                if (!segment.validate())
+                    return null;
+            } finally {
+                fileStream.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        segments.put(name, segment);
+        return segment;
+    }
+
+    /**
+     * Finds the programmes in a segment that contain all of the query terms.
+     */
+    private static void searchSegment(Segment segment, int[] hashes, byte[][] texts, List<Hit> hits, Set<String> seen) {
+        // Look up every term first, and start with the shortest postings list.
+        int[] terms = new int [hashes.length];
+        int shortest = 0;
+        for (int index = 0; index < hashes.length; ++index) {
+            terms[index] = segment.findTerm(hashes[index], texts[index]);
+            if (terms[index] < 0)
+                return;
+            int count = segment.getPostingsEnd(terms[index]) - segment.getPostingsStart(terms[index]);
+            int shortestCount = segment.getPostingsEnd(terms[shortest]) - segment.getPostingsStart(terms[shortest]);
+            if (count < shortestCount)
+                shortest = index;
+        }
+        TvChannel channel = null;
+        int end = segment.getPostingsEnd(terms[shortest]);
+        for (int posting = segment.getPostingsStart(terms[shortest]); posting < end; ++posting) {
+            int programme = segment.getPosting(posting);
+            boolean matches = true;
+            for (int index = 0; index < terms.length && matches; ++index) {
+                if (index != shortest)
+                    matches = containsPosting(segment, terms[index], programme);
+            }
+            if (!matches)
+                continue;
+
+            // Programmes near midnight may appear in the data for two days.
+            long start = segment.getStart(programme);
+            if (!seen.add(segment.channelId + ":" + start))
+                continue;
+            if (channel == null) {
+                channel = TvChannelCache.getInstance().getChannel(segment.channelId);
+                if (channel == null)
+                    return;
+            }
+            hits.add(new Hit(channel, start));
+        }
+    }
+
+    private static boolean containsPosting(Segment segment, int term, int programme) {
+        int low = segment.getPostingsStart(term);
+        int high = segment.getPostingsEnd(term) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int value = segment.getPosting(mid);
+            if (value < programme)
+                low = mid + 1;
+            else if (value > programme)
+                high = mid - 1;
+            else
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Searches all of the indexed data in a cache directory for programmes
+     * that contain every word in a query.
+     *
+     * @param dir the cache directory containing the segments
+     * @param query the query words
+     * @return the matching programmes, in order of start time
+     */
+    public synchronized List<Hit> search(File dir, String query) {
+        List<Hit> hits = new ArrayList<Hit>();
+        List<String> words = new ArrayList<String>();
+        tokenize(query, words);
+        if (dir == null || words.isEmpty())
+            return hits;
+        int[] hashes = new int [words.size()];
+        byte[][] texts = new byte [words.size()][];
+        for (int index = 0; index < words.size(); ++index) {
+            hashes[index] = hashTerm(words.get(index));
+            texts[index] = termText(words.get(index));
+        }
+
+        String[] entries = dir.list();
+        if (entries == null)
+            return hits;
+        Set<String> names = new HashSet<String>();
+        Set<String> seen = new HashSet<String>();
+        for (int index = 0; index < entries.length; ++index) {
+            String name = entries[index];
+            if (!name.endsWith(EXTENSION))
+                continue;
+            names.add(name);
+            Segment segment = mapSegment(dir, name);
+            if (segment != null)
+                searchSegment(segment, hashes, texts, hits, seen);
+        }
+
+        // Drop the mappings for segments that have been expired.
+        Iterator<String> iterator = segments.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (!names.contains(iterator.next()))
+                iterator.remove();
+        }
+
+        Collections.sort(hits, new Comparator<Hit>() {
+            public int compare(Hit hit1, Hit hit2) {
+                if (hit1.start < hit2.start)
+                    return -1;
+                else if (hit1.start > hit2.start)
+                    return 1;
+                return hit1.channel.compareTo(hit2.channel);
+            }
+        });
+        return hits;
+    }
+
+    /**
+     * Discards all mapped segments, for when the cache is cleared.
+     */
+    public synchronized void clear() {
+        segments.clear();
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2011,2012  Southern Storm Software, Pty Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.southernstorm.tvguide;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dictionary of shared string values.
+ *
+ * Values such as category names, ratings, languages, and channel identifiers
+ * repeat many times across the channels and days in the guide.  Passing
+ * them through a dictionary means that each distinct value is stored once,
+ * and that equals() on two values from the dictionary succeeds on the
+ * reference check without comparing characters.
+ *
+ * The dictionary is never cleared, so only values from fields with a small
+ * vocabulary should be passed to it.  Values that are mostly unique, such
+ * as titles and names, would fill it up and stop the repetitive values from
+ * being shared.  As a safeguard, only short values are stored, and the
+ * dictionary stops growing once it reaches a fixed size.
+ */
+public class TvStringDictionary {
+
+    private static final int MAX_LENGTH = 64;
+    private static final int MAX_ENTRIES = 8192;
+
+    // Approximate size of a String object and its character array header.
+    private static final int STRING_OVERHEAD = 40;
+
+    private static final TvStringDictionary instance = new TvStringDictionary();
+
+    private ConcurrentHashMap<String, String> strings;
+    private AtomicInteger lookups;
+    private AtomicInteger hits;
+    private AtomicLong bytesSaved;
+
+    public TvStringDictionary() {
+        strings = new ConcurrentHashMap<String, String>();
+        lookups = new AtomicInteger();
+        hits = new AtomicInteger();
+        bytesSaved = new AtomicLong();
+    }
+
+    /**
+     * Retrieves the global string dictionary that is shared between all channels and days.
+     * 
+     * @return the string dictionary
+     */
+    public static TvStringDictionary getInstance() {
+        return instance;
+    }
+
+    /**
+     * Gets the shared copy of a string value.
+     *
+     * @param str the string value, which may be null
+     * @return the shared copy of the value, or str itself if the value
+     * is not suitable for sharing or the dictionary is full
+     */
+    public String intern(String str) {
+        if (str == null || str.length() > MAX_LENGTH)
+            return str;
+        lookups.incrementAndGet();
+        String shared = strings.get(str);
+        if (shared != null) {
+            hits.incrementAndGet();
+            bytesSaved.addAndGet(STRING_OVERHEAD + str.length() * 2);
+            return shared;
+        }
+        if (strings.size() >= MAX_ENTRIES)
+            return str;
+        shared = strings.putIfAbsent(str, str);
+        if (shared != null) {
+            // Another thread added the same value just before us.
+            hits.incrementAndGet();
+            bytesSaved.addAndGet(STRING_OVERHEAD + str.length() * 2);
+            return shared;
+        }
+        return str;
+    }
+
+    /**
+     * Gets the number of distinct values in the dictionary.
+     *
+     * @return the number of values
+     */
+    public int size() {
+        return strings.size();
+    }
+
+    /**
+     * Gets the number of lookups that have been performed on the dictionary.
+     *
+     * @return the number of lookups
+     */
+    public int getLookups() {
+        return lookups.get();
+    }
+
+    /**
+     * Gets the number of lookups that found an existing shared value.
+     *
+     * @return the number of hits
+     */
+    public int getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the proportion of lookups that found an existing shared value.
+     *
+     * @return the hit rate, between 0 and 1
+     */
+    public double getHitRate() {
+        int total = lookups.get();
+        if (total == 0)
+            return 0.0;
+        return hits.get() / (double)total;
+    }
+
+    /**
+     * Gets the approximate number of bytes of string data that were saved
+     * by returning shared values instead of keeping the duplicates.
+     *
+     * @return the number of bytes saved
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    @Override
+    public String toString() {
+        return "strings: " + size() + ", lookups: " + getLookups() +
+               ", hit rate: " + (int)(getHitRate() * 100) + "%, bytes saved: " + getBytesSaved();
+    }
+}
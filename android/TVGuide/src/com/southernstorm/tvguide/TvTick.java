@@ -36,6 +36,7 @@ public class TvTick {
 
     private String title;
     private String channelId;
+    private int channelRegistryId = TvChannelRegistry.NO_CHANNEL;
     private Calendar startTime;
     private Calendar timestamp;
 
@@ -80,6 +81,16 @@ public class TvTick {
      */
     public void setChannelId(String channelId) {
         this.channelId = channelId;
+        this.channelRegistryId = TvChannelRegistry.getInstance().register(channelId);
+    }
+
+    /**
+     * Gets the registry identifier of the channel to match.
+     * 
+     * @return the registry identifier, or TvChannelRegistry.NO_CHANNEL
+     */
+    public int getChannelRegistryId() {
+        return channelRegistryId;
     }
     
     /**
@@ -126,9 +137,9 @@ public class TvTick {
      * @return true if the programme matches, false if not
      */
     public boolean match(TvProgramme programme) {
-        if (!startTime.equals(programme.getStart()))
+        if (startTime.getTimeInMillis() / 1000 != programme.getStartSeconds())
             return false;
-        if (!programme.getChannel().isSameChannel(channelId))
+        if (!programme.getChannel().isSameChannel(channelRegistryId))
             return false;
         return title.equals(programme.getTitle());
     }
@@ -146,7 +157,7 @@ public class TvTick {
      */
     public void loadFromXml(XmlPullParser parser) throws XmlPullParserException, IOException {
         title = null;
-        channelId = null;
+        setChannelId(null);
         startTime = null;
         timestamp = null;
         int eventType = parser.next();
@@ -156,7 +167,7 @@ public class TvTick {
                 if (name.equals("title")) {
                     title = Utils.getContents(parser, name);
                 } else if (name.equals("channel-id")) {
-                    channelId = Utils.getContents(parser, name);
+                    setChannelId(Utils.getContents(parser, name));
                 } else if (name.equals("start-time")) {
                     startTime = Utils.parseDateTime(Utils.getContents(parser, name), false);
                 } else if (name.equals("timestamp")) {
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2011,2012  Southern Storm Software, Pty Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.southernstorm.tvguide;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Index over the ticked programmes, keyed on channel, start time, and
+ * title, so that checking a programme for a tick is a few hash lookups
+ * rather than a scan of every tick.
+ *
+ * Ticks are also kept in a queue ordered by the time they were created,
+ * so that they can be expired as soon as they are old enough rather
+ * than waiting for the bookmarks file to be reloaded.
+ */
+public class TvTickIndex {
+
+    /** Length of time that a tick lasts before it expires, in milliseconds */
+    public static final long TICK_LIFETIME = 30L * 24 * 60 * 60 * 1000;
+
+    /**
+     * Hash key for a tick or a programme.
+     */
+    private static class Key {
+        public int channel;
+        public long start;
+        public String title;
+
+        public Key(int channel, long start, String title) {
+            this.channel = channel;
+            this.start = start;
+            this.title = title;
+        }
+
+        public int hashCode() {
+            return (channel * 31 + (int)(start ^ (start >>> 32))) * 31 + title.hashCode();
+        }
+
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key)obj;
+            return start == other.start && channel == other.channel && title.equals(other.title);
+        }
+    }
+
+    private Map<Key, List<TvTick>> ticks;
+    private PriorityQueue<TvTick> expiry;
+    private Key probe;
+
+    public TvTickIndex() {
+        ticks = new HashMap<Key, List<TvTick>>();
+        expiry = new PriorityQueue<TvTick>(16, new Comparator<TvTick>() {
+            public int compare(TvTick tick1, TvTick tick2) {
+                long time1 = tick1.getTimestamp().getTimeInMillis();
+                long time2 = tick2.getTimestamp().getTimeInMillis();
+                return (time1 < time2 ? -1 : (time1 > time2 ? 1 : 0));
+            }
+        });
+        probe = new Key(TvChannelRegistry.NO_CHANNEL, 0, "");
+    }
+
+    private static Key keyFor(TvTick tick) {
+        if (tick.getChannelId() == null || tick.getStartTime() == null || tick.getTitle() == null)
+            return null;
+        return new Key(tick.getChannelRegistryId(), tick.getStartTime().getTimeInMillis() / 1000, tick.getTitle());
+    }
+
+    /**
+     * Adds a tick to the index.
+     *
+     * @param tick the tick to add
+     */
+    public void add(TvTick tick) {
+        Key key = keyFor(tick);
+        if (key != null) {
+            List<TvTick> list = ticks.get(key);
+            if (list == null) {
+                list = new ArrayList<TvTick>(1);
+                ticks.put(key, list);
+            }
+            list.add(tick);
+        }
+        if (tick.getTimestamp() != null)
+            expiry.add(tick);
+    }
+
+    /**
+     * Removes a tick from the index.  The tick must be the same object
+     * that was added.
+     *
+     * @param tick the tick to remove
+     */
+    public void remove(TvTick tick) {
+        Key key = keyFor(tick);
+        if (key != null) {
+            List<TvTick> list = ticks.get(key);
+            if (list != null) {
+                for (int index = 0; index < list.size(); ++index) {
+                    if (list.get(index) == tick) {
+                        list.remove(index);
+                        break;
+                    }
+                }
+                if (list.isEmpty())
+                    ticks.remove(key);
+            }
+        }
+        if (tick.getTimestamp() != null)
+            expiry.remove(tick);
+    }
+
+    /**
+     * Removes all ticks from the index.
+     */
+    public void clear() {
+        ticks.clear();
+        expiry.clear();
+    }
+
+    /**
+     * Removes the oldest tick from the index if it has expired.
+     *
+     * @param now the current time in milliseconds
+     * @return the expired tick, or null if no ticks have expired
+     */
+    public TvTick expireNext(long now) {
+        TvTick tick = expiry.peek();
+        if (tick == null || (now - tick.getTimestamp().getTimeInMillis()) < TICK_LIFETIME)
+            return null;
+        remove(tick);
+        return tick;
+    }
+
+    /**
+     * Determine if a programme has been ticked.  This is equivalent to
+     * calling TvTick.match() on every tick in the index.
+     *
+     * @param prog the programme
+     * @return true if the programme has been ticked, false if not
+     */
+    public boolean match(TvProgramme prog) {
+        if (ticks.isEmpty())
+            return false;
+        String title = prog.getTitle();
+        long start = prog.getStartSeconds();
+        TvChannel channel = prog.getChannel();
+        if (title == null || start == Utils.NO_TIME || channel == null)
+            return false;
+        probe.start = start;
+        probe.title = title;
+
+        // A tick matches a programme on any channel that is the same as the tick's channel.
+        int[] same = TvChannelRegistry.getInstance().sameChannels(channel.getRegistryId());
+        for (int index = 0; index < same.length; ++index) {
+            probe.channel = same[index];
+            if (ticks.containsKey(probe))
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2011,2012  Southern Storm Software, Pty Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.southernstorm.tvguide;
+
+import java.util.TimeZone;
+
+/**
+ * Precomputed table of the local timezone's offsets around the current
+ * date, so that times can be converted between UTC and local time with
+ * a binary search rather than a Calendar object.
+ *
+ * The table covers the range of dates that the guide can display.
+ * Times outside that range fall back to asking the TimeZone object.
+ */
+public class TvTimeZoneTable {
+
+    private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+    private static final long DAYS_BEFORE = 60;
+    private static final long DAYS_AFTER = 60;
+
+    private static volatile TvTimeZoneTable instance = null;
+
+    private TimeZone zone;
+    private String zoneId;
+    private int rawOffset;
+    private int dstSavings;
+    private long first;
+    private long last;
+    private long[] transitions;
+    private int[] offsets;
+
+    private TvTimeZoneTable(TimeZone zone, long now) {
+        this.zone = zone;
+        this.zoneId = zone.getID();
+        this.rawOffset = zone.getRawOffset() / 1000;
+        this.dstSavings = zone.getDSTSavings() / 1000;
+        this.first = now - DAYS_BEFORE * SECONDS_PER_DAY;
+        this.last = now + DAYS_AFTER * SECONDS_PER_DAY;
+
+        // Step through the range a day at a time, and then narrow down
+        // to the exact second of each change of offset that we find.
+        long[] foundTransitions = new long [8];
+        int[] foundOffsets = new int [9];
+        int count = 0;
+        int offset = offsetFromZone(first);
+        foundOffsets[0] = offset;
+        for (long time = first; time < last; time += SECONDS_PER_DAY) {
+            long next = Math.min(time + SECONDS_PER_DAY, last);
+            int nextOffset = offsetFromZone(next);
+            if (nextOffset == offset)
+                continue;
+            long low = time;
+            long high = next;
+            while ((high - low) > 1) {
+                long mid = low + (high - low) / 2;
+                if (offsetFromZone(mid) == offset)
+                    low = mid;
+                else
+                    high = mid;
+            }
+            if (count >= foundTransitions.length) {
+                long[] newTransitions = new long [count * 2];
+                int[] newOffsets = new int [count * 2 + 1];
+                System.arraycopy(foundTransitions, 0, newTransitions, 0, count);
+                System.arraycopy(foundOffsets, 0, newOffsets, 0, count + 1);
+                foundTransitions = newTransitions;
+                foundOffsets = newOffsets;
+            }
+            foundTransitions[count++] = high;
+            foundOffsets[count] = nextOffset;
+            offset = nextOffset;
+        }
+        transitions = new long [count];
+        offsets = new int [count + 1];
+        System.arraycopy(foundTransitions, 0, transitions, 0, count);
+        System.arraycopy(foundOffsets, 0, offsets, 0, count + 1);
+    }
+
+    /**
+     * Gets the table for the current local timezone.
+     *
+     * @return the table
+     */
+    public static TvTimeZoneTable getInstance() {
+        TvTimeZoneTable table = instance;
+        if (table == null) {
+            table = new TvTimeZoneTable(TimeZone.getDefault(), System.currentTimeMillis() / 1000);
+            instance = table;
+        }
+        return table;
+    }
+
+    /**
+     * Rebuilds the table on next use if the local timezone has been changed,
+     * or if the current date has moved too close to the edge of the table.
+     */
+    public static void refresh() {
+        TvTimeZoneTable table = instance;
+        if (table == null)
+            return;
+        long now = System.currentTimeMillis() / 1000;
+        if (!table.zoneId.equals(TimeZone.getDefault().getID()) ||
+                (now - table.first) < (DAYS_BEFORE / 2) * SECONDS_PER_DAY ||
+                (table.last - now) < (DAYS_AFTER / 2) * SECONDS_PER_DAY)
+            instance = null;
+    }
+
+    private int offsetFromZone(long epoch) {
+        return zone.getOffset(epoch * 1000) / 1000;
+    }
+
+    /**
+     * Gets the offset of local time from UTC at a specific time.
+     *
+     * @param epoch the number of seconds since the epoch
+     * @return the offset in seconds
+     */
+    public int getOffset(long epoch) {
+        if (epoch < first || epoch >= last)
+            return offsetFromZone(epoch);
+        int low = 0;
+        int high = transitions.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (transitions[mid] <= epoch)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return offsets[low];
+    }
+
+    /**
+     * Converts seconds since the epoch into local time in seconds.
+     *
+     * @param epoch the number of seconds since the epoch
+     * @return the local time in seconds
+     */
+    public long epochToLocal(long epoch) {
+        return epoch + getOffset(epoch);
+    }
+
+    /**
+     * Converts local time in seconds into seconds since the epoch.
+     * Times that are skipped or repeated by a DST change are resolved
+     * to standard time, the same way as GregorianCalendar does.
+     *
+     * @param local the local time in seconds
+     * @return the number of seconds since the epoch
+     */
+    public long localToEpoch(long local) {
+        long standard = local - rawOffset;
+        int offset = getOffset(standard);
+        int before = getOffset(standard - dstSavings);
+        if (before < offset)
+            offset = before;
+        return local - offset;
+    }
+}
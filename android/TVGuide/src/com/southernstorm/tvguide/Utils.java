@@ -21,7 +21,6 @@ import java.io.IOException;
 
 import java.util.Calendar;
 import java.util.GregorianCalendar;
-import java.util.TimeZone;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -80,9 +79,20 @@ public class Utils {
      * @return the formatted time
      */
     public static String formatTimeProgrammeList(Calendar time) {
+        return formatTimeProgrammeList(time.get(Calendar.HOUR_OF_DAY) * 60 * 60 +
+                                       time.get(Calendar.MINUTE) * 60);
+    }
+
+    /**
+     * Format a time value for the programme list.
+     * 
+     * @param time the time to format, as the number of seconds since midnight
+     * @return the formatted time
+     */
+    public static String formatTimeProgrammeList(int time) {
         // TODO: 24 hour clock support
-        int hour = time.get(Calendar.HOUR_OF_DAY);
-        int minute = time.get(Calendar.MINUTE);
+        int hour = time / (60 * 60);
+        int minute = (time / 60) % 60;
         String ampm = (hour < 12 ? "\n   AM" : "\n   PM");
         if (hour == 0)
             hour = 12;
@@ -118,15 +128,14 @@ public class Utils {
         return value;
     }
 
-    private static TimeZone cachedTimeZone = null;
-    private static int cachedOffset = 0;
-    
+    private static final int NO_TZ = Integer.MIN_VALUE;
+
     private static int parseTZField(String str, int posn) {
         while (posn < str.length() && str.charAt(posn) == ' ') {
             ++posn;
         }
         if (posn >= str.length())
-            return cachedOffset;
+            return NO_TZ;
         boolean positive;
         if (str.charAt(posn) == '+') {
             positive = true;
@@ -135,10 +144,10 @@ public class Utils {
             positive = false;
             ++posn;
         } else {
-            return cachedOffset;
+            return NO_TZ;
         }
         int raw = parseField(str, posn, 4);
-        int value = ((raw / 100) * 60 + (raw % 100)) * (60 * 1000);
+        int value = ((raw / 100) * 60 + (raw % 100)) * 60;
         if (positive)
             return value;
         else
@@ -146,40 +155,161 @@ public class Utils {
     }
     
     /**
-     * Parses a date/time string from within an XMLTV stream.  Only the local
-     * time part of the value is parsed. Timezone specifications are ignored.
+     * Parses a date/time string from within an XMLTV stream.
      * 
      * @param str the string
      * @param convertTimezone true to convert date/time values to local time
      * @return the date/time value as a Calendar object
+     * @see #parseTime(String, boolean)
      */
     public static Calendar parseDateTime(String str, boolean convertTimezone) {
+        return epochToCalendar(parseTime(str, convertTimezone));
+    }
+
+    public static void clearTimeZone() {
+        TvTimeZoneTable.refresh();
+    }
+
+    /**
+     * Value that is used for an unknown time in seconds.
+     */
+    public static final long NO_TIME = Long.MIN_VALUE;
+
+    private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+
+    /**
+     * Parses a date/time string from within an XMLTV stream into seconds
+     * since the epoch, without allocating a Calendar object.
+     * 
+     * If convertTimezone is true, then the timezone specification on the
+     * value is used to find the actual time, which will be displayed in
+     * local time.  Otherwise the timezone specification is ignored and
+     * the value is assumed to already be in local time.
+     * 
+     * @param str the string
+     * @param convertTimezone true to convert date/time values to local time
+     * @return the number of seconds since the epoch, or NO_TIME if str is null
+     */
+    public static long parseTime(String str, boolean convertTimezone) {
         // Format looks like: 20111209060000 +1100
         if (str == null)
-            return null;
+            return NO_TIME;
         int year = parseField(str, 0, 4);
         int month = parseField(str, 4, 2);
         int day = parseField(str, 6, 2);
         int hour = parseField(str, 8, 2);
         int minute = parseField(str, 10, 2);
         int second = parseField(str, 12, 2);
+        long time = daysFromCivil(year, month, day) * SECONDS_PER_DAY +
+                    hour * (60 * 60) + minute * 60 + second;
         if (convertTimezone) {
-            if (cachedTimeZone == null) {
-                cachedTimeZone = TimeZone.getDefault();
-                cachedOffset = cachedTimeZone.getOffset(System.currentTimeMillis());
-            }
             int tz = parseTZField(str, 14);
-            if (tz != cachedOffset) {
-                Calendar calendar = new GregorianCalendar(year, month - 1, day, hour, minute, second);
-                calendar.add(Calendar.MILLISECOND, cachedOffset - tz);
-                return calendar;
-            }
+            if (tz != NO_TZ)
+                return time - tz;
         }
-        return new GregorianCalendar(year, month - 1, day, hour, minute, second);
+        return localToEpoch(time);
     }
 
-    public static void clearTimeZone() {
-        cachedTimeZone = null;
+    /**
+     * Converts local time in seconds into seconds since the epoch.  Local
+     * time is measured in seconds since midnight on 1 January 1970 in the
+     * local timezone, so the usual day arithmetic can be used on it.
+     * 
+     * @param local the local time in seconds
+     * @return the number of seconds since the epoch
+     */
+    public static long localToEpoch(long local) {
+        if (local == NO_TIME)
+            return NO_TIME;
+        return TvTimeZoneTable.getInstance().localToEpoch(local);
+    }
+
+    /**
+     * Converts seconds since the epoch into local time in seconds.
+     * 
+     * @param epoch the number of seconds since the epoch
+     * @return the local time in seconds
+     */
+    public static long epochToLocal(long epoch) {
+        if (epoch == NO_TIME)
+            return NO_TIME;
+        return TvTimeZoneTable.getInstance().epochToLocal(epoch);
+    }
+
+    /**
+     * Gets the day number for a local time in seconds.
+     * 
+     * @param local the local time in seconds
+     * @return the number of days since 1 January 1970
+     */
+    public static int localDay(long local) {
+        long day = local / SECONDS_PER_DAY;
+        if (local < 0 && (local % SECONDS_PER_DAY) != 0)
+            --day;
+        return (int)day;
+    }
+
+    /**
+     * Gets the day number for a calendar date.
+     * 
+     * @param date the date
+     * @return the number of days since 1 January 1970
+     */
+    public static int localDay(Calendar date) {
+        return (int)daysFromCivil(date.get(Calendar.YEAR), date.get(Calendar.MONTH) + 1,
+                                  date.get(Calendar.DAY_OF_MONTH));
+    }
+
+    /**
+     * Gets the time of day for a local time in seconds.
+     * 
+     * @param local the local time in seconds
+     * @return the number of seconds since midnight
+     */
+    public static int localTimeOfDay(long local) {
+        return (int)(local - (long)localDay(local) * SECONDS_PER_DAY);
+    }
+
+    /**
+     * Gets the day of the week for a local time in seconds.
+     * 
+     * @param local the local time in seconds
+     * @return the day of the week, Calendar.SUNDAY to Calendar.SATURDAY
+     */
+    public static int localDayOfWeek(long local) {
+        // 1 January 1970 was a Thursday.
+        int weekday = (localDay(local) + 4) % 7;
+        if (weekday < 0)
+            weekday += 7;
+        return Calendar.SUNDAY + weekday;
+    }
+
+    /**
+     * Constructs a Calendar object for a time in seconds since the epoch.
+     * 
+     * @param epoch the number of seconds since the epoch
+     * @return the Calendar object, or null for NO_TIME
+     */
+    public static Calendar epochToCalendar(long epoch) {
+        if (epoch == NO_TIME)
+            return null;
+        Calendar time = new GregorianCalendar();
+        time.setTimeInMillis(epoch * 1000);
+        return time;
+    }
+
+    /**
+     * Gets the number of days between 1 January 1970 and a date in the
+     * proleptic Gregorian calendar.
+     */
+    static long daysFromCivil(int year, int month, int day) {
+        if (month <= 2)
+            --year;
+        int era = (year >= 0 ? year : year - 399) / 400;
+        int yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
     }
 
     /**
@@ -229,6 +359,23 @@ public class Utils {
         return builder.toString();
     }
 
+    /**
+     * Skips the contents of an element without collecting its text.
+     * 
+     * @param parser the XML parser to read from
+     * @param name the name of the start element
+     * @throws XmlPullParserException error in xml data
+     * @throws IOException error reading the xml data
+     */
+    public static void skipContents(XmlPullParser parser, String name) throws XmlPullParserException, IOException {
+        int eventType = parser.next();
+        while (eventType != XmlPullParser.END_DOCUMENT) {
+            if (eventType == XmlPullParser.END_TAG && parser.getName().equals(name))
+                break;
+            eventType = parser.next();
+        }
+    }
+
     /**
      * Gets the full text contents of an XML element.  The parser is assumed to be
      * positions on the start element.  Upon exit, the parser will be positioned
@@ -242,19 +389,29 @@ public class Utils {
      */
     public static String getContents(XmlPullParser parser, String name) throws XmlPullParserException, IOException {
         String str = null;
+        StringBuilder builder = null;
         int eventType = parser.next();
         while (eventType != XmlPullParser.END_DOCUMENT) {
             if (eventType == XmlPullParser.TEXT) {
+                // Text normally arrives in a single event, so only use
+                // a builder when there are multiple pieces to join.
                 String nextStr = parser.getText();
-                if (str == null)
+                if (str == null) {
                     str = nextStr;
-                else
-                    str = str + nextStr;
+                } else {
+                    if (builder == null) {
+                        builder = new StringBuilder(str);
+                        str = "";
+                    }
+                    builder.append(nextStr);
+                }
             } else if (eventType == XmlPullParser.END_TAG && parser.getName().equals(name)) {
                 break;
             }
             eventType = parser.next();
         }
+        if (builder != null)
+            str = builder.toString();
         if (str != null && str.length() == 0)
             str = null;
         return str;
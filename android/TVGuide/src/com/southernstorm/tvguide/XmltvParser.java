@@ -0,0 +1,958 @@
+/*
+ * Copyright (C) 2011,2012  Southern Storm Software, Pty Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.southernstorm.tvguide;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * Streaming pull parser for XMLTV data.
+ *
+ * This parser works directly on the bytes of a UTF-8 or ISO-8859-1 input
+ * stream.  Element and attribute names in the XMLTV vocabulary are
+ * recognized from a precomputed table without allocating, and can be
+ * dispatched on by integer code with getNameCode().  Text is decoded into
+ * a reusable buffer, and strings are only allocated when the caller asks
+ * for a text or attribute value.
+ *
+ * The parser is non-validating and does not process namespaces.  Comments,
+ * processing instructions, and the document type declaration are skipped,
+ * and nextToken() behaves the same as next().  Only the predefined XML
+ * entities and character references are recognized.
+ */
+public class XmltvParser implements XmlPullParser {
+
+    public static final int NAME_UNKNOWN = 0;
+    public static final int NAME_TV = 1;
+    public static final int NAME_CHANNEL = 2;
+    public static final int NAME_DISPLAY_NAME = 3;
+    public static final int NAME_ICON = 4;
+    public static final int NAME_URL = 5;
+    public static final int NAME_PROGRAMME = 6;
+    public static final int NAME_TITLE = 7;
+    public static final int NAME_SUB_TITLE = 8;
+    public static final int NAME_DESC = 9;
+    public static final int NAME_CREDITS = 10;
+    public static final int NAME_DIRECTOR = 11;
+    public static final int NAME_ACTOR = 12;
+    public static final int NAME_WRITER = 13;
+    public static final int NAME_ADAPTER = 14;
+    public static final int NAME_PRODUCER = 15;
+    public static final int NAME_COMPOSER = 16;
+    public static final int NAME_EDITOR = 17;
+    public static final int NAME_PRESENTER = 18;
+    public static final int NAME_COMMENTATOR = 19;
+    public static final int NAME_GUEST = 20;
+    public static final int NAME_DATE = 21;
+    public static final int NAME_CATEGORY = 22;
+    public static final int NAME_KEYWORD = 23;
+    public static final int NAME_LANGUAGE = 24;
+    public static final int NAME_ORIG_LANGUAGE = 25;
+    public static final int NAME_LENGTH = 26;
+    public static final int NAME_COUNTRY = 27;
+    public static final int NAME_EPISODE_NUM = 28;
+    public static final int NAME_VIDEO = 29;
+    public static final int NAME_PRESENT = 30;
+    public static final int NAME_COLOUR = 31;
+    public static final int NAME_ASPECT = 32;
+    public static final int NAME_QUALITY = 33;
+    public static final int NAME_AUDIO = 34;
+    public static final int NAME_STEREO = 35;
+    public static final int NAME_PREVIOUSLY_SHOWN = 36;
+    public static final int NAME_PREMIERE = 37;
+    public static final int NAME_LAST_CHANCE = 38;
+    public static final int NAME_NEW = 39;
+    public static final int NAME_SUBTITLES = 40;
+    public static final int NAME_RATING = 41;
+    public static final int NAME_VALUE = 42;
+    public static final int NAME_STAR_RATING = 43;
+    public static final int NAME_REVIEW = 44;
+    public static final int NAME_START = 45;
+    public static final int NAME_STOP = 46;
+    public static final int NAME_SYSTEM = 47;
+    public static final int NAME_LANG = 48;
+    public static final int NAME_SRC = 49;
+    public static final int NAME_ID = 50;
+    public static final int NAME_TYPE = 51;
+    public static final int NAME_UNITS = 52;
+    public static final int NAME_WIDTH = 53;
+    public static final int NAME_HEIGHT = 54;
+    public static final int NAME_DATAFOR = 55;
+    public static final int NAME_BASE_URL = 56;
+    public static final int NAME_NUMBER = 57;
+    public static final int NAME_LASTMODIFIED = 58;
+    public static final int NAME_COMMON_ID = 59;
+    public static final int NAME_REGION = 60;
+    public static final int NAME_HIDDEN_STATE = 61;
+    public static final int NAME_CONVERT_TIMEZONE = 62;
+    public static final int NAME_PARENT = 63;
+    public static final int NAME_OTHER_PARENT = 64;
+    private static final int NUM_NAMES = 65;
+
+    private static final String[] NAMES = {
+        null,
+        "tv", "channel", "display-name", "icon", "url", "programme", "title",
+        "sub-title", "desc", "credits", "director", "actor", "writer", "adapter",
+        "producer", "composer", "editor", "presenter", "commentator", "guest", "date",
+        "category", "keyword", "language", "orig-language", "length", "country",
+        "episode-num", "video", "present", "colour", "aspect", "quality", "audio",
+        "stereo", "previously-shown", "premiere", "last-chance", "new", "subtitles",
+        "rating", "value", "star-rating", "review", "start", "stop", "system", "lang",
+        "src", "id", "type", "units", "width", "height", "datafor", "base-url",
+        "number", "lastmodified", "common-id", "region", "hidden-state",
+        "convert-timezone", "parent", "other-parent"
+    };
+
+    private static final int NAME_TABLE_SIZE = 256;
+    private static final byte[][] nameBytes = new byte [NUM_NAMES][];
+    private static final int[] nameTable = new int [NAME_TABLE_SIZE];
+    private static final Map<String, Integer> nameCodes = new HashMap<String, Integer>();
+    static {
+        for (int code = 1; code < NUM_NAMES; ++code) {
+            String name = NAMES[code];
+            byte[] bytes = new byte [name.length()];
+            for (int index = 0; index < bytes.length; ++index)
+                bytes[index] = (byte)name.charAt(index);
+            nameBytes[code] = bytes;
+            int slot = hashName(bytes, 0, bytes.length);
+            while (nameTable[slot] != 0)
+                slot = (slot + 1) & (NAME_TABLE_SIZE - 1);
+            nameTable[slot] = code;
+            nameCodes.put(name, Integer.valueOf(code));
+        }
+    }
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_NAME_LENGTH = 256;
+
+    private InputStream input;
+    private byte[] buffer;
+    private int posn;
+    private int limit;
+    private boolean eof;
+    private boolean latin1;
+    private String encoding;
+
+    private int eventType;
+    private int depth;
+    private String name;
+    private int nameCode;
+    private boolean isEmpty;
+    private boolean pendingEndTag;
+    private String[] stackNames;
+    private int[] stackCodes;
+
+    private char[] text;
+    private int textLength;
+
+    private int attributeCount;
+    private String[] attributeNames;
+    private int[] attributeStarts;
+    private int[] attributeLengths;
+    private String[] attributeValues;
+    private char[] attributeChars;
+    private int attributeCharsLength;
+
+    public XmltvParser() {
+        buffer = new byte [BUFFER_SIZE];
+        stackNames = new String [16];
+        stackCodes = new int [16];
+        text = new char [256];
+        attributeNames = new String [8];
+        attributeStarts = new int [8];
+        attributeLengths = new int [8];
+        attributeValues = new String [8];
+        attributeChars = new char [256];
+    }
+
+    /**
+     * Gets the code for an element or attribute name in the XMLTV vocabulary.
+     *
+     * @param name the name
+     * @return the name code, or NAME_UNKNOWN if the name is not in the vocabulary
+     */
+    public static int getNameCode(String name) {
+        Integer code = nameCodes.get(name);
+        if (code != null)
+            return code.intValue();
+        return NAME_UNKNOWN;
+    }
+
+    /**
+     * Gets the code for the name of the current element in any pull parser.
+     *
+     * @param parser the parser, positioned on a start or end tag
+     * @return the name code, or NAME_UNKNOWN if the name is not in the vocabulary
+     */
+    public static int getNameCode(XmlPullParser parser) {
+        if (parser instanceof XmltvParser)
+            return ((XmltvParser)parser).getNameCode();
+        String name = parser.getName();
+        if (name == null)
+            return NAME_UNKNOWN;
+        return getNameCode(name);
+    }
+
+    /**
+     * Gets the code for the name of the current element.
+     *
+     * @return the name code, or NAME_UNKNOWN if the name is not in the vocabulary
+     * or the parser is not positioned on a start or end tag
+     */
+    public int getNameCode() {
+        if (eventType == START_TAG || eventType == END_TAG)
+            return nameCode;
+        return NAME_UNKNOWN;
+    }
+
+    private static int hashName(byte[] bytes, int offset, int length) {
+        int hash = 0;
+        while (length-- > 0)
+            hash = hash * 31 + bytes[offset++];
+        return (hash ^ (hash >>> 8)) & (NAME_TABLE_SIZE - 1);
+    }
+
+    private static int lookupName(byte[] bytes, int offset, int length) {
+        int slot = hashName(bytes, offset, length);
+        int code;
+        while ((code = nameTable[slot]) != 0) {
+            byte[] candidate = nameBytes[code];
+            if (candidate.length == length) {
+                int index = 0;
+                while (index < length && candidate[index] == bytes[offset + index])
+                    ++index;
+                if (index == length)
+                    return code;
+            }
+            slot = (slot + 1) & (NAME_TABLE_SIZE - 1);
+        }
+        return NAME_UNKNOWN;
+    }
+
+    public void setFeature(String name, boolean state) throws XmlPullParserException {
+        if (state)
+            throw new XmlPullParserException("unsupported feature: " + name);
+    }
+
+    public boolean getFeature(String name) {
+        return false;
+    }
+
+    public void setProperty(String name, Object value) throws XmlPullParserException {
+        throw new XmlPullParserException("unsupported property: " + name);
+    }
+
+    public Object getProperty(String name) {
+        return null;
+    }
+
+    public void setInput(Reader in) throws XmlPullParserException {
+        throw new XmlPullParserException("only byte streams are supported");
+    }
+
+    public void setInput(InputStream inputStream, String inputEncoding) throws XmlPullParserException {
+        input = inputStream;
+        posn = 0;
+        limit = 0;
+        eof = false;
+        eventType = START_DOCUMENT;
+        depth = 0;
+        name = null;
+        nameCode = NAME_UNKNOWN;
+        isEmpty = false;
+        pendingEndTag = false;
+        textLength = 0;
+        attributeCount = 0;
+        try {
+            // Skip the UTF-8 byte order mark and look for an encoding declaration.
+            if (ensure(3) && (buffer[0] & 0xFF) == 0xEF &&
+                    (buffer[1] & 0xFF) == 0xBB && (buffer[2] & 0xFF) == 0xBF) {
+                posn = 3;
+                if (inputEncoding == null)
+                    inputEncoding = "UTF-8";
+            }
+            if (inputEncoding == null)
+                inputEncoding = declaredEncoding();
+        } catch (IOException e) {
+            throw new XmlPullParserException(e.toString(), this, e);
+        }
+        if (inputEncoding == null)
+            inputEncoding = "UTF-8";
+        String upper = inputEncoding.toUpperCase();
+        if (upper.equals("UTF-8") || upper.equals("UTF8")) {
+            latin1 = false;
+        } else if (upper.equals("ISO-8859-1") || upper.equals("ISO8859-1") ||
+                   upper.equals("ISO_8859_1") || upper.equals("LATIN1") ||
+                   upper.equals("US-ASCII") || upper.equals("ASCII")) {
+            latin1 = true;
+        } else {
+            throw new XmlPullParserException("unsupported encoding: " + inputEncoding);
+        }
+        encoding = inputEncoding;
+    }
+
+    private String declaredEncoding() throws IOException {
+        ensure(MAX_NAME_LENGTH);
+        if (!startsWith("<?xml"))
+            return null;
+        int end = posn;
+        while (end < limit - 1 && (buffer[end] != '?' || buffer[end + 1] != '>'))
+            ++end;
+        int index = posn;
+        while (index < end) {
+            if (buffer[index] == 'e' && matches(index, "encoding")) {
+                index += 8;
+                while (index < end && buffer[index] != '"' && buffer[index] != '\'')
+                    ++index;
+                if (index >= end)
+                    return null;
+                byte quote = buffer[index++];
+                int start = index;
+                while (index < end && buffer[index] != quote)
+                    ++index;
+                return new String(buffer, start, index - start, "US-ASCII");
+            }
+            ++index;
+        }
+        return null;
+    }
+
+    public String getInputEncoding() {
+        return encoding;
+    }
+
+    public void defineEntityReplacementText(String entityName, String replacementText) throws XmlPullParserException {
+        throw new XmlPullParserException("entity replacement text is not supported");
+    }
+
+    public int getNamespaceCount(int depth) throws XmlPullParserException {
+        return 0;
+    }
+
+    public String getNamespacePrefix(int pos) throws XmlPullParserException {
+        throw new XmlPullParserException("namespaces are not supported");
+    }
+
+    public String getNamespaceUri(int pos) throws XmlPullParserException {
+        throw new XmlPullParserException("namespaces are not supported");
+    }
+
+    public String getNamespace(String prefix) {
+        return null;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public String getPositionDescription() {
+        String desc = TYPES[eventType];
+        if (eventType == START_TAG)
+            desc += " <" + name + ">";
+        else if (eventType == END_TAG)
+            desc += " </" + name + ">";
+        return desc;
+    }
+
+    public int getLineNumber() {
+        return -1;
+    }
+
+    public int getColumnNumber() {
+        return -1;
+    }
+
+    public boolean isWhitespace() throws XmlPullParserException {
+        if (eventType != TEXT)
+            throw new XmlPullParserException("not on a text event", this, null);
+        for (int index = 0; index < textLength; ++index) {
+            if (text[index] > ' ')
+                return false;
+        }
+        return true;
+    }
+
+    public String getText() {
+        if (eventType == TEXT)
+            return new String(text, 0, textLength);
+        return null;
+    }
+
+    public char[] getTextCharacters(int[] holderForStartAndLength) {
+        if (eventType == TEXT) {
+            holderForStartAndLength[0] = 0;
+            holderForStartAndLength[1] = textLength;
+            return text;
+        }
+        holderForStartAndLength[0] = -1;
+        holderForStartAndLength[1] = -1;
+        return null;
+    }
+
+    public String getNamespace() {
+        if (eventType == START_TAG || eventType == END_TAG)
+            return "";
+        return null;
+    }
+
+    public String getName() {
+        if (eventType == START_TAG || eventType == END_TAG)
+            return name;
+        return null;
+    }
+
+    public String getPrefix() {
+        return null;
+    }
+
+    public boolean isEmptyElementTag() throws XmlPullParserException {
+        if (eventType != START_TAG)
+            throw new XmlPullParserException("not on a start tag", this, null);
+        return isEmpty;
+    }
+
+    public int getAttributeCount() {
+        if (eventType == START_TAG)
+            return attributeCount;
+        return -1;
+    }
+
+    public String getAttributeNamespace(int index) {
+        checkAttribute(index);
+        return "";
+    }
+
+    public String getAttributeName(int index) {
+        checkAttribute(index);
+        return attributeNames[index];
+    }
+
+    public String getAttributePrefix(int index) {
+        checkAttribute(index);
+        return null;
+    }
+
+    public String getAttributeType(int index) {
+        checkAttribute(index);
+        return "CDATA";
+    }
+
+    public boolean isAttributeDefault(int index) {
+        checkAttribute(index);
+        return false;
+    }
+
+    public String getAttributeValue(int index) {
+        checkAttribute(index);
+        String value = attributeValues[index];
+        if (value == null) {
+            value = new String(attributeChars, attributeStarts[index], attributeLengths[index]);
+            attributeValues[index] = value;
+        }
+        return value;
+    }
+
+    public String getAttributeValue(String namespace, String name) {
+        if (eventType != START_TAG)
+            throw new IndexOutOfBoundsException("not on a start tag");
+        for (int index = 0; index < attributeCount; ++index) {
+            if (attributeNames[index].equals(name))
+                return getAttributeValue(index);
+        }
+        return null;
+    }
+
+    private void checkAttribute(int index) {
+        if (eventType != START_TAG || index < 0 || index >= attributeCount)
+            throw new IndexOutOfBoundsException("invalid attribute index");
+    }
+
+    public int getEventType() throws XmlPullParserException {
+        return eventType;
+    }
+
+    public int next() throws XmlPullParserException, IOException {
+        if (input == null)
+            throw new XmlPullParserException("no input specified");
+        if (eventType == END_TAG)
+            --depth;
+        if (pendingEndTag) {
+            // Report the end of an empty element tag such as <premiere/>.
+            pendingEndTag = false;
+            eventType = END_TAG;
+            return eventType;
+        }
+        if (eventType == END_DOCUMENT)
+            return eventType;
+        textLength = 0;
+        attributeCount = 0;
+        boolean haveText = false;
+        for (;;) {
+            if (posn >= limit && !ensure(1)) {
+                if (depth > 0)
+                    throw new XmlPullParserException("unexpected end of document", this, null);
+                eventType = (haveText ? TEXT : END_DOCUMENT);
+                return eventType;
+            }
+            if (buffer[posn] != '<') {
+                readText();
+                if (depth > 0) {
+                    haveText = true;
+                } else {
+                    // Whitespace outside the root element is not reported.
+                    textLength = 0;
+                }
+                continue;
+            }
+            ensure(9);
+            int next = (posn + 1 < limit ? buffer[posn + 1] : -1);
+            if (next == '!') {
+                if (startsWith("<!--")) {
+                    skipPast("-->", 4);
+                    continue;
+                } else if (startsWith("<![CDATA[")) {
+                    readCData();
+                    haveText = true;
+                    continue;
+                }
+            } else if (next == '?') {
+                skipPast("?>", 2);
+                continue;
+            }
+            if (haveText) {
+                eventType = TEXT;
+                return eventType;
+            }
+            if (next == '!') {
+                skipDocType();
+            } else if (next == '/') {
+                readEndTag();
+                eventType = END_TAG;
+                return eventType;
+            } else {
+                readStartTag();
+                eventType = START_TAG;
+                return eventType;
+            }
+        }
+    }
+
+    public int nextToken() throws XmlPullParserException, IOException {
+        return next();
+    }
+
+    public void require(int type, String namespace, String name) throws XmlPullParserException, IOException {
+        if (type != eventType ||
+                (namespace != null && !namespace.equals(getNamespace())) ||
+                (name != null && !name.equals(getName()))) {
+            throw new XmlPullParserException("expected " + TYPES[type], this, null);
+        }
+    }
+
+    public String nextText() throws XmlPullParserException, IOException {
+        if (eventType != START_TAG)
+            throw new XmlPullParserException("parser must be on a start tag to read text", this, null);
+        int type = next();
+        if (type == TEXT) {
+            String result = getText();
+            if (next() != END_TAG)
+                throw new XmlPullParserException("expected end tag after text", this, null);
+            return result;
+        } else if (type == END_TAG) {
+            return "";
+        }
+        throw new XmlPullParserException("expected text", this, null);
+    }
+
+    public int nextTag() throws XmlPullParserException, IOException {
+        int type = next();
+        if (type == TEXT && isWhitespace())
+            type = next();
+        if (type != START_TAG && type != END_TAG)
+            throw new XmlPullParserException("expected start or end tag", this, null);
+        return type;
+    }
+
+    /**
+     * Ensures that at least a certain number of bytes are available in
+     * the buffer, moving the unread bytes to the start of the buffer
+     * if necessary.
+     *
+     * @param size the number of bytes that are required
+     * @return true if the bytes are available, false at the end of the stream
+     * @throws IOException error reading from the input stream
+     */
+    private boolean ensure(int size) throws IOException {
+        if (limit - posn >= size)
+            return true;
+        if (posn > 0) {
+            System.arraycopy(buffer, posn, buffer, 0, limit - posn);
+            limit -= posn;
+            posn = 0;
+        }
+        while (limit < size && !eof) {
+            int len = input.read(buffer, limit, buffer.length - limit);
+            if (len < 0)
+                eof = true;
+            else
+                limit += len;
+        }
+        return limit - posn >= size;
+    }
+
+    private boolean startsWith(String str) {
+        return posn + str.length() <= limit && matches(posn, str);
+    }
+
+    private boolean matches(int index, String str) {
+        int len = str.length();
+        if (index + len > limit)
+            return false;
+        for (int offset = 0; offset < len; ++offset) {
+            if (buffer[index + offset] != str.charAt(offset))
+                return false;
+        }
+        return true;
+    }
+
+    private void skipPast(String terminator, int skip) throws XmlPullParserException, IOException {
+        posn += skip;
+        int len = terminator.length();
+        for (;;) {
+            if (!ensure(len))
+                throw new XmlPullParserException("unexpected end of document", this, null);
+            if (buffer[posn] == terminator.charAt(0) && matches(posn, terminator)) {
+                posn += len;
+                return;
+            }
+            ++posn;
+        }
+    }
+
+    private void skipDocType() throws XmlPullParserException, IOException {
+        posn += 2;
+        int nesting = 0;
+        int quote = 0;
+        for (;;) {
+            if (posn >= limit && !ensure(1))
+                throw new XmlPullParserException("unexpected end of document", this, null);
+            int ch = buffer[posn++];
+            if (quote != 0) {
+                if (ch == quote)
+                    quote = 0;
+            } else if (ch == '"' || ch == '\'') {
+                quote = ch;
+            } else if (ch == '[') {
+                ++nesting;
+            } else if (ch == ']') {
+                --nesting;
+            } else if (ch == '>' && nesting <= 0) {
+                return;
+            }
+        }
+    }
+
+    private boolean isNameEnd(int ch) {
+        return ch <= ' ' || ch == '>' || ch == '/' || ch == '=';
+    }
+
+    private boolean skipWhitespace() throws IOException {
+        for (;;) {
+            if (posn >= limit && !ensure(1))
+                return false;
+            int ch = buffer[posn] & 0xFF;
+            if (ch > ' ')
+                return true;
+            ++posn;
+        }
+    }
+
+    /**
+     * Reads an element or attribute name at the current position.
+     * The name's code is left in the nameCode field.
+     */
+    private String readName() throws XmlPullParserException, IOException {
+        ensure(MAX_NAME_LENGTH);
+        int start = posn;
+        while (posn < limit && !isNameEnd(buffer[posn] & 0xFF))
+            ++posn;
+        int length = posn - start;
+        if (length == 0 || posn >= limit)
+            throw new XmlPullParserException("invalid name", this, null);
+        nameCode = lookupName(buffer, start, length);
+        if (nameCode != NAME_UNKNOWN)
+            return NAMES[nameCode];
+        return new String(buffer, start, length, latin1 ? "ISO-8859-1" : "UTF-8");
+    }
+
+    private void readStartTag() throws XmlPullParserException, IOException {
+        ++posn;
+        name = readName();
+        int code = nameCode;
+        if (depth >= stackNames.length) {
+            String[] newNames = new String [depth * 2];
+            int[] newCodes = new int [depth * 2];
+            System.arraycopy(stackNames, 0, newNames, 0, depth);
+            System.arraycopy(stackCodes, 0, newCodes, 0, depth);
+            stackNames = newNames;
+            stackCodes = newCodes;
+        }
+        stackNames[depth] = name;
+        stackCodes[depth] = code;
+        ++depth;
+        isEmpty = false;
+        attributeCharsLength = 0;
+        for (;;) {
+            if (!skipWhitespace())
+                throw new XmlPullParserException("unexpected end of document", this, null);
+            int ch = buffer[posn];
+            if (ch == '>') {
+                ++posn;
+                break;
+            } else if (ch == '/') {
+                ++posn;
+                if (!ensure(1) || buffer[posn] != '>')
+                    throw new XmlPullParserException("expected '>'", this, null);
+                ++posn;
+                isEmpty = true;
+                pendingEndTag = true;
+                break;
+            }
+            readAttribute();
+        }
+        nameCode = code;
+    }
+
+    private void readAttribute() throws XmlPullParserException, IOException {
+        String attrName = readName();
+        if (!skipWhitespace() || buffer[posn] != '=')
+            throw new XmlPullParserException("expected '=' after attribute name", this, null);
+        ++posn;
+        if (!skipWhitespace())
+            throw new XmlPullParserException("unexpected end of document", this, null);
+        int quote = buffer[posn];
+        if (quote != '"' && quote != '\'')
+            throw new XmlPullParserException("expected quoted attribute value", this, null);
+        ++posn;
+
+        // Decode the value into the text buffer and then append it to the attribute characters.
+        textLength = 0;
+        decodeUntil(quote);
+        ++posn;
+        if (attributeCount >= attributeNames.length) {
+            int size = attributeCount * 2;
+            String[] newNames = new String [size];
+            int[] newStarts = new int [size];
+            int[] newLengths = new int [size];
+            System.arraycopy(attributeNames, 0, newNames, 0, attributeCount);
+            System.arraycopy(attributeStarts, 0, newStarts, 0, attributeCount);
+            System.arraycopy(attributeLengths, 0, newLengths, 0, attributeCount);
+            attributeNames = newNames;
+            attributeStarts = newStarts;
+            attributeLengths = newLengths;
+            attributeValues = new String [size];
+        }
+        if (attributeCharsLength + textLength > attributeChars.length) {
+            char[] newChars = new char [(attributeCharsLength + textLength) * 2];
+            System.arraycopy(attributeChars, 0, newChars, 0, attributeCharsLength);
+            attributeChars = newChars;
+        }
+        System.arraycopy(text, 0, attributeChars, attributeCharsLength, textLength);
+        attributeNames[attributeCount] = attrName;
+        attributeStarts[attributeCount] = attributeCharsLength;
+        attributeLengths[attributeCount] = textLength;
+        attributeValues[attributeCount] = null;
+        attributeCharsLength += textLength;
+        ++attributeCount;
+        textLength = 0;
+    }
+
+    private void readEndTag() throws XmlPullParserException, IOException {
+        posn += 2;
+        name = readName();
+        if (!skipWhitespace() || buffer[posn] != '>')
+            throw new XmlPullParserException("expected '>'", this, null);
+        ++posn;
+        if (depth <= 0)
+            throw new XmlPullParserException("unexpected end tag </" + name + ">", this, null);
+        int code = stackCodes[depth - 1];
+        if (code != nameCode || (code == NAME_UNKNOWN && !stackNames[depth - 1].equals(name)))
+            throw new XmlPullParserException("expected </" + stackNames[depth - 1] + ">", this, null);
+    }
+
+    private void readText() throws XmlPullParserException, IOException {
+        decodeUntil('<');
+    }
+
+    private void readCData() throws XmlPullParserException, IOException {
+        posn += 9;
+        for (;;) {
+            if (!ensure(3))
+                throw new XmlPullParserException("unexpected end of document", this, null);
+            int ch = buffer[posn] & 0xFF;
+            if (ch == ']' && buffer[posn + 1] == ']' && buffer[posn + 2] == '>') {
+                posn += 3;
+                return;
+            }
+            if (ch < 0x80 || latin1) {
+                appendChar((char)ch);
+                ++posn;
+            } else {
+                readMultiByte();
+            }
+        }
+    }
+
+    /**
+     * Decodes characters into the text buffer until a specific terminator
+     * byte is seen.  The terminator is not consumed.
+     */
+    private void decodeUntil(int terminator) throws XmlPullParserException, IOException {
+        for (;;) {
+            if (posn >= limit && !ensure(1)) {
+                if (terminator == '<')
+                    return;
+                throw new XmlPullParserException("unexpected end of document", this, null);
+            }
+            int ch = buffer[posn] & 0xFF;
+            if (ch == terminator) {
+                return;
+            } else if (ch == '&') {
+                readEntity();
+            } else if (ch < 0x80 || latin1) {
+                if (textLength >= text.length)
+                    growText();
+                text[textLength++] = (char)ch;
+                ++posn;
+            } else {
+                readMultiByte();
+            }
+        }
+    }
+
+    private void appendChar(char ch) {
+        if (textLength >= text.length)
+            growText();
+        text[textLength++] = ch;
+    }
+
+    private void appendCodePoint(int code) {
+        if (code >= 0x10000) {
+            code -= 0x10000;
+            appendChar((char)(0xD800 + (code >> 10)));
+            appendChar((char)(0xDC00 + (code & 0x03FF)));
+        } else {
+            appendChar((char)code);
+        }
+    }
+
+    private void growText() {
+        char[] newText = new char [text.length * 2];
+        System.arraycopy(text, 0, newText, 0, textLength);
+        text = newText;
+    }
+
+    private void readMultiByte() throws IOException {
+        ensure(4);
+        int ch = buffer[posn] & 0xFF;
+        int extra;
+        int code;
+        if (ch >= 0xC2 && ch <= 0xDF) {
+            extra = 1;
+            code = ch & 0x1F;
+        } else if (ch >= 0xE0 && ch <= 0xEF) {
+            extra = 2;
+            code = ch & 0x0F;
+        } else if (ch >= 0xF0 && ch <= 0xF4) {
+            extra = 3;
+            code = ch & 0x07;
+        } else {
+            appendChar('\uFFFD');
+            ++posn;
+            return;
+        }
+        if (posn + extra >= limit) {
+            appendChar('\uFFFD');
+            ++posn;
+            return;
+        }
+        for (int index = 1; index <= extra; ++index) {
+            int next = buffer[posn + index] & 0xFF;
+            if ((next & 0xC0) != 0x80) {
+                appendChar('\uFFFD');
+                posn += index;
+                return;
+            }
+            code = (code << 6) | (next & 0x3F);
+        }
+        posn += extra + 1;
+        appendCodePoint(code);
+    }
+
+    private void readEntity() throws XmlPullParserException, IOException {
+        ensure(12);
+        int start = posn + 1;
+        int end = start;
+        while (end < limit && end < start + 10 && buffer[end] != ';')
+            ++end;
+        if (end >= limit || buffer[end] != ';')
+            throw new XmlPullParserException("unterminated entity reference", this, null);
+        int len = end - start;
+        if (len > 1 && buffer[start] == '#') {
+            int code = 0;
+            if (buffer[start + 1] == 'x') {
+                for (int index = start + 2; index < end; ++index) {
+                    int digit = Character.digit((char)buffer[index], 16);
+                    if (digit < 0)
+                        throw new XmlPullParserException("invalid character reference", this, null);
+                    code = code * 16 + digit;
+                }
+            } else {
+                for (int index = start + 1; index < end; ++index) {
+                    int digit = Character.digit((char)buffer[index], 10);
+                    if (digit < 0)
+                        throw new XmlPullParserException("invalid character reference", this, null);
+                    code = code * 10 + digit;
+                }
+            }
+            if (code > 0x10FFFF)
+                throw new XmlPullParserException("invalid character reference", this, null);
+            appendCodePoint(code);
+        } else if (len == 3 && matches(start, "amp")) {
+            appendChar('&');
+        } else if (len == 2 && matches(start, "lt")) {
+            appendChar('<');
+        } else if (len == 2 && matches(start, "gt")) {
+            appendChar('>');
+        } else if (len == 4 && matches(start, "quot")) {
+            appendChar('"');
+        } else if (len == 4 && matches(start, "apos")) {
+            appendChar('\'');
+        } else {
+            throw new XmlPullParserException("unresolved entity reference", this, null);
+        }
+        posn = end + 1;
+    }
+}
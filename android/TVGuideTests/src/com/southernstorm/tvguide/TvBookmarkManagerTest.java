@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2011,2012  Southern Storm Software, Pty Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.southernstorm.tvguide;
+
+import java.io.ByteArrayInputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that TvBookmarkManager.matchProgrammesInParallel() gives every
+ * programme exactly the same bookmark and match as matchProgrammes().
+ *
+ * The bookmarks, ticks, and programmes are generated from a fixed seed.
+ * On a device with a single processor the parallel matcher falls back to
+ * the sequential one, so the test only exercises the worker pool on
+ * devices with more than one.
+ */
+public class TvBookmarkManagerTest extends TestCase {
+
+    private static final String[] titles = {
+        "News", "news", "The Simpsons", "Futurama", "Istanbul", "Doctor Who"
+    };
+    private static final String[] ranges = {
+        null, "1", "2-4", "3+", "1,5,7+", "1990-2000", "2005+"
+    };
+    private static final String[] channelIds = {
+        "ABC1.matcher.test", "SEVEN.matcher.test", "SEVENHD.matcher.test", "TEN.matcher.test"
+    };
+
+    private static final int NUM_BOOKMARKS = 300;
+    private static final int NUM_TICKS = 100;
+    private static final int PROGRAMMES_PER_CHANNEL = 1500;
+    private static final long FIRST_START = 1349870400L;    // 2012-10-10 12:00 UTC
+
+    private TvBookmarkManager manager;
+    private List<TvBookmark> bookmarks;
+    private List<TvTick> ticks;
+    private List<TvProgramme> programmes;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        manager = TvBookmarkManager.getInstance();
+        bookmarks = new ArrayList<TvBookmark>();
+        ticks = new ArrayList<TvTick>();
+        Random random = new Random(11);
+
+        // Two of the channels are in the same group, so bookmarks for
+        // one of them also match programmes on the other.
+        TvChannel[] channels = new TvChannel [channelIds.length];
+        for (int index = 0; index < channels.length; ++index) {
+            channels[index] = new TvChannel();
+            channels[index].setId(channelIds[index]);
+            if (index == 1 || index == 2)
+                channels[index].setCommonId("SEVEN.group.matcher.test");
+        }
+
+        for (int index = 0; index < NUM_BOOKMARKS; ++index) {
+            TvBookmark bookmark = new TvBookmark();
+            bookmark.setTitle(titles[random.nextInt(titles.length)]);
+            if (random.nextInt(4) != 0)
+                bookmark.setChannelId(channelIds[random.nextInt(channelIds.length)]);
+            if (random.nextInt(3) == 0)
+                bookmark.setDayOfWeekMask(TvBookmark.ANY_DAY_MASK);
+            else
+                bookmark.setDayOfWeekMask(random.nextInt(255) & TvBookmark.ANY_DAY_MASK);
+            bookmark.setStartTime(random.nextInt(48) * 1800);
+            bookmark.setStopTime(random.nextInt(48) * 1800);
+            bookmark.setAnyTime(random.nextInt(8) == 0);
+            bookmark.setOnAir(random.nextInt(6) != 0);
+            bookmark.setSeasons(ranges[random.nextInt(5)]);
+            bookmark.setYears(ranges[random.nextInt(ranges.length)]);
+            bookmarks.add(bookmark);
+        }
+
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss Z");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        programmes = new ArrayList<TvProgramme>();
+        for (TvChannel channel: channels) {
+            StringBuilder xml = new StringBuilder();
+            xml.append("<tv>");
+            for (int index = 0; index < PROGRAMMES_PER_CHANNEL; ++index) {
+                long start = FIRST_START + random.nextInt(7 * 48) * 1800L;
+                long stop = start + random.nextInt(6) * 1800L + 1800L;
+                xml.append("<programme start=\"");
+                xml.append(format.format(new Date(start * 1000)));
+                xml.append("\" stop=\"");
+                xml.append(format.format(new Date(stop * 1000)));
+                xml.append("\"><title>");
+                xml.append(titles[random.nextInt(titles.length)]);
+                xml.append("</title>");
+                if (random.nextBoolean())
+                    xml.append("<date>" + (1985 + random.nextInt(30)) + "</date>");
+                if (random.nextBoolean())
+                    xml.append("<episode-num system=\"xmltv_ns\">" + random.nextInt(9) + ".3.</episode-num>");
+                xml.append("</programme>");
+            }
+            xml.append("</tv>");
+            programmes.addAll(channel.parseProgrammesFromXml(new ByteArrayInputStream(xml.toString().getBytes("UTF-8"))));
+        }
+
+        for (int index = 0; index < NUM_TICKS; ++index) {
+            TvProgramme prog = programmes.get(random.nextInt(programmes.size()));
+            TvTick tick = new TvTick();
+            tick.setTitle(prog.getTitle());
+            tick.setChannelId(prog.getChannel().getId());
+            tick.setStartTime(prog.getStart());
+            tick.setTimestamp(new GregorianCalendar());
+            ticks.add(tick);
+        }
+
+        for (TvBookmark bookmark: bookmarks)
+            manager.addBookmark(bookmark);
+        for (TvTick tick: ticks)
+            manager.addTick(tick);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (TvBookmark bookmark: bookmarks)
+            manager.removeBookmark(bookmark);
+        for (TvTick tick: ticks)
+            manager.removeTick(tick);
+        super.tearDown();
+    }
+
+    private void clearMatches() {
+        for (TvProgramme prog: programmes)
+            prog.setBookmark(null, TvBookmarkMatch.NoMatch);
+    }
+
+    public void testParallelMatchesSequential() {
+        manager.matchProgrammes(programmes);
+        int size = programmes.size();
+        TvBookmark[] expectedBookmarks = new TvBookmark [size];
+        TvBookmarkMatch[] expectedMatches = new TvBookmarkMatch [size];
+        int ticked = 0;
+        int matched = 0;
+        for (int index = 0; index < size; ++index) {
+            TvProgramme prog = programmes.get(index);
+            expectedBookmarks[index] = prog.getBookmark();
+            expectedMatches[index] = prog.getBookmarkMatch();
+            if (expectedMatches[index] == TvBookmarkMatch.TickMatch)
+                ++ticked;
+            else if (expectedMatches[index] != TvBookmarkMatch.NoMatch)
+                ++matched;
+        }
+        assertTrue("some programmes should be ticked", ticked > 0);
+        assertTrue("some programmes should match bookmarks", matched > 0);
+
+        // The result must not depend on how the work was split or scheduled.
+        for (int run = 0; run < 3; ++run) {
+            clearMatches();
+            manager.matchProgrammesInParallel(programmes);
+            for (int index = 0; index < size; ++index) {
+                TvProgramme prog = programmes.get(index);
+                assertSame("bookmark for programme " + index, expectedBookmarks[index], prog.getBookmark());
+                assertSame("match for programme " + index, expectedMatches[index], prog.getBookmarkMatch());
+            }
+        }
+    }
+
+    public void testParallelMatchesSequentialForSmallLists() {
+        // Lists below the batch size are matched on the calling thread.
+        List<TvProgramme> small = programmes.subList(0, 100);
+        manager.matchProgrammes(small);
+        TvBookmark[] expectedBookmarks = new TvBookmark [small.size()];
+        TvBookmarkMatch[] expectedMatches = new TvBookmarkMatch [small.size()];
+        for (int index = 0; index < small.size(); ++index) {
+            expectedBookmarks[index] = small.get(index).getBookmark();
+            expectedMatches[index] = small.get(index).getBookmarkMatch();
+        }
+        clearMatches();
+        manager.matchProgrammesInParallel(small);
+        for (int index = 0; index < small.size(); ++index) {
+            assertSame("bookmark for programme " + index, expectedBookmarks[index], small.get(index).getBookmark());
+            assertSame("match for programme " + index, expectedMatches[index], small.get(index).getBookmarkMatch());
+        }
+    }
+}
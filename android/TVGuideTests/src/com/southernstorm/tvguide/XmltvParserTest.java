@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2011,2012  Southern Storm Software, Pty Ltd.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.southernstorm.tvguide;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import android.test.InstrumentationTestCase;
+
+/**
+ * Checks that XmltvParser produces exactly the same output as the
+ * platform's kxml pull parser for the XMLTV fixtures in "assets/xmltv",
+ * both event-for-event and field-for-field once the programmes are loaded.
+ */
+public class XmltvParserTest extends InstrumentationTestCase {
+
+    private static final String[] fixtures = {
+        "abc-nsw.xml",          // UTF-8 with entities, CDATA and comments
+        "sbs-latin1.xml",       // ISO-8859-1 with an internal DTD subset
+        "nhk-bom.xml"           // UTF-8 with a byte order mark
+    };
+
+    public void testEvents() throws Exception {
+        for (String name : fixtures) {
+            byte[] data = readFixture(name);
+            List<String> expected = events(newKxmlParser(), new ByteArrayInputStream(data));
+            assertEquals(name, expected, events(new XmltvParser(), new ByteArrayInputStream(data)));
+        }
+    }
+
+    public void testEventsWithShortReads() throws Exception {
+        // Deliver the data a few bytes at a time so that tokens, character
+        // references and multi-byte characters straddle buffer refills.
+        for (String name : fixtures) {
+            byte[] data = readFixture(name);
+            List<String> expected = events(newKxmlParser(), new ByteArrayInputStream(data));
+            assertEquals(name, expected, events(new XmltvParser(), new ShortReadInputStream(data)));
+        }
+    }
+
+    public void testProgrammes() throws Exception {
+        for (String name : fixtures) {
+            byte[] data = readFixture(name);
+            for (int convert = 0; convert < 2; ++convert) {
+                TvChannel channel = new TvChannel();
+                channel.setConvertTimezone(convert != 0);
+                List<String> expected = programmes(newKxmlParser(), data, channel);
+                assertFalse(name, expected.isEmpty());
+                assertEquals(name, expected, programmes(new XmltvParser(), data, channel));
+            }
+        }
+    }
+
+    private byte[] readFixture(String name) throws IOException {
+        InputStream stream = getInstrumentation().getContext().getAssets().open("xmltv/" + name);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte [4096];
+            int len;
+            while ((len = stream.read(buffer)) > 0)
+                out.write(buffer, 0, len);
+            return out.toByteArray();
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static XmlPullParser newKxmlParser() throws XmlPullParserException {
+        return XmlPullParserFactory.newInstance().newPullParser();
+    }
+
+    private static List<String> events(XmlPullParser parser, InputStream stream) throws XmlPullParserException, IOException {
+        List<String> events = new ArrayList<String>();
+        parser.setInput(stream, null);
+        int eventType = parser.getEventType();
+        while (eventType != XmlPullParser.END_DOCUMENT) {
+            StringBuilder event = new StringBuilder();
+            event.append(XmlPullParser.TYPES[eventType]);
+            event.append(' ');
+            event.append(parser.getDepth());
+            if (eventType == XmlPullParser.START_TAG) {
+                event.append(' ');
+                event.append(parser.getName());
+                if (parser.isEmptyElementTag())
+                    event.append('/');
+                for (int index = 0; index < parser.getAttributeCount(); ++index) {
+                    event.append(' ');
+                    event.append(parser.getAttributeName(index));
+                    event.append("=\"");
+                    event.append(parser.getAttributeValue(index));
+                    event.append('"');
+                }
+            } else if (eventType == XmlPullParser.END_TAG) {
+                event.append(' ');
+                event.append(parser.getName());
+            } else if (eventType == XmlPullParser.TEXT) {
+                event.append(' ');
+                event.append(parser.getText());
+            }
+            events.add(event.toString());
+            eventType = parser.next();
+        }
+        return events;
+    }
+
+    private static List<String> programmes(XmlPullParser parser, byte[] data, TvChannel channel) throws XmlPullParserException, IOException {
+        List<String> programmes = new ArrayList<String>();
+        parser.setInput(new ByteArrayInputStream(data), null);
+        int eventType = parser.getEventType();
+        while (eventType != XmlPullParser.END_DOCUMENT) {
+            if (eventType == XmlPullParser.START_TAG && parser.getName().equals("programme")) {
+                TvProgramme programme = new TvProgramme(channel);
+                programme.load(parser, channel.getConvertTimezone());
+                programmes.add(describe(programme));
+                eventType = parser.getEventType();
+            } else {
+                eventType = parser.next();
+            }
+        }
+        return programmes;
+    }
+
+    private static String describe(TvProgramme programme) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(programme.getStart().getTime().getTime());
+        builder.append('|').append(programme.getStop().getTime().getTime());
+        builder.append('|').append(programme.getTitle());
+        builder.append('|').append(programme.getSubTitle());
+        builder.append('|').append(programme.getDescription());
+        builder.append('|').append(programme.getDirectors());
+        builder.append('|').append(programme.getActors());
+        builder.append('|').append(programme.getPresenters());
+        builder.append('|').append(programme.getOtherCredits());
+        builder.append('|').append(programme.getCategories());
+        builder.append('|').append(programme.getDate());
+        builder.append('|').append(programme.getRating());
+        builder.append('|').append(programme.getStarRating());
+        builder.append('|').append(programme.getEpisodeNumber());
+        builder.append('|').append(programme.getSeason());
+        builder.append('|').append(programme.getLanguage());
+        builder.append('|').append(programme.getOriginalLanguage());
+        builder.append('|').append(programme.getCountry());
+        builder.append('|').append(programme.getAspectRatio());
+        builder.append('|').append(programme.isMovie());
+        builder.append('|').append(programme.isPremiere());
+        builder.append('|').append(programme.isRepeat());
+        return builder.toString();
+    }
+
+    // Input stream that returns between 1 and 7 bytes from every read.
+    private static class ShortReadInputStream extends FilterInputStream {
+        private int count;
+
+        public ShortReadInputStream(byte[] data) {
+            super(new ByteArrayInputStream(data));
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            count = (count % 7) + 1;
+            return super.read(buffer, offset, Math.min(length, count));
+        }
+    }
+}